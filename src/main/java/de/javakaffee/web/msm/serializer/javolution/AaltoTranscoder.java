@@ -16,22 +16,39 @@
  */
 package de.javakaffee.web.msm.serializer.javolution;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.xml.stream.XMLStreamException;
 
 import net.spy.memcached.transcoders.SerializingTranscoder;
 
+import org.apache.catalina.Container;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.Manager;
 import org.apache.catalina.session.StandardSession;
 
 import de.javakaffee.web.msm.MemcachedBackupSessionManager.MemcachedBackupSession;
 import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLFormat;
 import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLReader;
-import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLWriter;
 
 /**
  * A {@link net.spy.memcached.transcoders.Transcoder} that serializes catalina
@@ -52,10 +69,20 @@ public class AaltoTranscoder extends SerializingTranscoder {
     
     static final String REF_ID = "__id";
 
-    private static final XMLBinding XML_BINDING = new XMLBinding();
+    static final ByteBufferPool BUFFER_POOL = new ByteBufferPool( 4096, 16, 256 * 1024, false );
+    private static final long CLASS_MANIFEST_SAVE_DELAY = 10000;
     static Logger _log = Logger.getLogger( AaltoTranscoder.class.getName() );
 
     private final Manager _manager;
+    private final XMLBinding _xmlBinding = new XMLBinding();
+    private volatile XMLWriteBehindExecutor _writeBehindExecutor;
+    private volatile boolean _payloadHeader;
+    private volatile XMLCompressor _compressor;
+    private volatile XMLNearCache _nearCache;
+    private volatile XMLSerializationMetrics _metrics;
+    private ObjectName _metricsName;
+    private XMLSlowSerializationLogger _slowSerializationLogger;
+    private volatile int _batchThreads = Runtime.getRuntime().availableProcessors();
 
     /**
      * Constructor.
@@ -65,6 +92,418 @@ public class AaltoTranscoder extends SerializingTranscoder {
      */
     public AaltoTranscoder( final Manager manager ) {
         _manager = manager;
+        if ( manager instanceof Lifecycle ) {
+            /* the worker threads and the metrics mbean must not outlive the webapp,
+             * they would keep its classloader
+             */
+            ( (Lifecycle) manager ).addLifecycleListener( new LifecycleListener() {
+                public void lifecycleEvent( final LifecycleEvent event ) {
+                    if ( Lifecycle.STOP_EVENT.equals( event.getType() ) ) {
+                        stop();
+                    }
+                }
+            } );
+        }
+    }
+    
+    /**
+     * Invoked when the manager is stopped: serializes the sessions that are still queued
+     * for asynchronous serialization, stops the serialization threads and unregisters the metrics mbean.
+     */
+    void stop() {
+        setAsyncSerialization( 0, 0, false );
+        setMetrics( 0 );
+    }
+    
+    /**
+     * Specifies if sessions shall be written with the raw utf-8 writer instead
+     * of the aalto stream writer, see {@link XMLBinding#setRawUTF8Writer(boolean)}.
+     * 
+     * @param rawUTF8Writer <code>true</code> if the raw utf-8 writer shall be used.
+     */
+    public void setRawUTF8Writer( final boolean rawUTF8Writer ) {
+        _xmlBinding.setRawUTF8Writer( rawUTF8Writer );
+    }
+    
+    /**
+     * Specifies if sessions shall be written in the binary format instead of xml,
+     * see {@link XMLBinding#setBinaryFormat(boolean)}. Sessions in both formats are read.
+     * 
+     * @param binaryFormat <code>true</code> if the binary format shall be written.
+     */
+    public void setBinaryFormat( final boolean binaryFormat ) {
+        _xmlBinding.setBinaryFormat( binaryFormat );
+    }
+    
+    /**
+     * Specifies if a header with the format version, the enabled features and a checksum shall be
+     * prepended to the serialized sessions, see {@link XMLPayloadHeader}. Sessions with and
+     * without header are read, so this should be enabled when all nodes are able to read the header.
+     * 
+     * @param payloadHeader <code>true</code> if the header shall be written.
+     */
+    public void setPayloadHeader( final boolean payloadHeader ) {
+        _payloadHeader = payloadHeader;
+    }
+    
+    /**
+     * Specifies if sessions shall be compressed with deflate (fastest level) and the preset
+     * dictionary shipped with this library, see {@link XMLCompressor}. This also compresses
+     * small sessions well, as the common vocabulary of serialized sessions is already known.
+     * The compressed sessions have a payload header (see {@link #setPayloadHeader(boolean)}),
+     * the compression of the {@link SerializingTranscoder} is disabled.
+     * 
+     * @param compression <code>true</code> if sessions shall be compressed.
+     */
+    public void setCompression( final boolean compression ) {
+        setCompressor( compression ? XMLCompressor.withDefaultDictionary() : null );
+    }
+    
+    /**
+     * Enables the compression (see {@link #setCompression(boolean)}) with a dictionary trained from sample
+     * sessions, see {@link XMLCompressor#main(String[])}. All nodes must use the same dictionary.
+     * 
+     * @param dictionary the dictionary file.
+     * @throws IOException if the dictionary cannot be read.
+     */
+    public void setCompressionDictionary( final File dictionary ) throws IOException {
+        setCompressor( new XMLCompressor( XMLCompressor.readFully( new FileInputStream( dictionary ) ), Deflater.BEST_SPEED ) );
+    }
+    
+    private void setCompressor( final XMLCompressor compressor ) {
+        _compressor = compressor;
+        setCompressionThreshold( compressor != null ? Integer.MAX_VALUE : DEFAULT_COMPRESSION_THRESHOLD );
+    }
+    
+    /**
+     * The statistics of the compression, or <code>null</code> if it's not enabled.
+     */
+    public CompressionStatistics getCompressionStatistics() {
+        final XMLCompressor compressor = _compressor;
+        return compressor != null ? new CompressionStatistics( compressor ) : null;
+    }
+    
+    /**
+     * Specifies that large session attributes shall be stored only once in the given store under the hash
+     * of their serialized content, the sessions only contain the key. This is meant for large attributes that
+     * are the same in many sessions and are not modified (e.g. a catalog snapshot), so only the attributes with
+     * the given names or with values of classes annotated with {@link XMLSharedAttribute} are shared,
+     * see {@link XMLBinding#setSharedAttributes(XMLBlobStore, Collection, int, int)}.
+     * 
+     * @param store the store for the shared attributes (e.g. backed by memcached), <code>null</code> disables this.
+     * @param attributeNames the names of the attributes that may be shared, may be <code>null</code>.
+     * @param minSize the min size of a serialized attribute in bytes to be stored separately.
+     * @param cacheSize the max number of shared attributes cached by this node.
+     */
+    public void setSharedAttributes( final XMLBlobStore store, final Collection<String> attributeNames,
+            final int minSize, final int cacheSize ) {
+        _xmlBinding.setSharedAttributes( store, attributeNames, minSize, cacheSize );
+    }
+    
+    /**
+     * Enables a cache of the recently deserialized sessions, so that a session that is deserialized again
+     * with the same content (e.g. on subsequent requests) is not parsed again, see {@link XMLNearCache}.
+     * Each deserialization still returns a new session instance.
+     * 
+     * @param maxBytes the max total size of the cached sessions (the serialized sessions and the estimated size
+     *  of their parsed form), <code>0</code> disables the cache.
+     */
+    public void setNearCache( final long maxBytes ) {
+        _nearCache = maxBytes > 0 ? new XMLNearCache( maxBytes ) : null;
+    }
+    
+    /**
+     * The statistics of the near cache, or <code>null</code> if it's not enabled.
+     */
+    public NearCacheStatistics getNearCacheStatistics() {
+        final XMLNearCache nearCache = _nearCache;
+        return nearCache != null ? new NearCacheStatistics( nearCache ) : null;
+    }
+    
+    /**
+     * Enables statistics of the serialized sessions per class and per session attribute
+     * (count, time, bytes, objects), so that it's visible which attributes make sessions large or slow.
+     * The statistics are registered as mbean ({@link XMLSerializationMetricsMBean}) named
+     * <code>de.javakaffee.web.msm:type=XMLSerializationMetrics,engine=&lt;engine&gt;,host=&lt;host&gt;,context=&lt;context&gt;</code>,
+     * the mbean is unregistered when the manager is stopped.
+     * Bytes are only measured with the raw utf-8 writer or the binary format.
+     * 
+     * @param sampleRate the share of sessions that are measured (e.g. <code>0.01</code> for every 100th session),
+     *  <code>0</code> disables the metrics.
+     */
+    public synchronized void setMetrics( final double sampleRate ) {
+        if ( _metrics != null ) {
+            _xmlBinding.setMetrics( null );
+            _metrics = null;
+            unregisterMBean();
+        }
+        if ( sampleRate > 0 ) {
+            final XMLSerializationMetrics metrics = new XMLSerializationMetrics( sampleRate );
+            _metrics = metrics;
+            _xmlBinding.setMetrics( metrics );
+            registerMBean( metrics );
+        }
+    }
+    
+    /**
+     * The statistics per class and session attribute, or <code>null</code> if they're not enabled.
+     */
+    public XMLSerializationMetrics getMetrics() {
+        return _metrics;
+    }
+    
+    /**
+     * Registers a listener that is notified about the progress of each serialization,
+     * see {@link XMLBinding#addSerializationListener(XMLSerializationListener)}.
+     * 
+     * @param listener the listener to add.
+     */
+    public void addSerializationListener( final XMLSerializationListener listener ) {
+        _xmlBinding.addSerializationListener( listener );
+    }
+    
+    /**
+     * Specifies that sessions whose serialization takes longer than the given threshold shall be logged
+     * with the time and size of each attribute, see {@link XMLSlowSerializationLogger}.
+     * 
+     * @param thresholdMillis the threshold in milliseconds, <code>0</code> disables the logging.
+     */
+    public synchronized void setSlowSerializationThreshold( final long thresholdMillis ) {
+        if ( _slowSerializationLogger != null ) {
+            _xmlBinding.removeSerializationListener( _slowSerializationLogger );
+            _slowSerializationLogger = null;
+        }
+        if ( thresholdMillis > 0 ) {
+            _slowSerializationLogger = new XMLSlowSerializationLogger( thresholdMillis );
+            _xmlBinding.addSerializationListener( _slowSerializationLogger );
+        }
+    }
+    
+    private void registerMBean( final XMLSerializationMetrics metrics ) {
+        try {
+            final ObjectName name = newMetricsName();
+            ManagementFactory.getPlatformMBeanServer().registerMBean( metrics, name );
+            _metricsName = name;
+        } catch ( final JMException e ) {
+            _log.log( Level.WARNING, "Could not register the serialization metrics mbean", e );
+        }
+    }
+    
+    private void unregisterMBean() {
+        final ObjectName name = _metricsName;
+        if ( name == null ) {
+            return;
+        }
+        _metricsName = null;
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if ( server.isRegistered( name ) ) {
+                server.unregisterMBean( name );
+            }
+        } catch ( final JMException e ) {
+            _log.log( Level.WARNING, "Could not unregister the serialization metrics mbean", e );
+        }
+    }
+    
+    /**
+     * The name of the metrics mbean, containing the engine, host and context of the manager,
+     * as the context name alone is only unique within its host.
+     */
+    private ObjectName newMetricsName() throws JMException {
+        final StringBuilder sb = new StringBuilder( "de.javakaffee.web.msm:type=XMLSerializationMetrics" );
+        final Container context = _manager != null ? _manager.getContainer() : null;
+        if ( context != null ) {
+            final Container host = context.getParent();
+            final Container engine = host != null ? host.getParent() : null;
+            if ( engine != null ) {
+                sb.append( ",engine=" ).append( ObjectName.quote( String.valueOf( engine.getName() ) ) );
+            }
+            if ( host != null ) {
+                sb.append( ",host=" ).append( ObjectName.quote( String.valueOf( host.getName() ) ) );
+            }
+            sb.append( ",context=" ).append( ObjectName.quote( String.valueOf( context.getName() ) ) );
+        } else {
+            sb.append( ",context=" ).append( ObjectName.quote( "transcoder-" + System.identityHashCode( this ) ) );
+        }
+        return new ObjectName( sb.toString() );
+    }
+    
+    /**
+     * Specifies if primitive fields with default values shall be omitted from
+     * the serialized sessions, see {@link XMLBinding#setOmitDefaultValues(boolean)}.
+     * 
+     * @param omitDefaultValues <code>true</code> if default values shall be omitted.
+     */
+    public void setOmitDefaultValues( final boolean omitDefaultValues ) {
+        _xmlBinding.setOmitDefaultValues( omitDefaultValues );
+    }
+    
+    /**
+     * Specifies if objects shall be written positionally, see {@link XMLBinding#setPositionalLayout(boolean)}.
+     * 
+     * @param positionalLayout <code>true</code> if objects shall be written positionally.
+     */
+    public void setPositionalLayout( final boolean positionalLayout ) {
+        _xmlBinding.setPositionalLayout( positionalLayout );
+    }
+    
+    /**
+     * Specifies if maps with string keys shall be written compactly, see {@link XMLBinding#setCompactStringMaps(boolean)}.
+     * 
+     * @param compactStringMaps <code>true</code> if string keyed maps shall be written compactly.
+     */
+    public void setCompactStringMaps( final boolean compactStringMaps ) {
+        _xmlBinding.setCompactStringMaps( compactStringMaps );
+    }
+    
+    /**
+     * Specifies if collections and maps shall be copied before they're serialized,
+     * see {@link XMLBinding#setCopyCollectionsForSerialization(boolean)}.
+     * 
+     * @param copyCollectionsForSerialization <code>true</code> if collections shall be copied.
+     */
+    public void setCopyCollectionsForSerialization( final boolean copyCollectionsForSerialization ) {
+        _xmlBinding.setCopyCollectionsForSerialization( copyCollectionsForSerialization );
+    }
+    
+    /**
+     * Specifies after how many invocations the format of a class shall be optimized,
+     * see {@link XMLBinding#setOptimizationThreshold(long)}.
+     * 
+     * @param invocations the threshold, <code>0</code> disables the optimization.
+     */
+    public void setOptimizationThreshold( final long invocations ) {
+        _xmlBinding.setOptimizationThreshold( invocations );
+    }
+    
+    /**
+     * Specifies a file that records the classes of the serialized objects. The formats of the
+     * classes already contained in the file are created in the background right away, so that
+     * after a restart they are available before the first sessions are (de)serialized.
+     * Classes seen for the first time are added to the file with a delay of some seconds.
+     * 
+     * @param file the manifest file, it's created if it does not exist.
+     */
+    public void setClassManifest( final File file ) {
+        final XMLClassManifest classManifest = new XMLClassManifest( file, CLASS_MANIFEST_SAVE_DELAY );
+        _xmlBinding.setClassManifest( classManifest );
+        classManifest.warmUp( _xmlBinding, Runtime.getRuntime().availableProcessors() );
+    }
+    
+    /**
+     * Enables asynchronous serialization via {@link #serializeAsync(String, Object)}.
+     * Sessions are serialized by the given number of threads, saves of a session
+     * that is still queued replace the queued state, so that only the latest state is serialized.
+     * When the manager is stopped the queued sessions are serialized and the threads are stopped.
+     * 
+     * @param threads the number of serialization threads, <code>0</code> disables asynchronous serialization.
+     * @param queueCapacity the max number of sessions waiting to be serialized.
+     * @param inlineWhenFull <code>true</code> if a session shall be serialized by the calling thread
+     *  when the queue is full, <code>false</code> if the calling thread shall wait until there's space in the queue.
+     */
+    public void setAsyncSerialization( final int threads, final int queueCapacity, final boolean inlineWhenFull ) {
+        final XMLWriteBehindExecutor previous = _writeBehindExecutor;
+        _writeBehindExecutor = threads > 0
+            ? new XMLWriteBehindExecutor( new XMLWriteBehindExecutor.Encoder() {
+                public byte[] encode( final Object object ) {
+                    return serialize( object );
+                }
+            }, threads, queueCapacity, inlineWhenFull )
+            : null;
+        if ( previous != null ) {
+            previous.shutdown();
+        }
+    }
+    
+    /**
+     * Serializes the given session asynchronously if enabled via {@link #setAsyncSerialization(int, int, boolean)},
+     * otherwise the session is serialized right away. If the session with the given id is still waiting to
+     * be serialized the waiting state is replaced and the same future is returned.
+     * 
+     * @param sessionId the id of the session.
+     * @param session the session to serialize.
+     * @return the future providing the serialized session.
+     * @throws InterruptedException if the thread was interrupted while waiting for space in the queue.
+     */
+    public Future<byte[]> serializeAsync( final String sessionId, final Object session ) throws InterruptedException {
+        final XMLWriteBehindExecutor executor = _writeBehindExecutor;
+        if ( executor == null ) {
+            final FutureTask<byte[]> result = new FutureTask<byte[]>( new Callable<byte[]>() {
+                public byte[] call() {
+                    return serialize( session );
+                }
+            } );
+            result.run();
+            return result;
+        }
+        return executor.submit( sessionId, session );
+    }
+    
+    /**
+     * The statistics of the asynchronous serialization, or <code>null</code> if it's not enabled.
+     */
+    public AsyncStatistics getAsyncStatistics() {
+        final XMLWriteBehindExecutor executor = _writeBehindExecutor;
+        return executor != null ? new AsyncStatistics( executor ) : null;
+    }
+    
+    /**
+     * Specifies the number of threads used by {@link #serializeAll(Map)} and {@link #deserializeAll(Map)},
+     * including the calling thread. The default is the number of available processors.
+     * 
+     * @param batchThreads the number of threads.
+     */
+    public void setBatchThreads( final int batchThreads ) {
+        _batchThreads = batchThreads;
+    }
+    
+    /**
+     * Serializes the given sessions with several threads, e.g. to move all sessions
+     * of a node that is shut down. Each thread reuses its buffer for the sessions it serializes.
+     * 
+     * @param sessions the sessions to serialize by their id.
+     * @return the serialized sessions by their id, the sessions that could not be serialized
+     *  and the throughput.
+     */
+    public BatchResult<byte[]> serializeAll( final Map<String, ?> sessions ) {
+        return XMLBatchExecutor.execute( sessions, new XMLBatchExecutor.Processor<Object, byte[]>() {
+            public byte[] process( final Object session, final XMLBatchExecutor.Context context ) {
+                if ( context.buffer == null ) {
+                    context.buffer = ByteBuffer.allocate( 4096 );
+                }
+                context.buffer.clear();
+                final ByteBuffer buffer = write( session, context.buffer );
+                context.buffer = buffer;
+                final byte[] result = new byte[buffer.remaining()];
+                buffer.get( result );
+                context.bytes += result.length;
+                return result;
+            }
+        }, _batchThreads );
+    }
+    
+    /**
+     * Deserializes the given sessions with several threads, e.g. to load the sessions
+     * of a failed node.
+     * 
+     * @param sessions the serialized sessions by their id.
+     * @return the deserialized sessions by their id, the sessions that could not be deserialized
+     *  and the throughput.
+     */
+    public BatchResult<Object> deserializeAll( final Map<String, byte[]> sessions ) {
+        return XMLBatchExecutor.execute( sessions, new XMLBatchExecutor.Processor<byte[], Object>() {
+            public Object process( final byte[] data, final XMLBatchExecutor.Context context ) {
+                context.bytes += data.length;
+                return deserialize( data );
+            }
+        }, _batchThreads );
+    }
+    
+    /**
+     * The binding used by this transcoder, e.g. to register custom formats.
+     */
+    XMLBinding getXMLBinding() {
+        return _xmlBinding;
     }
     
     /**
@@ -72,25 +511,45 @@ public class AaltoTranscoder extends SerializingTranscoder {
      */
     @Override
     protected byte[] serialize( final Object o ) {
+        /* the buffer returned by write is a larger one if the pooled buffer was too small,
+         * this one is returned to the pool so that large sessions don't grow it again next time.
+         * If the serialization fails the pooled buffer is returned.
+         */
+        ByteBuffer buffer = BUFFER_POOL.acquire();
+        try {
+            buffer = write( o, buffer );
+            final byte[] result = new byte[buffer.remaining()];
+            buffer.get( result );
+            return result;
+        } finally {
+            BUFFER_POOL.release( buffer );
+        }
+    }
+
+    private ByteBuffer write( final Object o, final ByteBuffer buffer ) {
         if ( o == null ) {
             throw new NullPointerException( "Can't serialize null" );
         }
-        
-        XMLWriter writer = null;
         try {
-            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            writer = new XMLBinding().newXMLWriter(bos);
-            writer.write( o );
-            writer.flush();
-            //getLogger().info( "Returning deserialized:\n" + new String(bos.toByteArray()) );
-            return bos.toByteArray();
+            final Object event = XMLFlightRecorder.SERIALIZATION.begin();
+            final int[] objectCount = event != null ? new int[1] : null;
+            final XMLCompressor compressor = _compressor;
+            final ByteBuffer result = _payloadHeader || compressor != null
+                ? XMLPayloadHeader.write( _xmlBinding, compressor, o, buffer, objectCount )
+                : _xmlBinding.write( o, buffer, true, objectCount );
+            if ( event != null ) {
+                XMLFlightRecorder.SERIALIZATION.commit( event, getSessionId( o ), (long) result.remaining(),
+                        objectCount[0] );
+            }
+            return result;
         } catch ( final Exception e ) {
             _log.log( Level.SEVERE, "caught exception", e );
             throw new IllegalArgumentException( "Non-serializable object", e );
-        } finally {
-            writer.close();
         }
+    }
 
+    private static String getSessionId( final Object o ) {
+        return o instanceof StandardSession ? ( (StandardSession) o ).getIdInternal() : null;
     }
 
     /**
@@ -104,11 +563,27 @@ public class AaltoTranscoder extends SerializingTranscoder {
     protected Object deserialize( final byte[] in ) {
         XMLReader reader = null;
         try {
-            getLogger().info( "Starting to deserialize:\n" + new String(in) );
-            final ByteArrayInputStream bis = new ByteArrayInputStream( in );
-            reader = new XMLBinding().newXMLReader( bis );
-            final MemcachedBackupSession session = reader.read();
+            if ( getLogger().isDebugEnabled() ) {
+                getLogger().debug( "Starting to deserialize:\n" + new String( in, "UTF-8" ) );
+            }
+            final Object event = XMLFlightRecorder.DESERIALIZATION.begin();
+            final int[] objectCount = event != null ? new int[1] : null;
+            final XMLNearCache nearCache = _nearCache;
+            final MemcachedBackupSession session;
+            if ( nearCache != null ) {
+                session = nearCache.read( _xmlBinding, _compressor, in, objectCount );
+            } else {
+                reader = XMLPayloadHeader.newXMLReader( _xmlBinding, _compressor, in, 0, in.length );
+                session = reader.read();
+                if ( objectCount != null ) {
+                    objectCount[0] = reader.getObjectCount();
+                }
+            }
             session.setManager( _manager );
+            if ( event != null ) {
+                XMLFlightRecorder.DESERIALIZATION.commit( event, session.getIdInternal(), (long) in.length,
+                        objectCount[0] );
+            }
             return session;
         } catch ( final RuntimeException e ) {
             getLogger().warn( "Caught Exception decoding %d bytes of data", in.length, e );
@@ -116,9 +591,276 @@ public class AaltoTranscoder extends SerializingTranscoder {
         } catch ( final XMLStreamException e ) {
             getLogger().warn( "Caught Exception decoding %d bytes of data", in.length, e );
             throw new RuntimeException( e );
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
         } finally {
-            reader.close();
+            if ( reader != null ) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Statistics of the asynchronous serialization, a snapshot taken when it's created.
+     */
+    public static final class AsyncStatistics {
+        
+        private final int _queueDepth;
+        private final long _submitted;
+        private final long _coalesced;
+        private final long _inline;
+        private final long _executed;
+        private final long _waitNanos;
+        private final long _maxWaitNanos;
+        
+        AsyncStatistics( final XMLWriteBehindExecutor executor ) {
+            _queueDepth = executor.getQueueDepth();
+            _submitted = executor.getSubmitted();
+            _coalesced = executor.getCoalesced();
+            _inline = executor.getInline();
+            _executed = executor.getExecuted();
+            _waitNanos = executor.getWaitNanos();
+            _maxWaitNanos = executor.getMaxWaitNanos();
+        }
+        
+        /**
+         * The number of sessions currently waiting to be serialized.
+         */
+        public int getQueueDepth() {
+            return _queueDepth;
+        }
+        
+        public long getSubmitted() {
+            return _submitted;
+        }
+        
+        /**
+         * The number of saves that replaced the state of an already queued session.
+         */
+        public long getCoalesced() {
+            return _coalesced;
+        }
+        
+        /**
+         * The number of sessions serialized by the calling thread as the queue was full.
+         */
+        public long getInline() {
+            return _inline;
+        }
+        
+        /**
+         * The number of sessions serialized by the serialization threads.
+         */
+        public long getExecuted() {
+            return _executed;
+        }
+        
+        /**
+         * The average time sessions waited in the queue, in nanoseconds.
+         */
+        public long getAverageWaitNanos() {
+            return _executed > 0 ? _waitNanos / _executed : 0;
+        }
+        
+        public long getMaxWaitNanos() {
+            return _maxWaitNanos;
+        }
+        
+        @Override
+        public String toString() {
+            return "AsyncStatistics [queueDepth=" + _queueDepth + ", submitted=" + _submitted + ", coalesced=" + _coalesced
+                    + ", inline=" + _inline + ", executed=" + _executed + ", averageWaitNanos=" + getAverageWaitNanos()
+                    + ", maxWaitNanos=" + _maxWaitNanos + "]";
+        }
+        
+    }
+
+    /**
+     * The result of {@link AaltoTranscoder#serializeAll(Map)} or {@link AaltoTranscoder#deserializeAll(Map)}.
+     */
+    public static final class BatchResult<T> {
+        
+        private final Map<String, T> _results;
+        private final Map<String, Exception> _failures;
+        private final long _bytes;
+        private final long _timeNanos;
+        private final int _threads;
+        
+        BatchResult( final Map<String, T> results, final Map<String, Exception> failures, final long bytes,
+                final long timeNanos, final int threads ) {
+            _results = Collections.unmodifiableMap( results );
+            _failures = Collections.unmodifiableMap( failures );
+            _bytes = bytes;
+            _timeNanos = timeNanos;
+            _threads = threads;
+        }
+        
+        /**
+         * The (de)serialized sessions by their id.
+         */
+        public Map<String, T> getResults() {
+            return _results;
+        }
+        
+        /**
+         * The exceptions of the sessions that could not be (de)serialized by their id.
+         */
+        public Map<String, Exception> getFailures() {
+            return _failures;
+        }
+        
+        /**
+         * The number of serialized bytes written or read.
+         */
+        public long getBytes() {
+            return _bytes;
+        }
+        
+        public long getTimeNanos() {
+            return _timeNanos;
+        }
+        
+        public int getThreads() {
+            return _threads;
+        }
+        
+        public double getSessionsPerSecond() {
+            return _timeNanos > 0 ? ( _results.size() + _failures.size() ) * 1e9 / _timeNanos : 0;
+        }
+        
+        public double getBytesPerSecond() {
+            return _timeNanos > 0 ? _bytes * 1e9 / _timeNanos : 0;
+        }
+        
+        @Override
+        public String toString() {
+            return "BatchResult [sessions=" + _results.size() + ", failures=" + _failures.size() + ", bytes=" + _bytes
+                    + ", timeMillis=" + _timeNanos / 1000000 + ", threads=" + _threads
+                    + ", sessionsPerSecond=" + (long) getSessionsPerSecond() + "]";
+        }
+        
+    }
+
+    /**
+     * Statistics of the compression, a snapshot taken when it's created.
+     */
+    public static final class CompressionStatistics {
+        
+        private final long _calls;
+        private final long _bytesIn;
+        private final long _bytesOut;
+        private final long _cpuNanos;
+        
+        CompressionStatistics( final XMLCompressor compressor ) {
+            _calls = compressor.getCalls();
+            _bytesIn = compressor.getBytesIn();
+            _bytesOut = compressor.getBytesOut();
+            _cpuNanos = compressor.getCpuNanos();
+        }
+        
+        /**
+         * The number of compressed sessions.
+         */
+        public long getCalls() {
+            return _calls;
+        }
+        
+        /**
+         * The number of uncompressed bytes.
+         */
+        public long getBytesIn() {
+            return _bytesIn;
+        }
+        
+        /**
+         * The number of compressed bytes (uncompressed if compression did not reduce the size).
+         */
+        public long getBytesOut() {
+            return _bytesOut;
         }
+        
+        /**
+         * The compressed size relative to the uncompressed size, e.g. <code>0.2</code>.
+         */
+        public double getRatio() {
+            return _bytesIn > 0 ? (double) _bytesOut / _bytesIn : 1;
+        }
+        
+        /**
+         * The cpu time spent for compression in nanoseconds.
+         */
+        public long getCpuNanos() {
+            return _cpuNanos;
+        }
+        
+        public long getAverageCpuNanos() {
+            return _calls > 0 ? _cpuNanos / _calls : 0;
+        }
+        
+        @Override
+        public String toString() {
+            return "CompressionStatistics [calls=" + _calls + ", bytesIn=" + _bytesIn + ", bytesOut=" + _bytesOut
+                    + ", ratio=" + getRatio() + ", averageCpuNanos=" + getAverageCpuNanos() + "]";
+        }
+        
+    }
+
+    /**
+     * Statistics of the near cache, a snapshot taken when it's created.
+     */
+    public static final class NearCacheStatistics {
+        
+        private final long _hits;
+        private final long _misses;
+        private final long _evictions;
+        private final long _size;
+        private final int _count;
+        
+        NearCacheStatistics( final XMLNearCache nearCache ) {
+            _hits = nearCache.getHits();
+            _misses = nearCache.getMisses();
+            _evictions = nearCache.getEvictions();
+            _size = nearCache.getSize();
+            _count = nearCache.getCount();
+        }
+        
+        public long getHits() {
+            return _hits;
+        }
+        
+        public long getMisses() {
+            return _misses;
+        }
+        
+        public double getHitRatio() {
+            return _hits + _misses > 0 ? (double) _hits / ( _hits + _misses ) : 0;
+        }
+        
+        public long getEvictions() {
+            return _evictions;
+        }
+        
+        /**
+         * The total size of the cached sessions in bytes, the serialized sessions and the estimated size of
+         * their parsed form.
+         */
+        public long getSize() {
+            return _size;
+        }
+        
+        /**
+         * The number of cached sessions.
+         */
+        public int getCount() {
+            return _count;
+        }
+        
+        @Override
+        public String toString() {
+            return "NearCacheStatistics [hits=" + _hits + ", misses=" + _misses + ", evictions=" + _evictions
+                    + ", size=" + _size + ", count=" + _count + "]";
+        }
+        
     }
 
 }
@@ -16,34 +16,110 @@
  */
 package de.javakaffee.web.msm.serializer.javolution;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import net.spy.memcached.transcoders.Transcoder;
 
 import org.apache.catalina.Manager;
 
 import de.javakaffee.web.msm.TranscoderFactory;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.FormatRegistration;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLFormat;
 
 /**
  * Creates {@link XStreamTranscoder} instances.
+ * <p>
+ * Custom {@link XMLFormat}s can be registered programmatically via {@link #registerFormat(Class, XMLFormat, boolean)}
+ * and {@link #addFormatProvider(XMLFormatProvider)}, additionally {@link XMLFormatProvider}s
+ * are loaded via the {@link ServiceLoader}. Custom formats are preferred over the built-in formats,
+ * programmatically registered formats are preferred over the ones loaded via the {@link ServiceLoader}.
+ * </p>
  * 
  * @author Martin Grotzke (martin.grotzke@freiheit.com) (initial creation)
  */
 public class AaltoTranscoderFactory implements TranscoderFactory {
 
+    private static final Logger LOG = Logger.getLogger( AaltoTranscoderFactory.class.getName() );
+
+    private final List<FormatRegistration> _formatRegistrations = new CopyOnWriteArrayList<FormatRegistration>();
+    private final List<XMLFormatProvider> _formatProviders = new CopyOnWriteArrayList<XMLFormatProvider>();
+    private volatile boolean _copyCollectionsForSerialization;
+
     /**
      * {@inheritDoc}
      */
     @Override
     public Transcoder<Object> createTranscoder( final Manager manager ) {
-        return new AaltoTranscoder( manager );
+        final AaltoTranscoder transcoder = new AaltoTranscoder( manager );
+        transcoder.setCopyCollectionsForSerialization( _copyCollectionsForSerialization );
+        final XMLBinding binding = transcoder.getXMLBinding();
+        for ( final FormatRegistration registration : _formatRegistrations ) {
+            binding.addFormatRegistration( registration );
+        }
+        for ( final XMLFormatProvider provider : _formatProviders ) {
+            binding.addFormatProvider( provider );
+        }
+        for ( final XMLFormatProvider provider : loadFormatProviders() ) {
+            binding.addFormatProvider( provider );
+        }
+        return transcoder;
     }
 
     /**
-     * {@inheritDoc}
+     * Registers a custom format for the transcoders created afterwards, see
+     * {@link XMLBinding#registerFormat(Class, XMLFormat, boolean)}.
      */
-    @Override
-    public void setCopyCollectionsForSerialization( final boolean arg0 ) {
-        // TODO Auto-generated method stub
-        
+    public <T> void registerFormat( final Class<T> type, final XMLFormat<T> format, final boolean includeSubtypes ) {
+        if ( type == null || format == null ) {
+            throw new NullPointerException( "The type and the format must not be null." );
+        }
+        _formatRegistrations.add( new FormatRegistration( type, format, includeSubtypes ) );
+    }
+
+    /**
+     * Adds a provider of custom formats for the transcoders created afterwards, see
+     * {@link XMLBinding#addFormatProvider(XMLFormatProvider)}.
+     */
+    public void addFormatProvider( final XMLFormatProvider provider ) {
+        if ( provider == null ) {
+            throw new NullPointerException( "The provider must not be null." );
+        }
+        _formatProviders.add( provider );
+    }
+
+    /**
+     * Loads the {@link XMLFormatProvider}s registered via the {@link ServiceLoader},
+     * using the context class loader. Providers that cannot be loaded are skipped.
+     */
+    static List<XMLFormatProvider> loadFormatProviders() {
+        final List<XMLFormatProvider> result = new ArrayList<XMLFormatProvider>();
+        final Iterator<XMLFormatProvider> iter = ServiceLoader.load( XMLFormatProvider.class ).iterator();
+        while ( true ) {
+            try {
+                if ( !iter.hasNext() ) {
+                    break;
+                }
+                result.add( iter.next() );
+            } catch ( final ServiceConfigurationError e ) {
+                LOG.log( Level.WARNING, "Could not load XMLFormatProvider.", e );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Specifies if the transcoders created afterwards shall copy collections and maps
+     * before they're serialized, see {@link XMLBinding#setCopyCollectionsForSerialization(boolean)}.
+     */
+    public void setCopyCollectionsForSerialization( final boolean copyCollectionsForSerialization ) {
+        _copyCollectionsForSerialization = copyCollectionsForSerialization;
     }
 
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} that reads the remaining bytes of a {@link ByteBuffer}
+ * (without changing the position of the provided buffer). This is only
+ * needed for direct buffers, heap buffers are read from their backing array.
+ * 
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer _buffer;
+
+    ByteBufferInputStream( final ByteBuffer buffer ) {
+        _buffer = buffer.duplicate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() {
+        return _buffer.hasRemaining()
+            ? _buffer.get() & 0xff
+            : -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read( final byte[] b, final int off, final int len ) {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( !_buffer.hasRemaining() ) {
+            return -1;
+        }
+        final int count = Math.min( len, _buffer.remaining() );
+        _buffer.get( b, off, count );
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available() {
+        return _buffer.remaining();
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link OutputStream} that writes into a {@link ByteBuffer}, starting at its
+ * current position. If the buffer is too small it's replaced by a larger one
+ * of the same kind (direct or heap), so {@link #getByteBuffer()} must be used
+ * to get hold of the written bytes.
+ * 
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+    private ByteBuffer _buffer;
+
+    /**
+     * @param buffer the buffer to write to, must not be read-only.
+     */
+    public ByteBufferOutputStream( final ByteBuffer buffer ) {
+        _buffer = buffer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( final int b ) {
+        ensureRemaining( 1 );
+        _buffer.put( (byte) b );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( final byte[] b, final int off, final int len ) {
+        ensureRemaining( len );
+        _buffer.put( b, off, len );
+    }
+
+    private void ensureRemaining( final int length ) {
+        if ( _buffer.remaining() < length ) {
+            final int capacity = Math.max( _buffer.capacity() * 2, _buffer.position() + length );
+            final ByteBuffer buffer = _buffer.isDirect()
+                ? ByteBuffer.allocateDirect( capacity )
+                : ByteBuffer.allocate( capacity );
+            _buffer.flip();
+            buffer.put( _buffer );
+            _buffer = buffer;
+        }
+    }
+
+    /**
+     * Returns the buffer that was written to (which is not the one provided
+     * to the constructor if it had to grow), so that a grown buffer can be reused
+     * e.g. via a {@link ByteBufferPool}. The buffer is flipped, so that it's
+     * ready for reading, which means that it also contains any bytes that were
+     * in front of the initial position. This must only be invoked once, when
+     * writing is finished.
+     * 
+     * @return the flipped buffer.
+     */
+    public ByteBuffer getByteBuffer() {
+        _buffer.flip();
+        return _buffer;
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A simple pool of {@link ByteBuffer}s that can be used with
+ * {@link XMLBinding#write(Object, ByteBuffer)}. Buffers that had to grow while
+ * writing are pooled with their new size (the buffer returned by <code>write</code>
+ * must be released), so that the pool adapts to the size of the serialized sessions.
+ * Buffers larger than the max capacity are not pooled, so that a few huge sessions
+ * don't keep their buffers alive.
+ * 
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ByteBufferPool {
+
+    private final Queue<ByteBuffer> _buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger _size = new AtomicInteger();
+    private final int _initialCapacity;
+    private final int _maxPooled;
+    private final int _maxCapacity;
+    private final boolean _direct;
+
+    /**
+     * @param initialCapacity the capacity of newly allocated buffers.
+     * @param maxPooled the max number of buffers that are kept.
+     * @param direct specifies if direct buffers shall be allocated.
+     */
+    public ByteBufferPool( final int initialCapacity, final int maxPooled, final boolean direct ) {
+        this( initialCapacity, maxPooled, Integer.MAX_VALUE, direct );
+    }
+
+    /**
+     * @param initialCapacity the capacity of newly allocated buffers.
+     * @param maxPooled the max number of buffers that are kept.
+     * @param maxCapacity the max capacity of buffers that are kept, larger buffers are dropped on release.
+     * @param direct specifies if direct buffers shall be allocated.
+     */
+    public ByteBufferPool( final int initialCapacity, final int maxPooled, final int maxCapacity, final boolean direct ) {
+        _initialCapacity = initialCapacity;
+        _maxPooled = maxPooled;
+        _maxCapacity = maxCapacity;
+        _direct = direct;
+    }
+
+    /**
+     * Returns a cleared buffer, either one from the pool or a newly allocated one.
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer result = _buffers.poll();
+        if ( result != null ) {
+            _size.decrementAndGet();
+            result.clear();
+            return result;
+        }
+        return _direct
+            ? ByteBuffer.allocateDirect( _initialCapacity )
+            : ByteBuffer.allocate( _initialCapacity );
+    }
+
+    /**
+     * Returns the given buffer (or a duplicate of it) to the pool, it must not be used afterwards.
+     */
+    public void release( final ByteBuffer buffer ) {
+        if ( buffer.isDirect() != _direct || buffer.isReadOnly() || buffer.capacity() > _maxCapacity ) {
+            return;
+        }
+        if ( _size.incrementAndGet() <= _maxPooled ) {
+            _buffers.offer( buffer );
+        } else {
+            _size.decrementAndGet();
+        }
+    }
+
+}
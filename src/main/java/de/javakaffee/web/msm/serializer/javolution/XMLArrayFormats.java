@@ -19,7 +19,6 @@ package de.javakaffee.web.msm.serializer.javolution;
 import java.lang.reflect.Array;
 
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
 
 import de.javakaffee.web.msm.serializer.javolution.XMLBinding.InputElement;
 import de.javakaffee.web.msm.serializer.javolution.XMLBinding.OutputElement;
@@ -56,11 +55,10 @@ public class XMLArrayFormats {
         @Override
         public final void write( final boolean[] array, final OutputElement output ) throws XMLStreamException {
             output.setAttribute( "length", array.length );
-            final XMLStreamWriter streamWriter = output.getStreamWriter();
             for ( final boolean item : array ) {
-                streamWriter.writeStartElement( "i.d.t" );
+                output.writeStartElement( "i.d.t" );
                 output.setAttribute( "v", item );
-                streamWriter.writeEndElement();
+                output.writeEndElement();
             }
         }
 
@@ -90,11 +88,10 @@ public class XMLArrayFormats {
         @Override
         public final void write( final byte[] array, final OutputElement output ) throws XMLStreamException {
             output.setAttribute( "length", array.length );
-            final XMLStreamWriter streamWriter = output.getStreamWriter();
             for ( final byte item : array ) {
-                streamWriter.writeStartElement( "i" );
+                output.writeStartElement( "i" );
                 output.setAttribute( "v", item );
-                streamWriter.writeEndElement();
+                output.writeEndElement();
             }
         }
 
@@ -124,11 +121,10 @@ public class XMLArrayFormats {
         @Override
         public final void write( final char[] array, final OutputElement output ) throws XMLStreamException {
             output.setAttribute( "length", array.length );
-            final XMLStreamWriter streamWriter = output.getStreamWriter();
             for ( final char item : array ) {
-                streamWriter.writeStartElement( "i" );
+                output.writeStartElement( "i" );
                 output.setAttribute( "v", item );
-                streamWriter.writeEndElement();
+                output.writeEndElement();
             }
         }
 
@@ -158,11 +154,10 @@ public class XMLArrayFormats {
         @Override
         public final void write( final short[] array, final OutputElement output ) throws XMLStreamException {
             output.setAttribute( "length", array.length );
-            final XMLStreamWriter streamWriter = output.getStreamWriter();
             for ( final short item : array ) {
-                streamWriter.writeStartElement( "i" );
+                output.writeStartElement( "i" );
                 output.setAttribute( "v", item );
-                streamWriter.writeEndElement();
+                output.writeEndElement();
             }
         }
 
@@ -192,11 +187,10 @@ public class XMLArrayFormats {
         @Override
         public final void write( final int[] array, final OutputElement output ) throws XMLStreamException {
             output.setAttribute( "length", array.length );
-            final XMLStreamWriter streamWriter = output.getStreamWriter();
             for ( final int item : array ) {
-                streamWriter.writeStartElement( "i" );
+                output.writeStartElement( "i" );
                 output.setAttribute( "v", item );
-                streamWriter.writeEndElement();
+                output.writeEndElement();
             }
         }
 
@@ -226,11 +220,10 @@ public class XMLArrayFormats {
         @Override
         public final void write( final long[] array, final OutputElement output ) throws XMLStreamException {
             output.setAttribute( "length", array.length );
-            final XMLStreamWriter streamWriter = output.getStreamWriter();
             for ( final long item : array ) {
-                streamWriter.writeStartElement( "i" );
+                output.writeStartElement( "i" );
                 output.setAttribute( "v", item );
-                streamWriter.writeEndElement();
+                output.writeEndElement();
             }
         }
 
@@ -260,11 +253,10 @@ public class XMLArrayFormats {
         @Override
         public final void write( final float[] array, final OutputElement output ) throws XMLStreamException {
             output.setAttribute( "length", array.length );
-            final XMLStreamWriter streamWriter = output.getStreamWriter();
             for ( final float item : array ) {
-                streamWriter.writeStartElement( "i" );
+                output.writeStartElement( "i" );
                 output.setAttribute( "v", item );
-                streamWriter.writeEndElement();
+                output.writeEndElement();
             }
         }
 
@@ -294,11 +286,10 @@ public class XMLArrayFormats {
         @Override
         public final void write( final double[] array, final OutputElement output ) throws XMLStreamException {
             output.setAttribute( "length", array.length );
-            final XMLStreamWriter streamWriter = output.getStreamWriter();
             for ( final double item : array ) {
-                streamWriter.writeStartElement( "i" );
+                output.writeStartElement( "i" );
                 output.setAttribute( "v", item );
-                streamWriter.writeEndElement();
+                output.writeEndElement();
             }
         }
 
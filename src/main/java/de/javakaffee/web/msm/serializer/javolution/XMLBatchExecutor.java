@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes (serializes or deserializes) a batch of sessions with several threads.
+ * <p>
+ * The threads don't get a fixed share of the batch but take the next unprocessed
+ * item when they're done with the previous one, so that a thread that got small
+ * sessions doesn't idle while another one still works on large ones. The calling
+ * thread takes part in the processing. Each thread keeps its {@link Context}
+ * (e.g. the buffer sessions are written to) for the whole batch, the formats are
+ * shared anyway.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLBatchExecutor {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool( XMLClassManifest.daemonThreads( "xml-batch" ) );
+
+    /**
+     * Processes a single item of a batch.
+     */
+    interface Processor<I, O> {
+        O process( I input, Context context ) throws Exception;
+    }
+
+    /**
+     * The state a thread keeps while it processes items of a batch.
+     */
+    static final class Context {
+
+        /**
+         * The buffer that can be reused for the items processed by a thread.
+         */
+        ByteBuffer buffer;
+
+        /**
+         * The number of bytes processed, must be incremented by the {@link Processor}.
+         */
+        long bytes;
+
+    }
+
+    private XMLBatchExecutor() {
+    }
+
+    /**
+     * Processes the given items with the given number of threads (including the calling thread)
+     * and returns when all items are processed.
+     */
+    static <I, O> AaltoTranscoder.BatchResult<O> execute( final Map<String, ? extends I> items, final Processor<I, O> processor, final int threads ) {
+        final long start = System.nanoTime();
+        final String[] keys = new String[items.size()];
+        final List<I> inputs = new ArrayList<I>( items.size() );
+        for ( final Map.Entry<String, ? extends I> entry : items.entrySet() ) {
+            keys[inputs.size()] = entry.getKey();
+            inputs.add( entry.getValue() );
+        }
+        final Object[] results = new Object[keys.length];
+        final AtomicInteger next = new AtomicInteger();
+
+        final int workers = Math.max( 1, Math.min( threads, keys.length ) );
+        final List<Future<Context>> futures = new ArrayList<Future<Context>>( workers - 1 );
+        for ( int i = 1; i < workers; i++ ) {
+            futures.add( EXECUTOR.submit( new Callable<Context>() {
+                public Context call() {
+                    return work( inputs, results, next, processor );
+                }
+            } ) );
+        }
+
+        long bytes = work( inputs, results, next, processor ).bytes;
+        for ( final Future<Context> future : futures ) {
+            try {
+                bytes += future.get().bytes;
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException( e );
+            } catch ( final ExecutionException e ) {
+                throw new RuntimeException( e.getCause() );
+            }
+        }
+
+        final Map<String, O> processed = new LinkedHashMap<String, O>( XMLInstantiator.capacity( keys.length ) );
+        final Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+        for ( int i = 0; i < keys.length; i++ ) {
+            if ( results[i] instanceof Failure ) {
+                failures.put( keys[i], ( (Failure) results[i] ).exception );
+            } else {
+                @SuppressWarnings( "unchecked" )
+                final O result = (O) results[i];
+                processed.put( keys[i], result );
+            }
+        }
+        return new AaltoTranscoder.BatchResult<O>( processed, failures, bytes, System.nanoTime() - start, workers );
+    }
+
+    private static <I, O> Context work( final List<I> inputs, final Object[] results,
+            final AtomicInteger next, final Processor<I, O> processor ) {
+        final Context context = new Context();
+        int i;
+        while ( ( i = next.getAndIncrement() ) < inputs.size() ) {
+            try {
+                results[i] = processor.process( inputs.get( i ), context );
+            } catch ( final Exception e ) {
+                results[i] = new Failure( e );
+            }
+        }
+        return context;
+    }
+
+    private static final class Failure {
+        final Exception exception;
+        Failure( final Exception exception ) {
+            this.exception = exception;
+        }
+    }
+
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * An {@link XMLInput} that reads the binary token stream written by the
+ * {@link XMLBinaryOutput}. Numeric attributes are returned without going
+ * through strings when they're read via the typed getters, otherwise they're
+ * converted to the same string the xml output contains.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLBinaryInput extends XMLInput {
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private final byte[] _data;
+    private final int _end;
+    private int _pos;
+
+    private final List<String> _symbols = new ArrayList<String>();
+
+    private String[] _openElements = new String[16];
+    private int _depth;
+
+    private int _eventType = XMLStreamConstants.START_DOCUMENT;
+    private String _name;
+
+    /* the attributes of the current start element
+     */
+    private int _attributeCount;
+    private String[] _attributeNames = new String[8];
+    private byte[] _attributeTypes = new byte[8];
+    private String[] _stringValues = new String[8];
+    private long[] _numberValues = new long[8];
+
+    /**
+     * @param data the serialized bytes, starting with the {@link XMLBinaryOutput#MARKER}.
+     */
+    XMLBinaryInput( final byte[] data, final int offset, final int length ) throws XMLStreamException {
+        _data = data;
+        _pos = offset;
+        _end = offset + length;
+        if ( length == 0 || data[offset] != XMLBinaryOutput.MARKER ) {
+            throw new XMLStreamException( "The input does not start with the binary format marker." );
+        }
+        _pos++;
+    }
+
+    /**
+     * Determines if the given bytes are written by the {@link XMLBinaryOutput}.
+     */
+    static boolean isBinary( final byte[] data, final int offset, final int length ) {
+        return length > 0 && data[offset] == XMLBinaryOutput.MARKER;
+    }
+
+    @Override
+    int next() throws XMLStreamException {
+        if ( _eventType == XMLStreamConstants.END_DOCUMENT ) {
+            throw new XMLStreamException( "No more events, reached the end of the document.", getLocation() );
+        }
+        _attributeCount = 0;
+        final byte token = readByte();
+        switch ( token ) {
+            case XMLBinaryOutput.START_ELEMENT:
+                _name = readSymbol();
+                if ( _depth == _openElements.length ) {
+                    final String[] openElements = new String[_depth * 2];
+                    System.arraycopy( _openElements, 0, openElements, 0, _depth );
+                    _openElements = openElements;
+                }
+                _openElements[_depth++] = _name;
+                readAttributes();
+                return _eventType = XMLStreamConstants.START_ELEMENT;
+            case XMLBinaryOutput.END_ELEMENT:
+                if ( _depth == 0 ) {
+                    throw new XMLStreamException( "End element without start element.", getLocation() );
+                }
+                _name = _openElements[--_depth];
+                return _eventType = XMLStreamConstants.END_ELEMENT;
+            case XMLBinaryOutput.END_DOCUMENT:
+                _name = null;
+                return _eventType = XMLStreamConstants.END_DOCUMENT;
+            default:
+                throw new XMLStreamException( "Unexpected token " + token, getLocation() );
+        }
+    }
+
+    private void readAttributes() throws XMLStreamException {
+        while ( _pos < _end && _data[_pos] >= XMLBinaryOutput.STRING && _data[_pos] <= XMLBinaryOutput.SYMBOL ) {
+            final byte type = _data[_pos++];
+            if ( _attributeCount == _attributeNames.length ) {
+                growAttributes();
+            }
+            final int i = _attributeCount++;
+            _attributeTypes[i] = type;
+            _attributeNames[i] = readSymbol();
+            _stringValues[i] = null;
+            switch ( type ) {
+                case XMLBinaryOutput.STRING:
+                    _stringValues[i] = readString();
+                    break;
+                case XMLBinaryOutput.SYMBOL:
+                    _stringValues[i] = readSymbol();
+                    break;
+                case XMLBinaryOutput.LONG:
+                    final long v = readVarLong();
+                    _numberValues[i] = ( v >>> 1 ) ^ -( v & 1 );
+                    break;
+                case XMLBinaryOutput.FLOAT:
+                    _numberValues[i] = readInt();
+                    break;
+                default:
+                    _numberValues[i] = ( (long) readInt() << 32 ) | ( readInt() & 0xffffffffL );
+            }
+        }
+    }
+
+    private void growAttributes() {
+        final int size = _attributeNames.length * 2;
+        final String[] names = new String[size];
+        System.arraycopy( _attributeNames, 0, names, 0, _attributeCount );
+        _attributeNames = names;
+        final byte[] types = new byte[size];
+        System.arraycopy( _attributeTypes, 0, types, 0, _attributeCount );
+        _attributeTypes = types;
+        final String[] strings = new String[size];
+        System.arraycopy( _stringValues, 0, strings, 0, _attributeCount );
+        _stringValues = strings;
+        final long[] numbers = new long[size];
+        System.arraycopy( _numberValues, 0, numbers, 0, _attributeCount );
+        _numberValues = numbers;
+    }
+
+    @Override
+    int nextTag() throws XMLStreamException {
+        final int eventType = next();
+        if ( eventType == XMLStreamConstants.END_DOCUMENT ) {
+            throw new XMLStreamException( "Expected a start or end element, but reached the end of the document." );
+        }
+        return eventType;
+    }
+
+    @Override
+    int getEventType() {
+        return _eventType;
+    }
+
+    @Override
+    String getLocalName() {
+        if ( _name == null ) {
+            throw new IllegalStateException( "Not positioned on an element." );
+        }
+        return _name;
+    }
+
+    @Override
+    int getAttributeCount() {
+        return _attributeCount;
+    }
+
+    @Override
+    String getAttributeLocalName( final int index ) {
+        return _attributeNames[index];
+    }
+
+    @Override
+    String getAttributeValue( final int index ) {
+        switch ( _attributeTypes[index] ) {
+            case XMLBinaryOutput.LONG:
+                return String.valueOf( _numberValues[index] );
+            case XMLBinaryOutput.FLOAT:
+                return String.valueOf( Float.intBitsToFloat( (int) _numberValues[index] ) );
+            case XMLBinaryOutput.DOUBLE:
+                return String.valueOf( Double.longBitsToDouble( _numberValues[index] ) );
+            default:
+                return _stringValues[index];
+        }
+    }
+
+    @Override
+    String getAttributeValue( final String localName ) {
+        final int index = indexOf( localName );
+        return index >= 0 ? getAttributeValue( index ) : null;
+    }
+
+    private int indexOf( final String localName ) {
+        for ( int i = 0; i < _attributeCount; i++ ) {
+            if ( _attributeNames[i].equals( localName ) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    int getIntAttribute( final String localName, final int defaultValue ) {
+        final int index = indexOf( localName );
+        if ( index >= 0 && _attributeTypes[index] == XMLBinaryOutput.LONG ) {
+            return (int) _numberValues[index];
+        }
+        return super.getIntAttribute( localName, defaultValue );
+    }
+
+    @Override
+    long getLongAttribute( final String localName, final long defaultValue ) {
+        final int index = indexOf( localName );
+        if ( index >= 0 && _attributeTypes[index] == XMLBinaryOutput.LONG ) {
+            return _numberValues[index];
+        }
+        return super.getLongAttribute( localName, defaultValue );
+    }
+
+    @Override
+    float getFloatAttribute( final String localName, final float defaultValue ) {
+        final int index = indexOf( localName );
+        if ( index >= 0 && _attributeTypes[index] == XMLBinaryOutput.FLOAT ) {
+            return Float.intBitsToFloat( (int) _numberValues[index] );
+        }
+        return super.getFloatAttribute( localName, defaultValue );
+    }
+
+    @Override
+    double getDoubleAttribute( final String localName, final double defaultValue ) {
+        final int index = indexOf( localName );
+        if ( index >= 0 && _attributeTypes[index] == XMLBinaryOutput.DOUBLE ) {
+            return Double.longBitsToDouble( _numberValues[index] );
+        }
+        return super.getDoubleAttribute( localName, defaultValue );
+    }
+
+    private String readSymbol() throws XMLStreamException {
+        final long index = readVarLong();
+        if ( index == 0 ) {
+            /* names are compared by identity by the formats, like the ones read by aalto
+             */
+            final String symbol = readString().intern();
+            _symbols.add( symbol );
+            return symbol;
+        }
+        if ( index > _symbols.size() ) {
+            throw new XMLStreamException( "Unknown symbol " + index, getLocation() );
+        }
+        return _symbols.get( (int) index - 1 );
+    }
+
+    private String readString() throws XMLStreamException {
+        final long length = readVarLong();
+        if ( length > _end - _pos ) {
+            throw new XMLStreamException( "Unexpected end of input.", getLocation() );
+        }
+        final String result = new String( _data, _pos, (int) length, UTF_8 );
+        _pos += length;
+        return result;
+    }
+
+    private long readVarLong() throws XMLStreamException {
+        long result = 0;
+        for ( int shift = 0; shift < 64; shift += 7 ) {
+            final byte b = readByte();
+            result |= (long) ( b & 0x7f ) << shift;
+            if ( ( b & 0x80 ) == 0 ) {
+                return result;
+            }
+        }
+        throw new XMLStreamException( "Malformed varint.", getLocation() );
+    }
+
+    private int readInt() throws XMLStreamException {
+        if ( _end - _pos < 4 ) {
+            throw new XMLStreamException( "Unexpected end of input.", getLocation() );
+        }
+        return ( _data[_pos++] & 0xff ) << 24 | ( _data[_pos++] & 0xff ) << 16 | ( _data[_pos++] & 0xff ) << 8 | ( _data[_pos++] & 0xff );
+    }
+
+    private byte readByte() throws XMLStreamException {
+        if ( _pos >= _end ) {
+            throw new XMLStreamException( "Unexpected end of input.", getLocation() );
+        }
+        return _data[_pos++];
+    }
+
+    @Override
+    Location getLocation() {
+        final int offset = _pos;
+        return new Location() {
+            public int getLineNumber() {
+                return -1;
+            }
+            public int getColumnNumber() {
+                return -1;
+            }
+            public int getCharacterOffset() {
+                return offset;
+            }
+            public String getPublicId() {
+                return null;
+            }
+            public String getSystemId() {
+                return null;
+            }
+            @Override
+            public String toString() {
+                return "[offset " + offset + "]";
+            }
+        };
+    }
+
+    @Override
+    void close() {
+        _symbols.clear();
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * An {@link XMLOutput} that writes a compact binary token stream instead of xml,
+ * read by the {@link XMLBinaryInput}. The {@link XMLBinding.XMLFormat}s are not
+ * aware of this, they write the same elements and attributes as for xml.
+ * <p>
+ * The stream starts with the {@link #MARKER} byte (which is not a valid start of
+ * an xml document), so that readers can tell both formats apart. Then follow
+ * the tokens, each starting with its type byte:
+ * <ul>
+ * <li>{@link #START_ELEMENT}: the name</li>
+ * <li>{@link #END_ELEMENT}</li>
+ * <li>{@link #STRING}, {@link #LONG}, {@link #FLOAT}, {@link #DOUBLE}, {@link #SYMBOL}: an
+ * attribute of the previous start element, the name and the value. Ints and longs are
+ * written as zigzag varints, floats and doubles as their raw IEEE 754 bits (big endian),
+ * strings as varint length followed by the utf-8 bytes.</li>
+ * <li>{@link #END_DOCUMENT}</li>
+ * </ul>
+ * Element and attribute names and class names are written as symbols: the first
+ * occurrence in a document is written as <code>0</code> followed by the string,
+ * later occurrences as the number of the symbol (starting with <code>1</code>).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLBinaryOutput extends XMLOutput {
+
+    static final byte MARKER = 0x01;
+
+    static final byte END_DOCUMENT = 0;
+    static final byte START_ELEMENT = 1;
+    static final byte END_ELEMENT = 2;
+    static final byte STRING = 3;
+    static final byte LONG = 4;
+    static final byte FLOAT = 5;
+    static final byte DOUBLE = 6;
+    static final byte SYMBOL = 7;
+
+    private final OutputStream _out;
+    private final byte[] _buffer;
+    private int _pos;
+    private long _flushed;
+
+    private final Map<String, Integer> _symbols = new HashMap<String, Integer>();
+    private int _depth;
+
+    XMLBinaryOutput( final OutputStream out ) {
+        this( out, 8192 );
+    }
+
+    XMLBinaryOutput( final OutputStream out, final int bufferSize ) {
+        _out = out;
+        _buffer = new byte[bufferSize];
+    }
+
+    @Override
+    void writeStartDocument() throws XMLStreamException {
+        writeByte( MARKER );
+    }
+
+    @Override
+    void writeEndDocument() throws XMLStreamException {
+        while ( _depth > 0 ) {
+            writeEndElement();
+        }
+        writeByte( END_DOCUMENT );
+    }
+
+    @Override
+    void writeStartElement( final String localName ) throws XMLStreamException {
+        writeByte( START_ELEMENT );
+        writeSymbol( localName );
+        _depth++;
+    }
+
+    @Override
+    void writeEndElement() throws XMLStreamException {
+        if ( _depth == 0 ) {
+            throw new XMLStreamException( "No open element to close." );
+        }
+        _depth--;
+        writeByte( END_ELEMENT );
+    }
+
+    @Override
+    void writeAttribute( final String localName, final String value ) throws XMLStreamException {
+        if ( "class".equals( localName ) ) {
+            writeByte( SYMBOL );
+            writeSymbol( localName );
+            writeSymbol( value );
+        } else {
+            writeByte( STRING );
+            writeSymbol( localName );
+            writeString( value );
+        }
+    }
+
+    @Override
+    void writeAttribute( final String localName, final int value ) throws XMLStreamException {
+        writeAttribute( localName, (long) value );
+    }
+
+    @Override
+    void writeAttribute( final String localName, final long value ) throws XMLStreamException {
+        writeByte( LONG );
+        writeSymbol( localName );
+        writeVarLong( ( value << 1 ) ^ ( value >> 63 ) );
+    }
+
+    @Override
+    void writeAttribute( final String localName, final float value ) throws XMLStreamException {
+        writeByte( FLOAT );
+        writeSymbol( localName );
+        writeInt( Float.floatToRawIntBits( value ) );
+    }
+
+    @Override
+    void writeAttribute( final String localName, final double value ) throws XMLStreamException {
+        writeByte( DOUBLE );
+        writeSymbol( localName );
+        final long bits = Double.doubleToRawLongBits( value );
+        writeInt( (int) ( bits >>> 32 ) );
+        writeInt( (int) bits );
+    }
+
+    private void writeSymbol( final String symbol ) throws XMLStreamException {
+        final Integer index = _symbols.get( symbol );
+        if ( index != null ) {
+            writeVarLong( index.intValue() );
+        } else {
+            writeByte( (byte) 0 );
+            writeString( symbol );
+            _symbols.put( symbol, _symbols.size() + 1 );
+        }
+    }
+
+    private void writeString( final String value ) throws XMLStreamException {
+        final int length = value.length();
+        int utf8Length = 0;
+        for ( int i = 0; i < length; i++ ) {
+            final char c = value.charAt( i );
+            if ( c < 0x80 ) {
+                utf8Length++;
+            } else if ( c < 0x800 ) {
+                utf8Length += 2;
+            } else if ( Character.isHighSurrogate( c ) && i + 1 < length && Character.isLowSurrogate( value.charAt( i + 1 ) ) ) {
+                utf8Length += 4;
+                i++;
+            } else if ( Character.isHighSurrogate( c ) || Character.isLowSurrogate( c ) ) {
+                throw new XMLStreamException( "Unpaired surrogate character (0x" + Integer.toHexString( c ) + ") in text to output" );
+            } else {
+                utf8Length += 3;
+            }
+        }
+        writeVarLong( utf8Length );
+        for ( int i = 0; i < length; i++ ) {
+            ensureCapacity( 4 );
+            final char c = value.charAt( i );
+            if ( c < 0x80 ) {
+                _buffer[_pos++] = (byte) c;
+            } else if ( c < 0x800 ) {
+                _buffer[_pos++] = (byte) ( 0xc0 | ( c >> 6 ) );
+                _buffer[_pos++] = (byte) ( 0x80 | ( c & 0x3f ) );
+            } else if ( Character.isHighSurrogate( c ) ) {
+                final int cp = Character.toCodePoint( c, value.charAt( ++i ) );
+                _buffer[_pos++] = (byte) ( 0xf0 | ( cp >> 18 ) );
+                _buffer[_pos++] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+                _buffer[_pos++] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3f ) );
+                _buffer[_pos++] = (byte) ( 0x80 | ( cp & 0x3f ) );
+            } else {
+                _buffer[_pos++] = (byte) ( 0xe0 | ( c >> 12 ) );
+                _buffer[_pos++] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+                _buffer[_pos++] = (byte) ( 0x80 | ( c & 0x3f ) );
+            }
+        }
+    }
+
+    private void writeVarLong( final long value ) throws XMLStreamException {
+        ensureCapacity( 10 );
+        long v = value;
+        while ( ( v & ~0x7fL ) != 0 ) {
+            _buffer[_pos++] = (byte) ( ( v & 0x7f ) | 0x80 );
+            v >>>= 7;
+        }
+        _buffer[_pos++] = (byte) v;
+    }
+
+    private void writeInt( final int value ) throws XMLStreamException {
+        ensureCapacity( 4 );
+        _buffer[_pos++] = (byte) ( value >>> 24 );
+        _buffer[_pos++] = (byte) ( value >>> 16 );
+        _buffer[_pos++] = (byte) ( value >>> 8 );
+        _buffer[_pos++] = (byte) value;
+    }
+
+    private void writeByte( final byte b ) throws XMLStreamException {
+        ensureCapacity( 1 );
+        _buffer[_pos++] = b;
+    }
+
+    private void ensureCapacity( final int length ) throws XMLStreamException {
+        if ( _pos + length > _buffer.length ) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws XMLStreamException {
+        if ( _pos > 0 ) {
+            try {
+                _out.write( _buffer, 0, _pos );
+            } catch ( final IOException e ) {
+                throw new XMLStreamException( e );
+            }
+            _flushed += _pos;
+            _pos = 0;
+        }
+    }
+
+    @Override
+    long getBytesWritten() {
+        return _flushed + _pos;
+    }
+
+    @Override
+    void flush() throws XMLStreamException {
+        flushBuffer();
+        try {
+            _out.flush();
+        } catch ( final IOException e ) {
+            throw new XMLStreamException( e );
+        }
+    }
+
+    /**
+     * Flushes the buffered output, the underlying stream is not closed.
+     */
+    @Override
+    void close() throws XMLStreamException {
+        flushBuffer();
+    }
+
+}
@@ -16,21 +16,35 @@
  */
 package de.javakaffee.web.msm.serializer.javolution;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -40,6 +54,7 @@ import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
 
 import org.apache.commons.codec.EncoderException;
+import org.codehaus.stax2.io.Stax2ByteArraySource;
 
 import com.fasterxml.aalto.stax.InputFactoryImpl;
 import com.fasterxml.aalto.stax.OutputFactoryImpl;
@@ -62,6 +77,10 @@ public class XMLBinding {
 
     private static final String ID = "__id";
     private static final String REF = "ref";
+    /* the key of a compactly written map entry, written on the value element
+     */
+    static final String KEY = "__key";
+    private static final String ENTRY = "e";
     
     static {
         _outputFactory = (OutputFactoryImpl) com.fasterxml.aalto.stax.OutputFactoryImpl.newInstance();
@@ -71,25 +90,62 @@ public class XMLBinding {
         _inputFactory.configureForSpeed();
     }
     
+    /* marks classes without custom format in _customFormats
+     */
+    private static final XMLFormat<Object> NO_CUSTOM_FORMAT = new XMLFormat<Object>() {
+        @Override
+        public void write( final Object o, final OutputElement out ) throws XMLStreamException {
+            throw new UnsupportedOperationException();
+        }
+        @Override
+        public void read( final InputElement in, final Object obj ) throws XMLStreamException {
+            throw new UnsupportedOperationException();
+        }
+    };
+    
+    private volatile boolean _rawUTF8Writer;
+    private volatile boolean _binaryFormat;
+    private volatile boolean _omitDefaultValues;
+    private volatile boolean _positionalLayout;
+    private volatile boolean _compactStringMaps;
+    private volatile boolean _copyCollections;
+    private volatile long _optimizationThreshold;
+    private volatile XMLClassManifest _classManifest;
+    private volatile XMLSharedAttributes _sharedAttributes;
+    private volatile XMLSerializationMetrics _metrics;
+    private final List<XMLSerializationListener> _listeners = new CopyOnWriteArrayList<XMLSerializationListener>();
+    private volatile XMLSerializationListener _listener;
+    
+    private final List<FormatRegistration> _formatRegistrations = new CopyOnWriteArrayList<FormatRegistration>();
+    private final List<XMLFormatProvider> _formatProviders = new CopyOnWriteArrayList<XMLFormatProvider>();
+    private final Map<Class<?>, XMLFormat<?>> _customFormats = new ConcurrentHashMap<Class<?>, XMLFormat<?>>();
+    private volatile boolean _hasCustomFormats;
+    private final ConcurrentMap<Class<?>, XMLTieredFormat<?>> _tieredFormats = new ConcurrentHashMap<Class<?>, XMLTieredFormat<?>>();
+    
     public XMLBinding() {
     }
     
     class XMLWriter implements Closeable {
 
-        private final XMLStreamWriter _streamWriter;
+        private final XMLOutput _output;
+        private boolean _shareAttributes = true;
 
         /**
          * @param streamWriter
          */
         public XMLWriter( final XMLStreamWriter streamWriter ) {
-            _streamWriter = streamWriter;
+            this( new XMLOutput.StaxOutput( streamWriter ) );
+        }
+
+        XMLWriter( final XMLOutput output ) {
+            _output = output;
         }
 
         /**
          */
         public void close() {
             try {
-                _streamWriter.close();
+                _output.close();
             } catch ( final Exception e ) {
                 _log.warning( "Could not close XmlStreamWriter: " + e );
             }
@@ -97,14 +153,37 @@ public class XMLBinding {
 
         /**
          * @param o
+         * @return the number of objects that were written.
          * @throws XMLStreamException 
          */
-        public void write( final Object o ) throws XMLStreamException {
+        public int write( final Object o ) throws XMLStreamException {
 
-            _streamWriter.writeStartDocument();
-            new OutputElement( _streamWriter ).add( o, "root" );
+            _output.writeStartDocument();
+            final OutputElement outputElement = new OutputElement( _output );
+            if ( !_shareAttributes ) {
+                outputElement._sharedAttributes = null;
+            }
+            /* a shared attribute is written as separate document while the document
+             * referencing it is written, it's measured as part of that document
+             */
+            final XMLSerializationListener listener = _shareAttributes ? _listener : null;
+            if ( _shareAttributes ) {
+                final XMLSerializationMetrics metrics = _metrics;
+                if ( metrics != null && metrics.sample() ) {
+                    outputElement._metrics = metrics;
+                }
+                if ( listener != null ) {
+                    outputElement._listener = listener;
+                    listener.startDocument( o );
+                }
+            }
+            outputElement.add( o, "root" );
             
-            _streamWriter.writeEndDocument();
+            _output.writeEndDocument();
+            if ( listener != null ) {
+                listener.endDocument( o, _output.getBytesWritten() );
+            }
+            return outputElement._idSeq;
         }
 
         /**
@@ -112,27 +191,36 @@ public class XMLBinding {
          * 
          */
         public void flush() throws XMLStreamException {
-            _streamWriter.flush();
+            _output.flush();
         }
         
     }
     
     class XMLReader implements Closeable {
 
-        private final XMLStreamReader _streamReader;
+        private final XMLInput _input;
+        private int _objectCount;
 
         /**
          * @param streamWriter
          */
         public XMLReader( final XMLStreamReader streamReader ) {
-            _streamReader = streamReader;
+            this( new XMLInput.StaxInput( streamReader ) );
+        }
+
+        XMLReader( final XMLInput input ) {
+            _input = input;
+        }
+
+        XMLInput getInput() {
+            return _input;
         }
 
         /**
          */
         public void close() {
             try {
-                _streamReader.close();
+                _input.close();
             } catch ( final Exception e ) {
                 _log.warning( "Could not close XmlStreamWriter: " + e );
             }
@@ -145,10 +233,93 @@ public class XMLBinding {
          */
         @SuppressWarnings( "unchecked" )
         public <T> T read() throws XMLStreamException {
-            final InputElement inputElement = new InputElement( _streamReader );
-            return (T) inputElement.get( "root" );
+            final InputElement inputElement = new InputElement( _input );
+            final T result = (T) inputElement.get( "root" );
+            _objectCount = inputElement._referenceMap.size();
+            return result;
         }
         
+        /**
+         * The number of objects of the document that was read last by {@link #read()}.
+         */
+        int getObjectCount() {
+            return _objectCount;
+        }
+        
+    }
+    
+    /**
+     * A reader that is fed with the serialized bytes incrementally, e.g. from a
+     * non-blocking io callback as the response arrives, so that the io thread
+     * never blocks on a stream. The bytes are collected until {@link #endOfInput()},
+     * then they're read like by {@link XMLBinding#newXMLReader(byte[], int, int)}
+     * (so both xml and the binary format are supported). They're not parsed
+     * while they're fed, as the formats pull their content recursively and
+     * cannot be suspended until more input arrives.
+     */
+    class AsyncXMLReader implements Closeable {
+
+        private byte[] _buffer = new byte[512];
+        private int _length;
+        private boolean _endOfInput;
+        private XMLReader _reader;
+
+        AsyncXMLReader() {
+        }
+
+        /**
+         * Feeds the next chunk of bytes to this reader. This never blocks.
+         * 
+         * @throws XMLStreamException if input is fed after {@link #endOfInput()}.
+         */
+        public void feedInput( final byte[] buf, final int offset, final int length ) throws XMLStreamException {
+            if ( _endOfInput ) {
+                throw new XMLStreamException( "Input was fed after the end of input." );
+            }
+            if ( _length + length > _buffer.length ) {
+                final byte[] buffer = new byte[Math.max( _buffer.length * 2, _length + length )];
+                System.arraycopy( _buffer, 0, buffer, 0, _length );
+                _buffer = buffer;
+            }
+            System.arraycopy( buf, offset, _buffer, _length, length );
+            _length += length;
+        }
+
+        /**
+         * Signals that no more input is available, afterwards the object can be {@link #read()}.
+         */
+        public void endOfInput() {
+            _endOfInput = true;
+        }
+
+        /**
+         * @return <code>true</code> if {@link #endOfInput()} was not yet signaled.
+         */
+        public boolean needMoreInput() {
+            return !_endOfInput;
+        }
+
+        /**
+         * Reads the object from the input that was fed.
+         * 
+         * @throws XMLStreamException if {@link #endOfInput()} was not yet signaled or the document is not complete.
+         */
+        public <T> T read() throws XMLStreamException {
+            if ( !_endOfInput ) {
+                throw new XMLStreamException( "The end of input was not yet signaled, more input must be fed." );
+            }
+            _reader = newXMLReader( _buffer, 0, _length );
+            return _reader.<T>read();
+        }
+
+        /**
+         */
+        public void close() {
+            if ( _reader != null ) {
+                _reader.close();
+            }
+        }
+
     }
 
     /**
@@ -157,22 +328,558 @@ public class XMLBinding {
      * @throws XMLStreamException 
      */
     public XMLWriter newXMLWriter( final OutputStream out ) throws XMLStreamException {
-        // TODO Auto-generated method stub
+        if ( _binaryFormat ) {
+            return newBinaryXMLWriter( out );
+        }
+        if ( _rawUTF8Writer ) {
+            return newRawUTF8XMLWriter( out );
+        }
         final XMLStreamWriter streamWriter = _outputFactory.createXMLStreamWriter( out );
         return new XMLWriter( streamWriter );
     }
     
+    /**
+     * Creates a writer that writes utf-8 encoded xml directly to the given stream, bypassing
+     * the StAX writer, see {@link XMLUtf8Output}. The output can be read by {@link #newXMLReader(InputStream)}.
+     */
+    public XMLWriter newRawUTF8XMLWriter( final OutputStream out ) {
+        return new XMLWriter( new XMLUtf8Output( out ) );
+    }
+    
+    /**
+     * Creates a writer that writes the binary token stream instead of xml, see {@link XMLBinaryOutput}.
+     * The output can be read by {@link #newXMLReader(InputStream)} and the other <code>newXMLReader</code>
+     * methods, as they recognize the binary format by its first byte.
+     */
+    public XMLWriter newBinaryXMLWriter( final OutputStream out ) {
+        return new XMLWriter( new XMLBinaryOutput( out ) );
+    }
+    
+    /**
+     * Specifies if {@link #newXMLWriter(OutputStream)} (and therefore also {@link #write(Object, ByteBuffer)})
+     * shall write the binary token stream instead of xml, see {@link #newBinaryXMLWriter(OutputStream)}.
+     * This takes precedence over {@link #setRawUTF8Writer(boolean)}. Readers support both formats,
+     * so the format can be switched while serialized objects of the other format are still around.
+     * 
+     * @param binaryFormat <code>true</code> if the binary format shall be written, default is <code>false</code>.
+     */
+    public void setBinaryFormat( final boolean binaryFormat ) {
+        _binaryFormat = binaryFormat;
+    }
+    
+    boolean isBinaryFormat() {
+        return _binaryFormat;
+    }
+    
+    /**
+     * Specifies if {@link #newXMLWriter(OutputStream)} (and therefore also {@link #write(Object, ByteBuffer)})
+     * shall use the raw utf-8 writer instead of the aalto stream writer.
+     * 
+     * @param rawUTF8Writer <code>true</code> if the raw utf-8 writer shall be used, default is <code>false</code>.
+     */
+    public void setRawUTF8Writer( final boolean rawUTF8Writer ) {
+        _rawUTF8Writer = rawUTF8Writer;
+    }
+    
+    /**
+     * Specifies if primitive fields that have their default value (<code>0</code>, <code>false</code>
+     * or <code>'\u0000'</code>) shall be omitted when objects are written by the {@link XMLReflectionFormat}.
+     * When such objects are read, these fields keep the default value, as objects are created without
+     * running any constructor or field initializer of their class.
+     * 
+     * @param omitDefaultValues <code>true</code> if default values shall be omitted, default is <code>false</code>.
+     */
+    public void setOmitDefaultValues( final boolean omitDefaultValues ) {
+        _omitDefaultValues = omitDefaultValues;
+    }
+    
+    /**
+     * Specifies if objects bound by the {@link XMLReflectionFormat} shall be written positionally:
+     * the field names and the layout fingerprint of a class are written once per document
+     * (with the first object of this class), the fields are then written with short
+     * names denoting their position. If the reading side has the same layout
+     * (fingerprint), fields are read by position, otherwise they're mapped by name
+     * via the field names from the document.
+     * <p>
+     * Documents written positionally can only be read by bindings that support this.
+     * </p>
+     * 
+     * @param positionalLayout <code>true</code> if objects shall be written positionally, default is <code>false</code>.
+     */
+    public void setPositionalLayout( final boolean positionalLayout ) {
+        _positionalLayout = positionalLayout;
+    }
+    
+    /**
+     * Specifies if entries of maps whose keys are all strings shall be written as a single element
+     * with the key as attribute (<code>&lt;e __key="foo" class="..."/&gt;</code>) instead of a key
+     * and a value element. The keys are interned when such maps are read.
+     * <p>
+     * Maps written compactly can only be read by bindings that support this.
+     * </p>
+     * 
+     * @param compactStringMaps <code>true</code> if string keyed maps shall be written compactly, default is <code>false</code>.
+     */
+    public void setCompactStringMaps( final boolean compactStringMaps ) {
+        _compactStringMaps = compactStringMaps;
+    }
+    
+    /**
+     * Specifies if collections and maps shall be copied before they're written, so that they can
+     * be serialized while they're modified by other threads without a {@link ConcurrentModificationException}
+     * (the copy is retried if it fails due to a concurrent modification), see {@link XMLCollectionSnapshot}.
+     * 
+     * @param copyCollections <code>true</code> if collections shall be copied, default is <code>false</code>.
+     */
+    public void setCopyCollectionsForSerialization( final boolean copyCollections ) {
+        _copyCollections = copyCollections;
+    }
+    
+    /**
+     * Specifies that large values of the maps referenced by the root object (i.e. the attributes of a session)
+     * shall be stored separately in the given store under the hash of their serialized content, so that values
+     * contained in many sessions are stored only once, see {@link XMLSharedAttributes}. Only values of the given
+     * attribute names or of classes annotated with {@link XMLSharedAttribute} are shared. Such values must not be
+     * modified, as a cached instance is shared by all objects that are read with this binding.
+     * 
+     * @param store the store for the shared values, or <code>null</code> to disable this.
+     * @param attributeNames the names of the attributes whose values may be shared, may be <code>null</code>.
+     * @param minSize the min size of a serialized value in bytes to be stored separately.
+     * @param cacheSize the max number of shared values that are cached.
+     */
+    public void setSharedAttributes( final XMLBlobStore store, final Collection<String> attributeNames,
+            final int minSize, final int cacheSize ) {
+        _sharedAttributes = store != null ? new XMLSharedAttributes( store, attributeNames, minSize, cacheSize ) : null;
+    }
+    
+    XMLSharedAttributes getSharedAttributes() {
+        return _sharedAttributes;
+    }
+    
+    /**
+     * Sets the metrics that shall collect statistics of the written objects, <code>null</code>
+     * disables the metrics.
+     */
+    void setMetrics( final XMLSerializationMetrics metrics ) {
+        _metrics = metrics;
+    }
+    
+    /**
+     * Registers a listener that is notified about the progress of each serialization,
+     * e.g. to trace slow serializations.
+     * 
+     * @param listener the listener to add.
+     */
+    public void addSerializationListener( final XMLSerializationListener listener ) {
+        _listeners.add( listener );
+        updateListener();
+    }
+    
+    /**
+     * Removes a listener registered via {@link #addSerializationListener(XMLSerializationListener)}.
+     * 
+     * @param listener the listener to remove.
+     */
+    public void removeSerializationListener( final XMLSerializationListener listener ) {
+        _listeners.remove( listener );
+        updateListener();
+    }
+    
+    private synchronized void updateListener() {
+        final XMLSerializationListener[] listeners = _listeners.toArray( new XMLSerializationListener[_listeners.size()] );
+        _listener = listeners.length == 0 ? null : listeners.length == 1 ? listeners[0] : new CompositeListener( listeners );
+    }
+    
+    /**
+     * Specifies after how many invocations the {@link XMLReflectionFormat} of a class shall be replaced
+     * by an optimized one (that accesses fields via their offsets instead of reflection), see {@link XMLTieredFormat}.
+     * The optimized format is created in the background, the current tier of the classes and the number of
+     * invocations and time spent per class until the optimization are provided by {@link #getFormatStatistics()}.
+     * <p>
+     * This must be set before the binding is used.
+     * </p>
+     * 
+     * @param invocations the threshold, <code>0</code> (the default) disables the optimization.
+     */
+    public void setOptimizationThreshold( final long invocations ) {
+        _optimizationThreshold = invocations;
+    }
+    
+    /**
+     * Sets the manifest that records the classes handled by the {@link XMLReflectionFormat}
+     * or a number format, <code>null</code> disables recording.
+     */
+    void setClassManifest( final XMLClassManifest classManifest ) {
+        _classManifest = classManifest;
+    }
+    
+    /**
+     * Returns the statistics of the classes handled by the {@link XMLReflectionFormat} if
+     * the {@link #setOptimizationThreshold(long) optimization} is enabled.
+     */
+    public Map<Class<?>, FormatStatistics> getFormatStatistics() {
+        final Map<Class<?>, FormatStatistics> result = new HashMap<Class<?>, FormatStatistics>();
+        for ( final Map.Entry<Class<?>, XMLTieredFormat<?>> entry : _tieredFormats.entrySet() ) {
+            final XMLTieredFormat<?> format = entry.getValue();
+            result.put( entry.getKey(), new FormatStatistics( format.getTier(), format.getInvocations(), format.getTimeNanos() ) );
+        }
+        return result;
+    }
+    
+    /**
+     * Returns how the instances of the classes read so far are created.
+     */
+    public static Map<Class<?>, InstantiationStrategy> getInstantiationStrategies() {
+        return XMLInstantiator.getStrategies();
+    }
+    
+    /**
+     * How the instances of a class are created when objects are read.
+     */
+    public static enum InstantiationStrategy {
+        /** via the no-arg constructor of the class */
+        CONSTRUCTOR,
+        /** without running any constructor of the class */
+        SERIALIZATION_CONSTRUCTOR,
+        /** a jdk collection or map, created directly and presized if the size is known */
+        COLLECTION_FACTORY
+    }
+    
+    /**
+     * The tier of a class, see {@link XMLBinding#setOptimizationThreshold(long)}.
+     */
+    public static enum FormatTier {
+        /** the class is handled by the reflection based format */
+        REFLECTION,
+        /** the optimized format is being created */
+        OPTIMIZING,
+        /** the class is handled by the optimized format */
+        OPTIMIZED
+    }
+    
+    /**
+     * The tier of a class and how often and how long it was handled by its format until
+     * it was optimized (afterwards the invocations are not measured).
+     */
+    public static final class FormatStatistics {
+        
+        private final FormatTier _tier;
+        private final long _invocations;
+        private final long _timeNanos;
+        
+        FormatStatistics( final FormatTier tier, final long invocations, final long timeNanos ) {
+            _tier = tier;
+            _invocations = invocations;
+            _timeNanos = timeNanos;
+        }
+        
+        public FormatTier getTier() {
+            return _tier;
+        }
+        
+        /**
+         * The number of objects read or written.
+         */
+        public long getInvocations() {
+            return _invocations;
+        }
+        
+        /**
+         * The time spent to read or write the objects in nanoseconds, including
+         * the time spent for the objects they reference.
+         */
+        public long getTimeNanos() {
+            return _timeNanos;
+        }
+        
+        @Override
+        public String toString() {
+            return _tier + " (invocations: " + _invocations + ", time: " + _timeNanos / 1000000 + " ms)";
+        }
+        
+    }
+    
+    /**
+     * Notifies several {@link XMLSerializationListener}s in the order they were registered.
+     */
+    private static final class CompositeListener implements XMLSerializationListener {
+        
+        private final XMLSerializationListener[] _listeners;
+        
+        CompositeListener( final XMLSerializationListener[] listeners ) {
+            _listeners = listeners;
+        }
+        
+        public void startDocument( final Object root ) {
+            for ( final XMLSerializationListener listener : _listeners ) {
+                listener.startDocument( root );
+            }
+        }
+        
+        public void endDocument( final Object root, final long bytesWritten ) {
+            for ( final XMLSerializationListener listener : _listeners ) {
+                listener.endDocument( root, bytesWritten );
+            }
+        }
+        
+        public void enterObject( final Object object, final int depth, final long bytesWritten ) {
+            for ( final XMLSerializationListener listener : _listeners ) {
+                listener.enterObject( object, depth, bytesWritten );
+            }
+        }
+        
+        public void exitObject( final Object object, final int depth, final long bytesWritten ) {
+            for ( final XMLSerializationListener listener : _listeners ) {
+                listener.exitObject( object, depth, bytesWritten );
+            }
+        }
+        
+        public void startAttribute( final Object key, final long bytesWritten ) {
+            for ( final XMLSerializationListener listener : _listeners ) {
+                listener.startAttribute( key, bytesWritten );
+            }
+        }
+        
+        public void endAttribute( final Object key, final long bytesWritten ) {
+            for ( final XMLSerializationListener listener : _listeners ) {
+                listener.endAttribute( key, bytesWritten );
+            }
+        }
+        
+    }
+    
+    /**
+     * Optimizes the formats of all bindings, a single daemon thread.
+     */
+    private static final class Optimizer {
+        static final Executor EXECUTOR = Executors.newSingleThreadExecutor( new ThreadFactory() {
+            public Thread newThread( final Runnable r ) {
+                final Thread thread = new Thread( r, "xml-format-optimizer" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+    
+    /**
+     * Wraps the given format into a {@link XMLTieredFormat} if it's a reflection
+     * based format and the optimization is enabled.
+     */
+    private XMLFormat<?> tiered( final Class<?> cls, final XMLFormat<?> format ) {
+        final long threshold = _optimizationThreshold;
+        if ( threshold <= 0 || format.getClass() != XMLReflectionFormat.class ) {
+            return format;
+        }
+        final XMLTieredFormat<?> tieredFormat = newTieredFormat( (XMLReflectionFormat<?>) format, threshold );
+        final XMLTieredFormat<?> existing = _tieredFormats.putIfAbsent( cls, tieredFormat );
+        return existing != null ? existing : tieredFormat;
+    }
+    
+    private static <T> XMLTieredFormat<T> newTieredFormat( final XMLReflectionFormat<T> format, final long threshold ) {
+        return new XMLTieredFormat<T>( format.getBoundClass(), format, threshold, Optimizer.EXECUTOR );
+    }
+    
     public XMLReader newXMLReader( final InputStream in ) throws XMLStreamException {
-        // TODO Auto-generated method stub
-        final XMLStreamReader streamReader = _inputFactory.createXMLStreamReader( in );
+        final PushbackInputStream pushbackIn = new PushbackInputStream( in, 1 );
+        try {
+            final int first = pushbackIn.read();
+            if ( first == XMLBinaryOutput.MARKER ) {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                bytes.write( first );
+                final byte[] buf = new byte[4096];
+                int read;
+                while ( ( read = pushbackIn.read( buf ) ) != -1 ) {
+                    bytes.write( buf, 0, read );
+                }
+                return newXMLReader( bytes.toByteArray(), 0, bytes.size() );
+            }
+            if ( first != -1 ) {
+                pushbackIn.unread( first );
+            }
+        } catch ( final IOException e ) {
+            throw new XMLStreamException( e );
+        }
+        final XMLStreamReader streamReader = _inputFactory.createXMLStreamReader( pushbackIn );
         return new XMLReader( streamReader );
     }
+    
+    XMLReader newXMLReader( final XMLInput input ) {
+        return new XMLReader( input );
+    }
+    
+    /**
+     * Creates a reader that parses the given range of the byte array directly,
+     * without copying it or wrapping it in a stream. Both xml and the binary format
+     * (see {@link #setBinaryFormat(boolean)}) are read.
+     */
+    public XMLReader newXMLReader( final byte[] in, final int offset, final int length ) throws XMLStreamException {
+        if ( XMLBinaryInput.isBinary( in, offset, length ) ) {
+            return new XMLReader( new XMLBinaryInput( in, offset, length ) );
+        }
+        final XMLStreamReader streamReader = _inputFactory.createXMLStreamReader( new Stax2ByteArraySource( in, offset, length ) );
+        return new XMLReader( streamReader );
+    }
+    
+    /**
+     * Creates a reader for the remaining bytes of the given buffer. Heap buffers
+     * are parsed directly from their backing array, direct buffers are streamed.
+     * The position of the given buffer is not changed.
+     */
+    public XMLReader newXMLReader( final ByteBuffer in ) throws XMLStreamException {
+        if ( in.hasArray() ) {
+            return newXMLReader( in.array(), in.arrayOffset() + in.position(), in.remaining() );
+        }
+        return newXMLReader( new ByteBufferInputStream( in ) );
+    }
+    
+    /**
+     * Writes the given object into the given buffer, starting at its current position.
+     * If the buffer is too small, a larger one of the same kind (direct or heap) is
+     * allocated.
+     * 
+     * @param o the object to serialize.
+     * @param buffer the buffer to write to, e.g. from a {@link ByteBufferPool}.
+     * @return the buffer that was written to, which is the given one unless it had to grow
+     *  (flipped, ready for reading).
+     * @throws XMLStreamException
+     */
+    public ByteBuffer write( final Object o, final ByteBuffer buffer ) throws XMLStreamException {
+        return write( o, buffer, true );
+    }
+    
+    /**
+     * @param shareAttributes <code>false</code> if values shall not be shared even if
+     *  {@link #setSharedAttributes(XMLBlobStore, Collection, int, int)} is enabled (e.g. for the shared value itself).
+     */
+    ByteBuffer write( final Object o, final ByteBuffer buffer, final boolean shareAttributes ) throws XMLStreamException {
+        return write( o, buffer, shareAttributes, null );
+    }
+    
+    /**
+     * @param objectCount receives the number of written objects at index <code>0</code>, may be <code>null</code>.
+     */
+    ByteBuffer write( final Object o, final ByteBuffer buffer, final boolean shareAttributes,
+            final int[] objectCount ) throws XMLStreamException {
+        final ByteBufferOutputStream out = new ByteBufferOutputStream( buffer );
+        final XMLWriter writer = newXMLWriter( out );
+        writer._shareAttributes = shareAttributes;
+        try {
+            final int objects = writer.write( o );
+            if ( objectCount != null ) {
+                objectCount[0] = objects;
+            }
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+        return out.getByteBuffer();
+    }
+    
+    /**
+     * Creates a reader that is fed with the input incrementally, see {@link AsyncXMLReader}.
+     */
+    public AsyncXMLReader newAsyncXMLReader() {
+        return new AsyncXMLReader();
+    }
+
+    /**
+     * Registers a custom format for the given type, that is preferred over the built-in formats.
+     * Formats should be registered before this binding is used.
+     * 
+     * @param type the class the format is used for.
+     * @param format the format.
+     * @param includeSubtypes specifies if the format shall also be used for subclasses/implementations
+     *      of the given type. Formats registered for the exact class are preferred, otherwise
+     *      the first registered format for a supertype is used.
+     */
+    public <T> void registerFormat( final Class<T> type, final XMLFormat<T> format, final boolean includeSubtypes ) {
+        if ( type == null || format == null ) {
+            throw new NullPointerException( "The type and the format must not be null." );
+        }
+        addFormatRegistration( new FormatRegistration( type, format, includeSubtypes ) );
+    }
+    
+    /**
+     * Registers a custom format for exactly the given class, see {@link #registerFormat(Class, XMLFormat, boolean)}.
+     */
+    public <T> void registerFormat( final Class<T> type, final XMLFormat<T> format ) {
+        registerFormat( type, format, false );
+    }
+    
+    /**
+     * Adds a provider of custom formats. Providers are asked in the order they were added,
+     * after the formats registered via {@link #registerFormat(Class, XMLFormat, boolean)}.
+     * Formats returned by a provider are cached per class.
+     */
+    public void addFormatProvider( final XMLFormatProvider provider ) {
+        if ( provider == null ) {
+            throw new NullPointerException( "The provider must not be null." );
+        }
+        _formatProviders.add( provider );
+        customFormatsChanged();
+    }
+    
+    void addFormatRegistration( final FormatRegistration registration ) {
+        _formatRegistrations.add( registration );
+        customFormatsChanged();
+    }
+    
+    private void customFormatsChanged() {
+        _customFormats.clear();
+        _hasCustomFormats = true;
+    }
+    
+    private XMLFormat<?> getCustomFormat( final Class<?> cls ) {
+        XMLFormat<?> result = _customFormats.get( cls );
+        if ( result == null ) {
+            result = findCustomFormat( cls );
+            _customFormats.put( cls, result != null ? result : NO_CUSTOM_FORMAT );
+        }
+        return result != NO_CUSTOM_FORMAT ? result : null;
+    }
+    
+    private XMLFormat<?> findCustomFormat( final Class<?> cls ) {
+        for ( final FormatRegistration registration : _formatRegistrations ) {
+            if ( registration.type == cls ) {
+                return registration.format;
+            }
+        }
+        for ( final FormatRegistration registration : _formatRegistrations ) {
+            if ( registration.includeSubtypes && registration.type.isAssignableFrom( cls ) ) {
+                return registration.format;
+            }
+        }
+        for ( final XMLFormatProvider provider : _formatProviders ) {
+            final XMLFormat<?> format = provider.getFormat( cls );
+            if ( format != null ) {
+                return format;
+            }
+        }
+        return null;
+    }
 
     @SuppressWarnings( "unchecked" )
     public <T> XMLFormat<T> getFormat(final Class<? extends T> cls) {
+        if ( _hasCustomFormats ) {
+            final XMLFormat<?> customFormat = getCustomFormat( cls );
+            if ( customFormat != null ) {
+                return (XMLFormat<T>) customFormat;
+            }
+        }
+        
+        if ( _optimizationThreshold > 0 ) {
+            final XMLFormat<?> tieredFormat = _tieredFormats.get( cls );
+            if ( tieredFormat != null ) {
+                return (XMLFormat<T>) tieredFormat;
+            }
+        }
+        
         XMLFormat<?> xmlFormat = _formats.get( cls );
         if ( xmlFormat != null ) {
-            return (XMLFormat<T>) xmlFormat;
+            if ( _classManifest != null ) {
+                _classManifest.record( cls );
+            }
+            return (XMLFormat<T>) tiered( cls, xmlFormat );
         }
         
 //        //System.out.println( "got format " + format + " for class " +  cls);
@@ -182,6 +889,9 @@ public class XMLBinding {
         if ( cls == Boolean.class ) {
             return (XMLFormat<T>) XML_BOOLEAN;
         }
+        else if ( cls == XMLSharedAttributes.Reference.class ) {
+            return (XMLFormat<T>) XMLSharedAttributes.REFERENCE_FORMAT;
+        }
         else if ( cls == String.class ) {
             return (XMLFormat<T>) XML_STRING;
         }
@@ -229,11 +939,39 @@ public class XMLBinding {
                 if ( XMLReflectionFormat.isNumberFormat( cls ) ) {
                     xmlFormat = XMLReflectionFormat.getNumberFormat( cls );
                 } else {
-                    xmlFormat = new XMLReflectionFormat( cls );
+                    if ( cls.isAnnotationPresent( XMLGenerateFormat.class ) ) {
+                        xmlFormat = loadGeneratedFormat( cls );
+                    }
+                    if ( xmlFormat == null ) {
+                        xmlFormat = new XMLReflectionFormat( cls );
+                    }
                 }
                 _formats.put( cls, xmlFormat );
             }
-            return (XMLFormat<T>) xmlFormat;
+            if ( _classManifest != null ) {
+                _classManifest.record( cls );
+            }
+            return (XMLFormat<T>) tiered( cls, xmlFormat );
+        }
+    }
+
+    /**
+     * Loads the format generated by the {@link XMLFormatProcessor} for the given class.
+     * This is done only once per class, as the format is cached afterwards.
+     *
+     * @return the generated format or <code>null</code> if it's not available.
+     */
+    static XMLFormat<?> loadGeneratedFormat( final Class<?> cls ) {
+        final String className = cls.getName();
+        final int idx = className.lastIndexOf( '.' );
+        final String formatName = className.substring( 0, idx + 1 ) + className.substring( idx + 1 ).replace( '$', '_' )
+                + XMLFormatProcessor.SUFFIX;
+        try {
+            return (XMLFormat<?>) Class.forName( formatName, true, cls.getClassLoader() ).getDeclaredConstructor().newInstance();
+        } catch ( final Exception e ) {
+            _log.log( Level.WARNING, "Could not load generated format " + formatName + " for " + className
+                    + ", using the reflection based format instead.", e );
+            return null;
         }
     }
 
@@ -260,16 +998,40 @@ public class XMLBinding {
         }
     }
     
-    static abstract class XMLFormat<T> {
+    /**
+     * A custom format registered for some type.
+     */
+    static final class FormatRegistration {
+        final Class<?> type;
+        final XMLFormat<?> format;
+        final boolean includeSubtypes;
+        FormatRegistration( final Class<?> type, final XMLFormat<?> format, final boolean includeSubtypes ) {
+            this.type = type;
+            this.format = format;
+            this.includeSubtypes = includeSubtypes;
+        }
+    }
+    
+    /**
+     * Binds objects of a certain class to/from xml. Custom formats can be registered
+     * via {@link XMLBinding#registerFormat(Class, XMLFormat, boolean)} or an {@link XMLFormatProvider}.
+     * <p>
+     * When an object is written, the <code>class</code> and the id attribute are already written
+     * when {@link #write(Object, OutputElement)} is invoked, the format writes the state
+     * of the object as attributes (which must be written first) and nested elements.
+     * When it's read, the object is created by {@link #newInstance(Class, InputElement)}
+     * (which may read attributes) and populated by {@link #read(InputElement, Object)}.
+     * </p>
+     */
+    public static abstract class XMLFormat<T> {
 
+        /**
+         * Creates the object for the given element, by default via the no-arg constructor
+         * (or, if the class doesn't have one, without running any constructor). The strategy
+         * is chosen once per class, see {@link XMLBinding#getInstantiationStrategies()}.
+         */
         protected T newInstance( final Class<T> clazz, final InputElement in ) throws XMLStreamException {
-            try {
-                return clazz.newInstance();
-            } catch ( final InstantiationException e ) {
-                throw new XMLStreamException( e );
-            } catch ( final IllegalAccessException e ) {
-                throw new XMLStreamException( e );
-            }
+            return XMLInstantiator.forClass( clazz ).newInstance( -1 );
         }
 
         /**
@@ -277,50 +1039,108 @@ public class XMLBinding {
          * @param streamWriter
          * @throws XMLStreamException 
          */
-        abstract void write( T o, OutputElement out ) throws XMLStreamException;
+        public abstract void write( T o, OutputElement out ) throws XMLStreamException;
 
-        abstract void read( final InputElement in, final T obj ) throws XMLStreamException;
+        public abstract void read( final InputElement in, final T obj ) throws XMLStreamException;
+        
+        /**
+         * The encoded names of the elements and attributes this format writes, or <code>null</code>.
+         */
+        XMLUtf8Output.Names getNames() {
+            return null;
+        }
         
     }
     
-    class OutputElement {
+    public class OutputElement {
         
         private final Map<Object, Integer> _referenceMap = new IdentityHashMap<Object, Integer>( 50 );
-        private final XMLStreamWriter _streamWriter;
+        private final XMLOutput _output;
+        private final boolean _omitDefaultValues;
+        private final boolean _positionalLayout;
+        private final boolean _compactStringMaps;
+        private final boolean _copyCollections;
+        private Map<Object, Object> _documentAttributes;
         private int _idSeq = 0;
+        private XMLSharedAttributes _sharedAttributes;
+        private int _depth;
+        private XMLSerializationMetrics _metrics;
+        private XMLSerializationListener _listener;
+        private long _attributeStartNanos;
+        private long _attributeStartBytes;
+        private int _attributeStartId;
         /**
          * @param streamWriter
          */
         public OutputElement( final XMLStreamWriter streamWriter ) {
-            _streamWriter = streamWriter;
+            this( new XMLOutput.StaxOutput( streamWriter ) );
+        }
+        
+        OutputElement( final XMLOutput output ) {
+            _output = output;
+            _omitDefaultValues = XMLBinding.this._omitDefaultValues;
+            _positionalLayout = XMLBinding.this._positionalLayout;
+            _compactStringMaps = XMLBinding.this._compactStringMaps;
+            _copyCollections = XMLBinding.this._copyCollections;
+            _sharedAttributes = XMLBinding.this._sharedAttributes;
+        }
+        
+        /**
+         * @return <code>true</code> if objects shall be written positionally,
+         * see {@link XMLBinding#setPositionalLayout(boolean)}.
+         */
+        public boolean isPositionalLayout() {
+            return _positionalLayout;
+        }
+        
+        /**
+         * Returns the value a format stored for the given key while writing the current document.
+         */
+        Object getDocumentAttribute( final Object key ) {
+            return _documentAttributes != null ? _documentAttributes.get( key ) : null;
+        }
+        
+        void setDocumentAttribute( final Object key, final Object value ) {
+            if ( _documentAttributes == null ) {
+                _documentAttributes = new IdentityHashMap<Object, Object>();
+            }
+            _documentAttributes.put( key, value );
+        }
+        
+        /**
+         * @return <code>true</code> if primitive fields with default values shall be omitted,
+         * see {@link XMLBinding#setOmitDefaultValues(boolean)}.
+         */
+        public boolean isOmitDefaultValues() {
+            return _omitDefaultValues;
         }
         
         public void setAttribute( final String name, final String value ) throws XMLStreamException {
-            _streamWriter.writeAttribute( name, value );
+            _output.writeAttribute( name, value );
         }
         public void setAttribute( final String name, final byte value ) throws XMLStreamException {
-            _streamWriter.writeAttribute( name, String.valueOf( value ) );
+            _output.writeAttribute( name, (int) value );
         }
         public void setAttribute( final String name, final char value ) throws XMLStreamException {
-            _streamWriter.writeAttribute( name, String.valueOf( value ) );
+            _output.writeAttribute( name, String.valueOf( value ) );
         }
         public void setAttribute( final String name, final short value ) throws XMLStreamException {
-            _streamWriter.writeAttribute( name, String.valueOf( value ) );
+            _output.writeAttribute( name, (int) value );
         }
         public void setAttribute( final String name, final int value ) throws XMLStreamException {
-            _streamWriter.writeAttribute( name, String.valueOf( value ) );
+            _output.writeAttribute( name, value );
         }
         public void setAttribute( final String name, final long value ) throws XMLStreamException {
-            _streamWriter.writeAttribute( name, String.valueOf( value ) );
+            _output.writeAttribute( name, value );
         }
         public void setAttribute( final String name, final float value ) throws XMLStreamException {
-            _streamWriter.writeAttribute( name, String.valueOf( value ) );
+            _output.writeAttribute( name, value );
         }
         public void setAttribute( final String name, final double value ) throws XMLStreamException {
-            _streamWriter.writeAttribute( name, String.valueOf( value ) );
+            _output.writeAttribute( name, value );
         }
         public void setAttribute( final String name, final boolean value ) throws XMLStreamException {
-            _streamWriter.writeAttribute( name, String.valueOf( value ) );
+            _output.writeAttribute( name, String.valueOf( value ) );
         }
 
         public void add( final Object obj ) throws XMLStreamException {
@@ -332,23 +1152,48 @@ public class XMLBinding {
             
             final Integer id = _referenceMap.get( obj );
             if ( id != null ) {
-                _streamWriter.writeAttribute( REF, id.toString() );
+                _output.writeAttribute( REF, id.intValue() );
             }
             else {
-                _streamWriter.writeAttribute( "class", obj.getClass().getName() );
+                _output.writeAttribute( "class", obj.getClass().getName() );
                 final int newId = _idSeq++;
                 _referenceMap.put( obj, newId );
-                _streamWriter.writeAttribute( ID, String.valueOf( newId ) );
-                getFormat( obj.getClass() ).write( obj, this );
+                _output.writeAttribute( ID, newId );
+                final XMLFormat<Object> format = getFormat( obj.getClass() );
+                final XMLUtf8Output.Names names = _output.setNames( format.getNames() );
+                if ( _metrics == null && _listener == null ) {
+                    format.write( obj, this );
+                } else {
+                    writeObserved( format, obj, newId );
+                }
+                _output.setNames( names );
+            }
+        }
+        
+        private void writeObserved( final XMLFormat<Object> format, final Object obj, final int id ) throws XMLStreamException {
+            final long start = System.nanoTime();
+            final long bytes = _output.getBytesWritten();
+            if ( _listener != null ) {
+                _listener.enterObject( obj, _depth, bytes );
+            }
+            format.write( obj, this );
+            if ( _listener != null ) {
+                _listener.exitObject( obj, _depth, _output.getBytesWritten() );
+            }
+            if ( _metrics != null ) {
+                _metrics.recordClass( obj.getClass(), System.nanoTime() - start,
+                        bytes >= 0 ? _output.getBytesWritten() - bytes : -1, _idSeq - id );
             }
         }
         
         
         public void add( final Object object, final String name ) throws XMLStreamException {
             
-            _streamWriter.writeStartElement( replace( name, '$', "_d_" ) );
+            _output.writeStartElement( replace( name, '$', "_d_" ) );
+            _depth++;
             add( object );
-            _streamWriter.writeEndElement();
+            _depth--;
+            _output.writeEndElement();
 //
 //            _streamWriter.writeStartElement( name );
 //            add( object );
@@ -356,10 +1201,78 @@ public class XMLBinding {
         }
 
         /**
-         * @return
+         * Starts a nested element, e.g. for the items of a collection.
          */
-        public XMLStreamWriter getStreamWriter() {
-            return _streamWriter;
+        public void writeStartElement( final String name ) throws XMLStreamException {
+            _output.writeStartElement( name );
+            _depth++;
+        }
+
+        /**
+         * Ends the element started by {@link #writeStartElement(String)}.
+         */
+        public void writeEndElement() throws XMLStreamException {
+            _depth--;
+            _output.writeEndElement();
+        }
+        
+        /**
+         * Stores the given value of a map of the root object as shared value, if it may be shared and
+         * is large enough, see {@link XMLBinding#setSharedAttributes(XMLBlobStore, Collection, int, int)}.
+         * 
+         * @return the key of the shared value, or <code>null</code> if it's not shared.
+         */
+        String shareAttribute( final Object name, final Object value ) throws XMLStreamException {
+            if ( _sharedAttributes == null || _depth != 2 || value == null || _referenceMap.containsKey( value ) ) {
+                return null;
+            }
+            return _sharedAttributes.share( XMLBinding.this, name, value );
+        }
+        
+        /**
+         * Marks the start of an entry of a map of the root object (i.e. a session attribute),
+         * for the metrics and the listener.
+         */
+        void startAttribute( final Object key ) {
+            if ( _depth != 2 ) {
+                return;
+            }
+            if ( _metrics != null ) {
+                _attributeStartNanos = System.nanoTime();
+                _attributeStartBytes = _output.getBytesWritten();
+                _attributeStartId = _idSeq;
+            }
+            if ( _listener != null ) {
+                _listener.startAttribute( key, _output.getBytesWritten() );
+            }
+        }
+        
+        /**
+         * Marks the end of an entry of a map of the root object, see {@link #startAttribute(Object)}.
+         */
+        void endAttribute( final Object key ) {
+            if ( _depth != 2 ) {
+                return;
+            }
+            if ( _metrics != null ) {
+                _metrics.recordAttribute( String.valueOf( key ), System.nanoTime() - _attributeStartNanos,
+                        _attributeStartBytes >= 0 ? _output.getBytesWritten() - _attributeStartBytes : -1,
+                        _idSeq - _attributeStartId );
+            }
+            if ( _listener != null ) {
+                _listener.endAttribute( key, _output.getBytesWritten() );
+            }
+        }
+        
+        /**
+         * Writes the reference to a shared value (instead of the value) into the current element.
+         */
+        void addSharedAttribute( final Object value, final String key ) throws XMLStreamException {
+            _output.writeAttribute( "class", XMLSharedAttributes.Reference.class.getName() );
+            final int newId = _idSeq++;
+            _referenceMap.put( value, newId );
+            _output.writeAttribute( ID, newId );
+            _output.writeAttribute( XMLSharedAttributes.Reference.KEY, key );
         }
         
     }
@@ -392,36 +1305,56 @@ public class XMLBinding {
         System.out.println( Pattern.compile( "_d_" ).matcher( "this_d_0" ).replaceAll( "\\$" ) );
     }
 
-    private static final Pattern PO = Pattern.compile( "\\$" );
-    private static final Pattern PI = Pattern.compile( "_d_" );
-    
-    class InputElement {
+    public class InputElement {
         
         private final Map<String, Object> _referenceMap = new HashMap<String, Object>( 50 );
-        private final XMLStreamReader _reader;
+        private final XMLInput _reader;
+        private Map<Object, Object> _documentAttributes;
         
         private boolean _next;
         
         public InputElement( final XMLStreamReader reader ) {
+            this( new XMLInput.StaxInput( reader ) );
+        }
+        
+        InputElement( final XMLInput reader ) {
             _reader = reader;
         }
+        
+        /**
+         * Returns the value a format stored for the given key while reading the current document.
+         */
+        Object getDocumentAttribute( final Object key ) {
+            return _documentAttributes != null ? _documentAttributes.get( key ) : null;
+        }
+        
+        void setDocumentAttribute( final Object key, final Object value ) {
+            if ( _documentAttributes == null ) {
+                _documentAttributes = new IdentityHashMap<Object, Object>();
+            }
+            _documentAttributes.put( key, value );
+        }
+        
+        XMLBinding getBinding() {
+            return XMLBinding.this;
+        }
 
         public String getAttribute( final String name ) throws XMLStreamException {
-            return _reader.getAttributeValue( null, name );
+            return _reader.getAttributeValue( name );
         }
 
         public String getAttribute( final String name, final String defaultValue ) throws XMLStreamException {
-            final String result = _reader.getAttributeValue( null, name );
+            final String result = _reader.getAttributeValue( name );
             return result != null ? result : defaultValue;
         }
         
         public byte getAttribute( final String name, final byte defaultValue ) throws XMLStreamException {
-            final String result = _reader.getAttributeValue( null, name );
+            final String result = _reader.getAttributeValue( name );
             return result != null ? Byte.parseByte( result ) : defaultValue;
         }
         
         public char getAttribute( final String name, final char defaultValue ) throws XMLStreamException {
-            final String result = _reader.getAttributeValue( null, name );
+            final String result = _reader.getAttributeValue( name );
             if ( result != null ) {
                 if ( result.length() > 1 ) {
                     throw new XMLStreamException( "The attribute '" + name + "' of type Character has illegal value (length > 1): " + result );
@@ -432,33 +1365,29 @@ public class XMLBinding {
         }
         
         public short getAttribute( final String name, final short defaultValue ) throws XMLStreamException {
-            final String result = _reader.getAttributeValue( null, name );
+            final String result = _reader.getAttributeValue( name );
             return result != null ? Short.parseShort( result ) : defaultValue;
         }
 
         public int getAttribute( final String name, final int defaultValue ) throws XMLStreamException {
-            final String result = _reader.getAttributeValue( null, name );
-            return result != null ? Integer.parseInt( result ) : defaultValue;
+            return _reader.getIntAttribute( name, defaultValue );
         }
 
         public long getAttribute( final String name, final long defaultValue ) throws XMLStreamException {
-            final String result = _reader.getAttributeValue( null, name );
-            return result != null ? Long.parseLong( result ) : defaultValue;
+            return _reader.getLongAttribute( name, defaultValue );
         }
         
         public boolean getAttribute( final String name, final boolean defaultValue ) throws XMLStreamException {
-            final String result = _reader.getAttributeValue( null, name );
+            final String result = _reader.getAttributeValue( name );
             return result != null ? Boolean.parseBoolean( result ) : defaultValue;
         }
         
         public float getAttribute( final String name, final float defaultValue ) throws XMLStreamException {
-            final String result = _reader.getAttributeValue( null, name );
-            return result != null ? Float.parseFloat( result ) : defaultValue;
+            return _reader.getFloatAttribute( name, defaultValue );
         }
         
         public double getAttribute( final String name, final double defaultValue ) throws XMLStreamException {
-            final String result = _reader.getAttributeValue( null, name );
-            return result != null ? Double.parseDouble( result ) : defaultValue;
+            return _reader.getDoubleAttribute( name, defaultValue );
         }
         
         public int getAttributeCount() {
@@ -508,7 +1437,7 @@ public class XMLBinding {
          */
         @SuppressWarnings( "unchecked" )
         public Object getNext() throws XMLStreamException {
-            final String ref = _reader.getAttributeValue( null, REF );
+            final String ref = _reader.getAttributeValue( REF );
             if ( ref != null ) {
                 if ( _reader.next() != XMLStreamReader.END_ELEMENT ) {
                     throw new XMLStreamException("Non Empty Reference Element", _reader.getLocation());
@@ -517,34 +1446,43 @@ public class XMLBinding {
                 return _referenceMap.get( ref );
             }
             
-            final String className = _reader.getAttributeValue( null, "class" );
-            try {
-                final Class<?> clazz = Class.forName( className );
-                final XMLFormat<Object> format = getFormat( clazz );
-                _next = false;
-                final Object object = format.newInstance( (Class<Object>) clazz, this );
-                _referenceMap.put( _reader.getAttributeValue( null, ID ), object );
-                format.read( this, object );
-                if (hasNext()) {
-                    throw new XMLStreamException("Incomplete element reading", _reader.getLocation());
+            final String className = _reader.getAttributeValue( "class" );
+            if ( className == null ) {
+                /* null is written as empty element, e.g. a null item of a collection
+                 */
+                if ( _reader.next() != XMLStreamReader.END_ELEMENT ) {
+                    throw new XMLStreamException("Non Empty Null Element", _reader.getLocation());
                 }
                 _next = false;
-                return object;
-            } catch ( final ClassNotFoundException e ) {
-                throw new XMLStreamException( e );
+                return null;
+            }
+            final Class<?> clazz = resolveClass( className );
+            final XMLFormat<Object> format = getFormat( clazz );
+            _next = false;
+            final Object object = format.newInstance( (Class<Object>) clazz, this );
+            _referenceMap.put( _reader.getAttributeValue( ID ), object );
+            format.read( this, object );
+            if (hasNext()) {
+                throw new XMLStreamException("Incomplete element reading", _reader.getLocation());
             }
+            _next = false;
+            return object;
         }
 
         /**
-         * @return
-         * @throws XMLStreamException 
+         * Returns the name of the next element as it's contained in the xml, i.e. with
+         * '$' escaped as "_d_". The name is interned by the underlying reader, so that
+         * it can be compared by identity with interned names. The element itself must be
+         * read with {@link #getNext()} afterwards.
+         * 
+         * @return the (escaped) name of the next element.
+         * @throws XMLStreamException if there's no next element. 
          */
-        public Element getNextElement() throws XMLStreamException {
+        public String getNextElementName() throws XMLStreamException {
             if ( !hasNext() ) {
                 throw new XMLStreamException("No more element to read", _reader.getLocation());
             }
-            final String localName = _reader.getLocalName();
-            return new Element( PI.matcher( localName ).replaceAll( "\\$" ), getNext() );
+            return _reader.getLocalName();
         }
 
         /**
@@ -561,14 +1499,6 @@ public class XMLBinding {
         
     }
     
-    static final class Element {
-        final String name;
-        final Object object;
-        public Element( final String name, final Object object ) {
-            this.name = name;
-            this.object = object;
-        }
-    }
 
     public static final XMLFormat<String> XML_STRING = new XMLFormat<String>() {
         
@@ -593,11 +1523,7 @@ public class XMLBinding {
         
         @Override
         protected Class<?> newInstance(final java.lang.Class<Class<?>> clazz, final InputElement in) throws XMLStreamException {
-            try {
-                return Class.forName( in.getAttribute( "name", null ) );
-            } catch ( final ClassNotFoundException e ) {
-                throw new XMLStreamException( e );
-            }
+            return resolveClass( in.getAttribute( "name", null ) );
         };
         
         @Override
@@ -654,7 +1580,7 @@ public class XMLBinding {
         
         @Override
         protected Integer newInstance(final java.lang.Class<Integer> clazz, final InputElement in) throws XMLStreamException {
-            return Integer.valueOf( in.getAttribute( "v" ) );
+            return Integer.valueOf( in.getAttribute( "v", 0 ) );
         };
         
         @Override
@@ -664,7 +1590,7 @@ public class XMLBinding {
         
         @Override
         public void write( final Integer obj, final OutputElement output ) throws XMLStreamException {
-            output.setAttribute( "v", obj.toString() );
+            output.setAttribute( "v", obj.intValue() );
         }
         
     };
@@ -673,7 +1599,7 @@ public class XMLBinding {
         
         @Override
         protected Long newInstance(final java.lang.Class<Long> clazz, final InputElement in) throws XMLStreamException {
-            return Long.valueOf( in.getAttribute( "v" ) );
+            return Long.valueOf( in.getAttribute( "v", 0L ) );
         };
         
         @Override
@@ -683,7 +1609,7 @@ public class XMLBinding {
         
         @Override
         public void write( final Long obj, final OutputElement output ) throws XMLStreamException {
-            output.setAttribute( "v", obj.toString() );
+            output.setAttribute( "v", obj.longValue() );
         }
         
     };
@@ -692,7 +1618,7 @@ public class XMLBinding {
         
         @Override
         protected Float newInstance(final java.lang.Class<Float> clazz, final InputElement in) throws XMLStreamException {
-            return Float.valueOf( in.getAttribute( "v" ) );
+            return Float.valueOf( in.getAttribute( "v", 0f ) );
         };
         
         @Override
@@ -702,7 +1628,7 @@ public class XMLBinding {
         
         @Override
         public void write( final Float obj, final OutputElement output ) throws XMLStreamException {
-            output.setAttribute( "v", obj.toString() );
+            output.setAttribute( "v", obj.floatValue() );
         }
         
     };
@@ -711,7 +1637,7 @@ public class XMLBinding {
         
         @Override
         protected Double newInstance(final java.lang.Class<Double> clazz, final InputElement in) throws XMLStreamException {
-            return Double.valueOf( in.getAttribute( "v" ) );
+            return Double.valueOf( in.getAttribute( "v", 0d ) );
         };
         
         @Override
@@ -721,7 +1647,7 @@ public class XMLBinding {
         
         @Override
         public void write( final Double obj, final OutputElement output ) throws XMLStreamException {
-            output.setAttribute( "v", obj.toString() );
+            output.setAttribute( "v", obj.doubleValue() );
         }
         
     };
@@ -845,13 +1771,9 @@ public class XMLBinding {
         public Enum<?> newInstance( final Class<Enum<?>> clazz, final InputElement xml ) throws XMLStreamException {
             final String value = xml.getAttribute( "value", (String)null );
             final String clazzName = xml.getAttribute( "type", (String)null );
-            try {
-                @SuppressWarnings( "unchecked" )
-                final Enum<?> enumValue = Enum.valueOf( Class.forName( clazzName ).asSubclass( Enum.class ), value );
-                return enumValue;
-            } catch ( final ClassNotFoundException e ) {
-                throw new XMLStreamException( e );
-            }
+            @SuppressWarnings( "unchecked" )
+            final Enum<?> enumValue = Enum.valueOf( resolveClass( clazzName ).asSubclass( Enum.class ), value );
+            return enumValue;
         }
 
         /**
@@ -884,10 +1806,10 @@ public class XMLBinding {
         @Override
         public Object newInstance( final Class clazz, final InputElement input ) throws XMLStreamException {
             System.out.println("XMLArrayFormat.newinstance invoked");
+            final Class<?> componentType = resolveClass( input.getAttribute( "componentType", (String)null ) );
             try {
-                final String componentType = input.getAttribute( "componentType", (String)null );
                 final int length = input.getAttribute( "length", 0 );
-                return Array.newInstance( Class.forName( componentType ) , length );
+                return Array.newInstance( componentType , length );
             } catch ( final Exception e ) {
                 _log.log( Level.SEVERE, "caught exception", e );
                 throw new XMLStreamException( e );
@@ -918,53 +1840,222 @@ public class XMLBinding {
             output.setAttribute( "componentType", obj.getClass().getComponentType().getName() );
             output.setAttribute( "length", array.length );
             for( final Object item : array ) {
-                output.getStreamWriter().writeStartElement( "i" );
+                output.writeStartElement( "i" );
                 output.add( item );
-                output.getStreamWriter().writeEndElement();
+                output.writeEndElement();
             }
         }
         
     }
 
+    /* the number of items/entries of a collection/map, used to presize it when it's read
+     */
+    private static final String SIZE = "size";
+
     public static final XMLFormat<Collection<Object>> XMLCollectionFormat = new XMLFormat<Collection<Object>>() {
         
+        @Override
+        protected Collection<Object> newInstance( final Class<Collection<Object>> clazz, final InputElement in ) throws XMLStreamException {
+            return XMLInstantiator.forClass( clazz ).newInstance( in.getAttribute( SIZE, -1 ) );
+        }
+        
         @Override
         public void read( final InputElement xml, final Collection<Object> obj ) throws XMLStreamException {
-            while ( xml.hasNext() ) {
-                obj.add( xml.getNext() );
+            /* the most common collections are filled via their concrete type
+             */
+            if ( obj.getClass() == ArrayList.class ) {
+                final ArrayList<Object> list = (ArrayList<Object>) obj;
+                while ( xml.hasNext() ) {
+                    list.add( xml.getNext() );
+                }
+            } else if ( obj.getClass() == HashSet.class ) {
+                final HashSet<Object> set = (HashSet<Object>) obj;
+                while ( xml.hasNext() ) {
+                    set.add( xml.getNext() );
+                }
+            } else {
+                while ( xml.hasNext() ) {
+                    obj.add( xml.getNext() );
+                }
             }
         }
         
         @Override
         public void write( final Collection<Object> obj, final OutputElement output ) throws XMLStreamException {
+            if ( output._copyCollections ) {
+                final Object[] items = XMLCollectionSnapshot.snapshot( obj );
+                output.setAttribute( SIZE, items.length );
+                for ( final Object item : items ) {
+                    output.writeStartElement( "i" );
+                    output.add( item );
+                    output.writeEndElement();
+                }
+                return;
+            }
+            final int size = obj.size();
+            output.setAttribute( SIZE, size );
+            if ( obj instanceof ArrayList<?> || obj instanceof Vector<?> ) {
+                /* iterate by index without creating an iterator, the size is
+                 * checked so that concurrent modifications are noticed as with the iterator
+                 */
+                final List<Object> list = (List<Object>) obj;
+                for ( int i = 0; i < size; i++ ) {
+                    if ( list.size() != size ) {
+                        throw new ConcurrentModificationException( "The list was modified while it was written." );
+                    }
+                    final Object item;
+                    try {
+                        item = list.get( i );
+                    } catch ( final IndexOutOfBoundsException e ) {
+                        /* the list was shrunk after the size was checked
+                         */
+                        throw new ConcurrentModificationException( "The list was modified while it was written." );
+                    }
+                    output.writeStartElement( "i" );
+                    output.add( item );
+                    output.writeEndElement();
+                }
+                if ( list.size() != size ) {
+                    throw new ConcurrentModificationException( "The list was modified while it was written." );
+                }
+                return;
+            }
             for( final Object item : obj ) {
-                output.getStreamWriter().writeStartElement( "i" );
+                output.writeStartElement( "i" );
                 output.add( item );
-                output.getStreamWriter().writeEndElement();
+                output.writeEndElement();
             }
         }
         
     };
 
+    /**
+     * Resolves a class name read from the xml, a class that cannot be resolved is reported
+     * as {@link XMLFlightRecorder#CLASS_RESOLUTION_MISS}.
+     */
+    static Class<?> resolveClass( final String className ) throws XMLStreamException {
+        try {
+            return Class.forName( className );
+        } catch ( final ClassNotFoundException e ) {
+            final Object event = XMLFlightRecorder.CLASS_RESOLUTION_MISS.begin();
+            if ( event != null ) {
+                XMLFlightRecorder.CLASS_RESOLUTION_MISS.commit( event, className );
+            }
+            throw new XMLStreamException( e );
+        }
+    }
+
+    private static boolean hasStringKeys( final Map<?, ?> map ) {
+        for ( final Object key : map.keySet() ) {
+            if ( !( key instanceof String ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the (interned) key of the next map entry written in the compact form.
+     */
+    private static String getEntryKey( final InputElement xml ) throws XMLStreamException {
+        final String key = xml.getAttribute( KEY );
+        if ( key == null ) {
+            throw new XMLStreamException( "Missing " + KEY + " attribute of map entry", xml._reader.getLocation() );
+        }
+        return key.intern();
+    }
+
+    private static boolean hasStringKeys( final Object[] entries ) {
+        for ( int i = 0; i < entries.length; i += 2 ) {
+            if ( !( entries[i] instanceof String ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static final XMLFormat<Map<Object, Object>> XMLMapFormat = new XMLFormat<Map<Object, Object>>() {
         
+        @Override
+        protected Map<Object, Object> newInstance( final Class<Map<Object, Object>> clazz, final InputElement in ) throws XMLStreamException {
+            return XMLInstantiator.forClass( clazz ).newInstance( in.getAttribute( SIZE, -1 ) );
+        }
+        
         @Override
         public void read( final InputElement xml, final Map<Object, Object> obj ) throws XMLStreamException {
-            while ( xml.hasNext() ) {
-                final Object key = xml.get( "k" );
-                final Object value = xml.get( "v" );
-                obj.put( key, value );
+            if ( !xml.hasNext() ) {
+                return;
+            }
+            /* all entries of a map are written in the same form (see writeEntry),
+             * so the element name is checked only for the first entry
+             */
+            final boolean compact = ENTRY.equals( xml.getNextElementName() );
+            if ( obj.getClass() == HashMap.class ) {
+                final HashMap<Object, Object> map = (HashMap<Object, Object>) obj;
+                if ( compact ) {
+                    do {
+                        map.put( getEntryKey( xml ), xml.getNext() );
+                    } while ( xml.hasNext() );
+                } else {
+                    do {
+                        final Object key = xml.getNext();
+                        map.put( key, xml.hasNext() ? xml.getNext() : null );
+                    } while ( xml.hasNext() );
+                }
+            } else if ( compact ) {
+                do {
+                    obj.put( getEntryKey( xml ), xml.getNext() );
+                } while ( xml.hasNext() );
+            } else {
+                do {
+                    final Object key = xml.getNext();
+                    obj.put( key, xml.hasNext() ? xml.getNext() : null );
+                } while ( xml.hasNext() );
             }
         }
         
         @Override
         public void write( final Map<Object, Object> obj, final OutputElement output ) throws XMLStreamException {
+            if ( output._copyCollections ) {
+                final Object[] entries = XMLCollectionSnapshot.snapshot( obj );
+                output.setAttribute( SIZE, entries.length / 2 );
+                final boolean compact = output._compactStringMaps && hasStringKeys( entries );
+                for ( int i = 0; i < entries.length; i += 2 ) {
+                    writeEntry( entries[i], entries[i + 1], compact, output );
+                }
+                return;
+            }
+            output.setAttribute( SIZE, obj.size() );
+            final boolean compact = output._compactStringMaps && hasStringKeys( obj );
             for( final Map.Entry<Object, Object> entry : obj.entrySet() ) {
-                //output.getStreamWriter().writeStartElement( "el" );
-                output.add( entry.getKey(), "k" );
-                output.add( entry.getValue(), "v" );
-                //output.getStreamWriter().writeEndElement();
+                writeEntry( entry.getKey(), entry.getValue(), compact, output );
+            }
+        }
+        
+        private void writeEntry( final Object key, final Object value, final boolean compact, final OutputElement output )
+            throws XMLStreamException {
+            output.startAttribute( key );
+            final String sharedKey = output.shareAttribute( key, value );
+            if ( compact ) {
+                output.writeStartElement( ENTRY );
+                output.setAttribute( KEY, (String) key );
+                if ( sharedKey != null ) {
+                    output.addSharedAttribute( value, sharedKey );
+                } else {
+                    output.add( value );
+                }
+                output.writeEndElement();
+            } else {
+                output.add( key, "k" );
+                if ( sharedKey != null ) {
+                    output.writeStartElement( "v" );
+                    output.addSharedAttribute( value, sharedKey );
+                    output.writeEndElement();
+                } else {
+                    output.add( value, "v" );
+                }
             }
+            output.endAttribute( key );
         }
         
     };
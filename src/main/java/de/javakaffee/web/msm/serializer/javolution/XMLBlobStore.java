@@ -0,0 +1,39 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+/**
+ * Stores the serialized session attributes that are shared by several sessions,
+ * see {@link AaltoTranscoder#setSharedAttributes(XMLBlobStore, java.util.Collection, int, int)}.
+ * An implementation usually delegates to the memcached client also used for the sessions,
+ * the blobs should expire not before the sessions referencing them.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface XMLBlobStore {
+
+    /**
+     * Returns the blob stored with the given key or <code>null</code> if there's no such blob.
+     */
+    byte[] get( String key );
+
+    /**
+     * Stores the given blob with the given key.
+     */
+    void set( String key, byte[] blob );
+
+}
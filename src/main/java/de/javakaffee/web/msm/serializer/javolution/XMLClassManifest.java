@@ -0,0 +1,212 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the classes an {@link XMLBinding} handles with the {@link XMLReflectionFormat}
+ * (or a number format) and stores their names in a file (one class name per line),
+ * so that after a restart these formats can be created in the background
+ * (see {@link #warmUp(XMLBinding, int)}) before the first sessions are (de)serialized.
+ * <p>
+ * Recording a class that is already known is a single map lookup. New classes
+ * are saved with a delay, so that the classes seen at startup are written at once.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLClassManifest {
+
+    private static final Logger LOG = Logger.getLogger( XMLClassManifest.class.getName() );
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor( daemonThreads( "xml-class-manifest" ) );
+
+    private final File _file;
+    private final long _saveDelayMillis;
+    private final ConcurrentMap<String, Boolean> _classNames = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicBoolean _saveScheduled = new AtomicBoolean();
+
+    /**
+     * Creates a manifest, the class names already contained in the given file are loaded.
+     *
+     * @param file the file to load the class names from and to save them to.
+     * @param saveDelayMillis the delay after which newly recorded classes are saved.
+     */
+    XMLClassManifest( final File file, final long saveDelayMillis ) {
+        _file = file;
+        _saveDelayMillis = saveDelayMillis;
+        for ( final String className : load( file ) ) {
+            _classNames.put( className, Boolean.TRUE );
+        }
+    }
+
+    /**
+     * Reads the class names from the given file, an empty list is returned if the file does not exist.
+     */
+    static List<String> load( final File file ) {
+        final List<String> result = new ArrayList<String>();
+        try {
+            final BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+            try {
+                String line;
+                while ( ( line = reader.readLine() ) != null ) {
+                    line = line.trim();
+                    if ( line.length() > 0 && !line.startsWith( "#" ) ) {
+                        result.add( line );
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch ( final FileNotFoundException e ) {
+            LOG.fine( "The class manifest " + file + " does not exist (yet)." );
+        } catch ( final IOException e ) {
+            LOG.log( Level.WARNING, "Could not read the class manifest " + file, e );
+        }
+        return result;
+    }
+
+    /**
+     * Records the given class, if it's not yet known it's saved with the configured delay.
+     */
+    void record( final Class<?> clazz ) {
+        final String className = clazz.getName();
+        if ( _classNames.containsKey( className ) ) {
+            return;
+        }
+        if ( _classNames.putIfAbsent( className, Boolean.TRUE ) == null && _saveScheduled.compareAndSet( false, true ) ) {
+            SCHEDULER.schedule( new Runnable() {
+                public void run() {
+                    _saveScheduled.set( false );
+                    try {
+                        save();
+                    } catch ( final IOException e ) {
+                        LOG.log( Level.WARNING, "Could not save the class manifest " + _file, e );
+                    }
+                }
+            }, _saveDelayMillis, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    List<String> getClassNames() {
+        return new ArrayList<String>( _classNames.keySet() );
+    }
+
+    /**
+     * Writes the recorded class names to the file. The names are written to
+     * a temporary file first, that is renamed afterwards.
+     */
+    synchronized void save() throws IOException {
+        final File tmp = new File( _file.getPath() + ".tmp" );
+        final Writer writer = new OutputStreamWriter( new FileOutputStream( tmp ), "UTF-8" );
+        try {
+            writer.write( "# classes bound by the XMLBinding, used to create their formats at startup\n" );
+            for ( final String className : _classNames.keySet() ) {
+                writer.write( className );
+                writer.write( '\n' );
+            }
+        } finally {
+            writer.close();
+        }
+        if ( !tmp.renameTo( _file ) ) {
+            /* renameTo does not replace existing files on all platforms
+             */
+            if ( !_file.delete() || !tmp.renameTo( _file ) ) {
+                throw new IOException( "Could not rename " + tmp + " to " + _file );
+            }
+        }
+    }
+
+    /**
+     * Loads the recorded classes and creates their formats using the given number of threads.
+     * This returns immediately, the warm up is done in the background.
+     *
+     * @return the number of classes whose formats were created.
+     */
+    Future<Integer> warmUp( final XMLBinding binding, final int threads ) {
+        final long start = System.currentTimeMillis();
+        final List<String> classNames = getClassNames();
+        final ExecutorService executor = Executors.newFixedThreadPool( threads, daemonThreads( "xml-format-warmup" ) );
+        final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>( classNames.size() );
+        for ( final String className : classNames ) {
+            results.add( executor.submit( new Callable<Boolean>() {
+                public Boolean call() {
+                    try {
+                        binding.getFormat( Class.forName( className ) );
+                        return Boolean.TRUE;
+                    } catch ( final Throwable e ) {
+                        LOG.log( Level.FINE, "Could not create the format for " + className, e );
+                        return Boolean.FALSE;
+                    }
+                }
+            } ) );
+        }
+        executor.shutdown();
+        final FutureTask<Integer> result = new FutureTask<Integer>( new Callable<Integer>() {
+            public Integer call() throws Exception {
+                int count = 0;
+                for ( final Future<Boolean> result : results ) {
+                    if ( result.get().booleanValue() ) {
+                        count++;
+                    }
+                }
+                LOG.info( "Created the formats of " + count + " of " + classNames.size() + " classes from "
+                        + _file + " in " + ( System.currentTimeMillis() - start ) + " ms." );
+                return count;
+            }
+        } );
+        daemonThreads( "xml-format-warmup-result" ).newThread( result ).start();
+        return result;
+    }
+
+    static ThreadFactory daemonThreads( final String name ) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread( final Runnable r ) {
+                final Thread thread = new Thread( r, name + "-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates snapshots of collections and maps, so that they can be serialized while
+ * they're modified by other threads (see {@link XMLBinding#setCopyCollectionsForSerialization(boolean)}).
+ * How a snapshot is created is determined once per class:
+ * <ul>
+ * <li>collections and maps of <code>java.util.concurrent</code> don't throw a
+ * {@link ConcurrentModificationException} and are copied directly,</li>
+ * <li>{@link Vector}, {@link Hashtable} and the synchronized wrappers of {@link java.util.Collections}
+ * are copied while holding their lock,</li>
+ * <li>all others are copied without lock, if a {@link ConcurrentModificationException} is
+ * thrown the copy is retried.</li>
+ * </ul>
+ * Collections are copied via {@link Collection#toArray()}, maps are copied into an array
+ * containing the keys at even and the values at odd indexes.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLCollectionSnapshot {
+
+    /**
+     * How a snapshot of a certain class is created.
+     */
+    static enum Strategy {
+        CONCURRENT,
+        LOCKED,
+        RETRY
+    }
+
+    static final int MAX_ATTEMPTS = 5;
+
+    private static final ConcurrentMap<Class<?>, Strategy> STRATEGIES = new ConcurrentHashMap<Class<?>, Strategy>();
+
+    private XMLCollectionSnapshot() {
+    }
+
+    static Strategy getStrategy( final Class<?> clazz ) {
+        Strategy result = STRATEGIES.get( clazz );
+        if ( result == null ) {
+            result = determineStrategy( clazz );
+            STRATEGIES.put( clazz, result );
+        }
+        return result;
+    }
+
+    private static Strategy determineStrategy( final Class<?> clazz ) {
+        if ( ConcurrentMap.class.isAssignableFrom( clazz ) || clazz.getName().startsWith( "java.util.concurrent." ) ) {
+            return Strategy.CONCURRENT;
+        }
+        if ( Vector.class.isAssignableFrom( clazz ) || Hashtable.class.isAssignableFrom( clazz )
+                || clazz.getName().startsWith( "java.util.Collections$Synchronized" ) ) {
+            return Strategy.LOCKED;
+        }
+        return Strategy.RETRY;
+    }
+
+    /**
+     * Returns the items of the given collection.
+     *
+     * @throws ConcurrentModificationException if the collection was modified during
+     *  each of the {@link #MAX_ATTEMPTS} attempts to copy it.
+     */
+    static Object[] snapshot( final Collection<?> collection ) {
+        /* Vector and the synchronized wrappers lock in toArray themselves
+         */
+        if ( getStrategy( collection.getClass() ) != Strategy.RETRY ) {
+            return collection.toArray();
+        }
+        for ( int attempt = 1;; attempt++ ) {
+            try {
+                return collection.toArray();
+            } catch ( final RuntimeException e ) {
+                retryOrThrow( e, attempt );
+            }
+        }
+    }
+
+    /**
+     * Returns the entries of the given map, the keys at even and the values at odd indexes.
+     *
+     * @throws ConcurrentModificationException if the map was modified during
+     *  each of the {@link #MAX_ATTEMPTS} attempts to copy it.
+     */
+    static Object[] snapshot( final Map<?, ?> map ) {
+        switch ( getStrategy( map.getClass() ) ) {
+            case CONCURRENT:
+                return copy( map );
+            case LOCKED:
+                synchronized ( map ) {
+                    return copy( map );
+                }
+            default:
+                for ( int attempt = 1;; attempt++ ) {
+                    try {
+                        return copy( map );
+                    } catch ( final RuntimeException e ) {
+                        retryOrThrow( e, attempt );
+                    }
+                }
+        }
+    }
+
+    private static Object[] copy( final Map<?, ?> map ) {
+        Object[] result = new Object[map.size() * 2];
+        int i = 0;
+        for ( final Map.Entry<?, ?> entry : map.entrySet() ) {
+            if ( i == result.length ) {
+                final Object[] grown = new Object[result.length * 2 + 2];
+                System.arraycopy( result, 0, grown, 0, i );
+                result = grown;
+            }
+            result[i++] = entry.getKey();
+            result[i++] = entry.getValue();
+        }
+        if ( i < result.length ) {
+            final Object[] shrunk = new Object[i];
+            System.arraycopy( result, 0, shrunk, 0, i );
+            result = shrunk;
+        }
+        return result;
+    }
+
+    /**
+     * Rethrows the given exception if it's not caused by a concurrent modification
+     * or the maximum number of attempts is reached.
+     */
+    private static void retryOrThrow( final RuntimeException e, final int attempt ) {
+        if ( !( e instanceof ConcurrentModificationException || e instanceof NoSuchElementException
+                || e instanceof ArrayIndexOutOfBoundsException ) || attempt >= MAX_ATTEMPTS ) {
+            throw e;
+        }
+        Thread.yield();
+    }
+
+}
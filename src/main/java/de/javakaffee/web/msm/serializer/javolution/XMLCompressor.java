@@ -0,0 +1,342 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Compresses serialized objects with deflate and a preset dictionary, so that also
+ * small payloads are compressed well: the vocabulary that every payload contains
+ * (the xml declaration, <code>class="java.util.</code>, <code>__id</code> etc.) is
+ * already known by the compressor and the decompressor.
+ * <p>
+ * By default the dictionary shipped as <code>xml-dictionary.txt</code> is used, a
+ * dictionary for the own classes can be created from sample payloads with
+ * {@link #train(List, int)} (or via {@link #main(String[])}).
+ * The compressed data contains the id (adler32 checksum) of the dictionary,
+ * so that data compressed with a different dictionary is detected.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLCompressor {
+
+    private static final Logger LOG = Logger.getLogger( XMLCompressor.class.getName() );
+
+    static final String DEFAULT_DICTIONARY = "xml-dictionary.txt";
+
+    /**
+     * The max size of a dictionary, deflate only uses the last 32k.
+     */
+    static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final byte[] _dictionary;
+    private final int _dictionaryId;
+    private final int _level;
+
+    private final ThreadLocal<Deflater> _deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater( _level );
+        }
+    };
+    private final ThreadLocal<Inflater> _inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final AtomicLong _calls = new AtomicLong();
+    private final AtomicLong _bytesIn = new AtomicLong();
+    private final AtomicLong _bytesOut = new AtomicLong();
+    private final AtomicLong _cpuNanos = new AtomicLong();
+
+    /**
+     * @param dictionary the preset dictionary, or <code>null</code> if no dictionary shall be used.
+     * @param level the deflate level, e.g. {@link Deflater#BEST_SPEED}.
+     */
+    XMLCompressor( final byte[] dictionary, final int level ) {
+        _dictionary = dictionary;
+        _level = level;
+        if ( dictionary != null ) {
+            final Adler32 adler = new Adler32();
+            adler.update( dictionary, 0, dictionary.length );
+            _dictionaryId = (int) adler.getValue();
+        } else {
+            _dictionaryId = 0;
+        }
+    }
+
+    /**
+     * Creates a compressor with the default dictionary and {@link Deflater#BEST_SPEED}.
+     */
+    static XMLCompressor withDefaultDictionary() {
+        final InputStream in = XMLCompressor.class.getResourceAsStream( DEFAULT_DICTIONARY );
+        if ( in == null ) {
+            throw new IllegalStateException( "The dictionary " + DEFAULT_DICTIONARY + " was not found." );
+        }
+        try {
+            return new XMLCompressor( readFully( in ), Deflater.BEST_SPEED );
+        } catch ( final IOException e ) {
+            throw new IllegalStateException( "Could not read the dictionary " + DEFAULT_DICTIONARY, e );
+        }
+    }
+
+    boolean hasDictionary() {
+        return _dictionary != null;
+    }
+
+    /**
+     * Compresses the given bytes.
+     *
+     * @return the compressed bytes, or <code>null</code> if they are not smaller than the given bytes.
+     */
+    byte[] compress( final byte[] data, final int offset, final int length ) {
+        final long start = cpuTime();
+        final Deflater deflater = _deflaters.get();
+        deflater.reset();
+        if ( _dictionary != null ) {
+            deflater.setDictionary( _dictionary );
+        }
+        deflater.setInput( data, offset, length );
+        deflater.finish();
+        final byte[] buf = new byte[length];
+        int compressed = 0;
+        while ( !deflater.finished() && compressed < buf.length ) {
+            compressed += deflater.deflate( buf, compressed, buf.length - compressed );
+        }
+        final boolean smaller = deflater.finished() && compressed < length;
+        final long cpuNanos = cpuTime() - start;
+
+        _calls.incrementAndGet();
+        _bytesIn.addAndGet( length );
+        _bytesOut.addAndGet( smaller ? compressed : length );
+        _cpuNanos.addAndGet( cpuNanos );
+        if ( LOG.isLoggable( Level.FINE ) ) {
+            LOG.fine( "Compressed " + length + " bytes to " + ( smaller ? compressed : length ) + " bytes in "
+                    + cpuNanos / 1000 + " micros cpu time" );
+        }
+        if ( !smaller ) {
+            return null;
+        }
+        final byte[] result = new byte[compressed];
+        System.arraycopy( buf, 0, result, 0, compressed );
+        return result;
+    }
+
+    /**
+     * Decompresses the given bytes.
+     *
+     * @throws XMLStreamException if the data is corrupt or was compressed with another dictionary.
+     */
+    byte[] decompress( final byte[] data, final int offset, final int length ) throws XMLStreamException {
+        final Inflater inflater = _inflaters.get();
+        inflater.reset();
+        inflater.setInput( data, offset, length );
+        byte[] buf = new byte[Math.max( 64, length * 4 )];
+        int size = 0;
+        try {
+            while ( !inflater.finished() ) {
+                if ( size == buf.length ) {
+                    final byte[] grown = new byte[buf.length * 2];
+                    System.arraycopy( buf, 0, grown, 0, size );
+                    buf = grown;
+                }
+                final int inflated = inflater.inflate( buf, size, buf.length - size );
+                if ( inflated == 0 ) {
+                    if ( inflater.needsDictionary() ) {
+                        if ( _dictionary == null || inflater.getAdler() != _dictionaryId ) {
+                            throw new XMLStreamException( "The data was compressed with an unknown dictionary (id "
+                                    + Integer.toHexString( inflater.getAdler() ) + ")." );
+                        }
+                        inflater.setDictionary( _dictionary );
+                    } else if ( inflater.needsInput() ) {
+                        throw new XMLStreamException( "The compressed data is incomplete." );
+                    }
+                }
+                size += inflated;
+            }
+        } catch ( final DataFormatException e ) {
+            throw new XMLStreamException( "The compressed data is corrupt.", e );
+        }
+        if ( size == buf.length ) {
+            return buf;
+        }
+        final byte[] result = new byte[size];
+        System.arraycopy( buf, 0, result, 0, size );
+        return result;
+    }
+
+    long getCalls() {
+        return _calls.get();
+    }
+
+    long getBytesIn() {
+        return _bytesIn.get();
+    }
+
+    long getBytesOut() {
+        return _bytesOut.get();
+    }
+
+    /**
+     * The cpu time spent for compression in nanoseconds, the wall clock time if the
+     * jvm does not support measuring the cpu time.
+     */
+    long getCpuNanos() {
+        return _cpuNanos.get();
+    }
+
+    private static long cpuTime() {
+        return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+            ? THREAD_MX_BEAN.getCurrentThreadCpuTime()
+            : System.nanoTime();
+    }
+
+    /**
+     * Creates a dictionary from the given sample payloads. The payloads are split into
+     * tags and attributes, the ones that occur most often (weighted by their length)
+     * are put at the end of the dictionary, as deflate encodes shorter distances
+     * with fewer bits.
+     *
+     * @param samples the serialized sample objects.
+     * @param maxSize the max size of the dictionary.
+     */
+    static byte[] train( final List<byte[]> samples, final int maxSize ) {
+        final Map<String, int[]> counts = new HashMap<String, int[]>();
+        for ( final byte[] sample : samples ) {
+            final String text = toString( sample );
+            int start = 0;
+            for ( int i = 0; i < text.length(); i++ ) {
+                final char c = text.charAt( i );
+                if ( c == ' ' || c == '>' || i == text.length() - 1 ) {
+                    final String segment = text.substring( start, i + 1 );
+                    int[] count = counts.get( segment );
+                    if ( count == null ) {
+                        counts.put( segment, count = new int[1] );
+                    }
+                    count[0]++;
+                    start = i + 1;
+                }
+            }
+        }
+        final List<Map.Entry<String, int[]>> segments = new ArrayList<Map.Entry<String, int[]>>();
+        for ( final Map.Entry<String, int[]> entry : counts.entrySet() ) {
+            if ( entry.getValue()[0] > 1 && entry.getKey().length() > 2 ) {
+                segments.add( entry );
+            }
+        }
+        Collections.sort( segments, new Comparator<Map.Entry<String, int[]>>() {
+            public int compare( final Map.Entry<String, int[]> o1, final Map.Entry<String, int[]> o2 ) {
+                final long score1 = (long) o1.getValue()[0] * o1.getKey().length();
+                final long score2 = (long) o2.getValue()[0] * o2.getKey().length();
+                return score1 > score2 ? -1 : score1 < score2 ? 1 : 0;
+            }
+        } );
+        final StringBuilder sb = new StringBuilder();
+        for ( final Map.Entry<String, int[]> segment : segments ) {
+            if ( sb.length() + segment.getKey().length() > maxSize ) {
+                break;
+            }
+            sb.insert( 0, segment.getKey() );
+        }
+        try {
+            final byte[] result = sb.toString().getBytes( "UTF-8" );
+            if ( result.length <= maxSize ) {
+                return result;
+            }
+            final byte[] truncated = new byte[maxSize];
+            System.arraycopy( result, result.length - maxSize, truncated, 0, maxSize );
+            return truncated;
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    private static String toString( final byte[] bytes ) {
+        try {
+            return new String( bytes, "UTF-8" );
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    static byte[] readFully( final InputStream in ) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4096];
+            int read;
+            while ( ( read = in.read( buf ) ) != -1 ) {
+                out.write( buf, 0, read );
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Creates a dictionary from sample payloads (e.g. sessions dumped from memcached).
+     * Usage: <code>XMLCompressor &lt;dictionary file&gt; &lt;sample file&gt;...</code>
+     */
+    public static void main( final String[] args ) throws IOException {
+        if ( args.length < 2 ) {
+            System.err.println( "Usage: " + XMLCompressor.class.getName() + " <dictionary file> <sample file>..." );
+            System.exit( 1 );
+        }
+        final List<byte[]> samples = new ArrayList<byte[]>();
+        for ( int i = 1; i < args.length; i++ ) {
+            samples.add( readFully( new FileInputStream( new File( args[i] ) ) ) );
+        }
+        final byte[] dictionary = train( samples, MAX_DICTIONARY_SIZE );
+        final OutputStream out = new FileOutputStream( new File( args[0] ) );
+        try {
+            out.write( dictionary );
+        } finally {
+            out.close();
+        }
+        System.out.println( "Wrote dictionary of " + dictionary.length + " bytes from " + samples.size() + " samples to " + args[0] );
+    }
+
+}
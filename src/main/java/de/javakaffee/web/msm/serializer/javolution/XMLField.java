@@ -0,0 +1,73 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Customizes how a field is bound by the {@link XMLReflectionFormat}: the name
+ * that is written instead of the field name (e.g. a short alias for a long
+ * field name) and if the field is written as attribute or as element.
+ * <p>
+ * Changing the name or the mapping of a field changes the serialized form,
+ * so sessions written before cannot be read afterwards (the field is just
+ * left unset).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+@Documented
+@Retention( RetentionPolicy.RUNTIME )
+@Target( ElementType.FIELD )
+public @interface XMLField {
+
+    /**
+     * The name of the attribute/element, defaults to the field name.
+     */
+    String name() default "";
+
+    /**
+     * Specifies if the field is written as attribute or as element.
+     */
+    Mapping mapping() default Mapping.DEFAULT;
+
+    /**
+     * How a field is mapped to xml.
+     */
+    enum Mapping {
+        /**
+         * Primitives, wrappers, strings and enums are written as attributes,
+         * everything else as elements.
+         */
+        DEFAULT,
+        /**
+         * The field is written as attribute, only supported for the types that
+         * are written as attributes by default and for other {@link Number}s.
+         */
+        ATTRIBUTE,
+        /**
+         * The field is written as element, with its type (and an id) like
+         * any other object.
+         */
+        ELEMENT
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import sun.misc.Unsafe;
+
+/**
+ * Reads and writes the value of a field for the {@link XMLReflectionFormat}.
+ * The {@link #reflective(Field) reflective} accessor uses the {@link Field}
+ * itself, the {@link #optimized(Field) optimized} accessor accesses the field
+ * via its offset (using {@link Unsafe}), without the access and type checks
+ * done by reflection for each invocation.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+abstract class XMLFieldAccessor {
+
+    private static final Logger LOG = Logger.getLogger( XMLFieldAccessor.class.getName() );
+
+    private static final Unsafe UNSAFE = loadUnsafe();
+
+    private static Unsafe loadUnsafe() {
+        try {
+            final Field field = Unsafe.class.getDeclaredField( "theUnsafe" );
+            field.setAccessible( true );
+            return (Unsafe) field.get( null );
+        } catch ( final Throwable e ) {
+            LOG.log( Level.INFO, "Unsafe is not available, fields are accessed via reflection only.", e );
+            return null;
+        }
+    }
+
+    /**
+     * Returns an accessor using the given (accessible) field.
+     */
+    static XMLFieldAccessor reflective( final Field field ) {
+        return new ReflectiveAccessor( field );
+    }
+
+    /**
+     * Returns an accessor that accesses the field via its offset, or a
+     * {@link #reflective(Field) reflective} accessor if that's not possible.
+     */
+    static XMLFieldAccessor optimized( final Field field ) {
+        return UNSAFE != null ? new UnsafeAccessor( field ) : new ReflectiveAccessor( field );
+    }
+
+    /**
+     * Determines, if {@link #optimized(Field)} returns accessors that are
+     * different from the reflective ones.
+     */
+    static boolean isOptimizationAvailable() {
+        return UNSAFE != null;
+    }
+
+    abstract boolean getBoolean( Object obj ) throws IllegalAccessException;
+    abstract byte getByte( Object obj ) throws IllegalAccessException;
+    abstract char getChar( Object obj ) throws IllegalAccessException;
+    abstract short getShort( Object obj ) throws IllegalAccessException;
+    abstract int getInt( Object obj ) throws IllegalAccessException;
+    abstract long getLong( Object obj ) throws IllegalAccessException;
+    abstract float getFloat( Object obj ) throws IllegalAccessException;
+    abstract double getDouble( Object obj ) throws IllegalAccessException;
+    abstract Object get( Object obj ) throws IllegalAccessException;
+
+    abstract void setBoolean( Object obj, boolean value ) throws IllegalAccessException;
+    abstract void setByte( Object obj, byte value ) throws IllegalAccessException;
+    abstract void setChar( Object obj, char value ) throws IllegalAccessException;
+    abstract void setShort( Object obj, short value ) throws IllegalAccessException;
+    abstract void setInt( Object obj, int value ) throws IllegalAccessException;
+    abstract void setLong( Object obj, long value ) throws IllegalAccessException;
+    abstract void setFloat( Object obj, float value ) throws IllegalAccessException;
+    abstract void setDouble( Object obj, double value ) throws IllegalAccessException;
+    abstract void set( Object obj, Object value ) throws IllegalAccessException;
+
+    static final class ReflectiveAccessor extends XMLFieldAccessor {
+
+        private final Field _field;
+
+        ReflectiveAccessor( final Field field ) {
+            _field = field;
+        }
+
+        @Override boolean getBoolean( final Object obj ) throws IllegalAccessException { return _field.getBoolean( obj ); }
+        @Override byte getByte( final Object obj ) throws IllegalAccessException { return _field.getByte( obj ); }
+        @Override char getChar( final Object obj ) throws IllegalAccessException { return _field.getChar( obj ); }
+        @Override short getShort( final Object obj ) throws IllegalAccessException { return _field.getShort( obj ); }
+        @Override int getInt( final Object obj ) throws IllegalAccessException { return _field.getInt( obj ); }
+        @Override long getLong( final Object obj ) throws IllegalAccessException { return _field.getLong( obj ); }
+        @Override float getFloat( final Object obj ) throws IllegalAccessException { return _field.getFloat( obj ); }
+        @Override double getDouble( final Object obj ) throws IllegalAccessException { return _field.getDouble( obj ); }
+        @Override Object get( final Object obj ) throws IllegalAccessException { return _field.get( obj ); }
+
+        @Override void setBoolean( final Object obj, final boolean value ) throws IllegalAccessException { _field.setBoolean( obj, value ); }
+        @Override void setByte( final Object obj, final byte value ) throws IllegalAccessException { _field.setByte( obj, value ); }
+        @Override void setChar( final Object obj, final char value ) throws IllegalAccessException { _field.setChar( obj, value ); }
+        @Override void setShort( final Object obj, final short value ) throws IllegalAccessException { _field.setShort( obj, value ); }
+        @Override void setInt( final Object obj, final int value ) throws IllegalAccessException { _field.setInt( obj, value ); }
+        @Override void setLong( final Object obj, final long value ) throws IllegalAccessException { _field.setLong( obj, value ); }
+        @Override void setFloat( final Object obj, final float value ) throws IllegalAccessException { _field.setFloat( obj, value ); }
+        @Override void setDouble( final Object obj, final double value ) throws IllegalAccessException { _field.setDouble( obj, value ); }
+        @Override void set( final Object obj, final Object value ) throws IllegalAccessException { _field.set( obj, value ); }
+
+    }
+
+    /**
+     * Accesses the field via its offset. The type of the value passed to {@link #set(Object, Object)}
+     * is checked, as the {@link Field} would do it. Boxed values of primitive fields (read or written
+     * via {@link #get(Object)} and {@link #set(Object, Object)}) are left to the {@link Field}.
+     * Volatile fields are accessed with volatile semantics, as via the {@link Field}.
+     */
+    static final class UnsafeAccessor extends XMLFieldAccessor {
+
+        private final Field _field;
+        private final long _offset;
+        private final Class<?> _type;
+        private final boolean _volatile;
+
+        UnsafeAccessor( final Field field ) {
+            _field = field;
+            _offset = UNSAFE.objectFieldOffset( field );
+            _type = field.getType();
+            _volatile = Modifier.isVolatile( field.getModifiers() );
+        }
+
+        @Override boolean getBoolean( final Object obj ) { return _volatile ? UNSAFE.getBooleanVolatile( obj, _offset ) : UNSAFE.getBoolean( obj, _offset ); }
+        @Override byte getByte( final Object obj ) { return _volatile ? UNSAFE.getByteVolatile( obj, _offset ) : UNSAFE.getByte( obj, _offset ); }
+        @Override char getChar( final Object obj ) { return _volatile ? UNSAFE.getCharVolatile( obj, _offset ) : UNSAFE.getChar( obj, _offset ); }
+        @Override short getShort( final Object obj ) { return _volatile ? UNSAFE.getShortVolatile( obj, _offset ) : UNSAFE.getShort( obj, _offset ); }
+        @Override int getInt( final Object obj ) { return _volatile ? UNSAFE.getIntVolatile( obj, _offset ) : UNSAFE.getInt( obj, _offset ); }
+        @Override long getLong( final Object obj ) { return _volatile ? UNSAFE.getLongVolatile( obj, _offset ) : UNSAFE.getLong( obj, _offset ); }
+        @Override float getFloat( final Object obj ) { return _volatile ? UNSAFE.getFloatVolatile( obj, _offset ) : UNSAFE.getFloat( obj, _offset ); }
+        @Override double getDouble( final Object obj ) { return _volatile ? UNSAFE.getDoubleVolatile( obj, _offset ) : UNSAFE.getDouble( obj, _offset ); }
+
+        @Override
+        Object get( final Object obj ) throws IllegalAccessException {
+            if ( _type.isPrimitive() ) {
+                return _field.get( obj );
+            }
+            return _volatile ? UNSAFE.getObjectVolatile( obj, _offset ) : UNSAFE.getObject( obj, _offset );
+        }
+
+
+        @Override void setBoolean( final Object obj, final boolean value ) { if ( _volatile ) { UNSAFE.putBooleanVolatile( obj, _offset, value ); } else { UNSAFE.putBoolean( obj, _offset, value ); } }
+        @Override void setByte( final Object obj, final byte value ) { if ( _volatile ) { UNSAFE.putByteVolatile( obj, _offset, value ); } else { UNSAFE.putByte( obj, _offset, value ); } }
+        @Override void setChar( final Object obj, final char value ) { if ( _volatile ) { UNSAFE.putCharVolatile( obj, _offset, value ); } else { UNSAFE.putChar( obj, _offset, value ); } }
+        @Override void setShort( final Object obj, final short value ) { if ( _volatile ) { UNSAFE.putShortVolatile( obj, _offset, value ); } else { UNSAFE.putShort( obj, _offset, value ); } }
+        @Override void setInt( final Object obj, final int value ) { if ( _volatile ) { UNSAFE.putIntVolatile( obj, _offset, value ); } else { UNSAFE.putInt( obj, _offset, value ); } }
+        @Override void setLong( final Object obj, final long value ) { if ( _volatile ) { UNSAFE.putLongVolatile( obj, _offset, value ); } else { UNSAFE.putLong( obj, _offset, value ); } }
+        @Override void setFloat( final Object obj, final float value ) { if ( _volatile ) { UNSAFE.putFloatVolatile( obj, _offset, value ); } else { UNSAFE.putFloat( obj, _offset, value ); } }
+        @Override void setDouble( final Object obj, final double value ) { if ( _volatile ) { UNSAFE.putDoubleVolatile( obj, _offset, value ); } else { UNSAFE.putDouble( obj, _offset, value ); } }
+
+        @Override
+        void set( final Object obj, final Object value ) throws IllegalAccessException {
+            if ( _type.isPrimitive() ) {
+                _field.set( obj, value );
+                return;
+            }
+            if ( value != null && !_type.isInstance( value ) ) {
+                throw new IllegalArgumentException( "Can not set " + _type.getName() + " field to " + value.getClass().getName() );
+            }
+            if ( _volatile ) {
+                UNSAFE.putObjectVolatile( obj, _offset, value );
+            } else {
+                UNSAFE.putObject( obj, _offset, value );
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Java Flight Recorder events for the (de)serialization of sessions, the creation of
+ * {@link XMLReflectionFormat}s and classes that cannot be resolved, so that in a recording
+ * latency spikes can be attributed to sessions and classes.
+ * <p>
+ * The events are defined at runtime via the <code>jdk.jfr.EventFactory</code>, which is
+ * accessed via reflection, so that this also runs on jvms without flight recorder.
+ * There each {@link EventType#begin()} returns <code>null</code>, and the same is the case
+ * when no recording is enabled for the event. Callers commit the event only if it's
+ * not <code>null</code>, so that the values are not even boxed when nothing is recorded.
+ * </p>
+ * <p>
+ * Whether a recording is running is tracked via a <code>jdk.jfr.FlightRecorderListener</code>,
+ * so that {@link EventType#begin()} only reads a volatile flag while nothing is recorded.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLFlightRecorder {
+
+    private static final Logger _log = Logger.getLogger( XMLFlightRecorder.class.getName() );
+
+    private static final String[] CATEGORY = { "memcached-session-manager", "Serialization" };
+
+    private static final Method CREATE;
+    private static final Method NEW_EVENT;
+    private static final Method GET_EVENT_TYPE;
+    private static final Method IS_ENABLED;
+    private static final Method BEGIN;
+    private static final Method END;
+    private static final Method SHOULD_COMMIT;
+    private static final Method SET;
+    private static final Method COMMIT;
+    private static final Constructor<?> ANNOTATION_ELEMENT;
+    private static final Constructor<?> VALUE_DESCRIPTOR;
+    private static final Class<?>[] ANNOTATIONS;
+    private static final Method GET_FLIGHT_RECORDER;
+    private static final Method GET_RECORDINGS;
+    private static final Method GET_STATE;
+
+    /**
+     * Specifies if any recording is running, updated by the recorder listener.
+     */
+    private static volatile boolean _recording;
+
+    static {
+        Method create = null, newEvent = null, getEventType = null, isEnabled = null, begin = null, end = null, shouldCommit = null, set = null, commit = null;
+        Constructor<?> annotationElement = null, valueDescriptor = null;
+        Class<?>[] annotations = null;
+        Method getFlightRecorder = null, getRecordings = null, getState = null;
+        try {
+            final Class<?> eventFactory = Class.forName( "jdk.jfr.EventFactory" );
+            final Class<?> event = Class.forName( "jdk.jfr.Event" );
+            create = eventFactory.getMethod( "create", List.class, List.class );
+            newEvent = eventFactory.getMethod( "newEvent" );
+            getEventType = eventFactory.getMethod( "getEventType" );
+            isEnabled = Class.forName( "jdk.jfr.EventType" ).getMethod( "isEnabled" );
+            begin = event.getMethod( "begin" );
+            end = event.getMethod( "end" );
+            shouldCommit = event.getMethod( "shouldCommit" );
+            set = event.getMethod( "set", int.class, Object.class );
+            commit = event.getMethod( "commit" );
+            annotationElement = Class.forName( "jdk.jfr.AnnotationElement" ).getConstructor( Class.class, Object.class );
+            valueDescriptor = Class.forName( "jdk.jfr.ValueDescriptor" ).getConstructor( Class.class, String.class );
+            annotations = new Class<?>[] { Class.forName( "jdk.jfr.Name" ), Class.forName( "jdk.jfr.Label" ),
+                    Class.forName( "jdk.jfr.Category" ) };
+            final Class<?> flightRecorder = Class.forName( "jdk.jfr.FlightRecorder" );
+            getFlightRecorder = flightRecorder.getMethod( "getFlightRecorder" );
+            getRecordings = flightRecorder.getMethod( "getRecordings" );
+            getState = Class.forName( "jdk.jfr.Recording" ).getMethod( "getState" );
+        } catch ( final Exception e ) {
+            _log.fine( "Flight recorder is not available: " + e );
+            create = null;
+        }
+        CREATE = create;
+        NEW_EVENT = newEvent;
+        GET_EVENT_TYPE = getEventType;
+        IS_ENABLED = isEnabled;
+        BEGIN = begin;
+        END = end;
+        SHOULD_COMMIT = shouldCommit;
+        SET = set;
+        COMMIT = commit;
+        ANNOTATION_ELEMENT = annotationElement;
+        VALUE_DESCRIPTOR = valueDescriptor;
+        ANNOTATIONS = annotations;
+        GET_FLIGHT_RECORDER = getFlightRecorder;
+        GET_RECORDINGS = getRecordings;
+        GET_STATE = getState;
+        if ( CREATE != null ) {
+            addRecorderListener();
+        }
+    }
+
+    /**
+     * The serialization of a session, with the session id, the number of bytes and of objects.
+     */
+    static final EventType SERIALIZATION = new EventType( "de.javakaffee.web.msm.SessionSerialization",
+            "Session Serialization", "sessionId", String.class, "bytes", long.class, "objects", int.class );
+
+    /**
+     * The deserialization of a session, with the session id, the number of bytes and of objects.
+     */
+    static final EventType DESERIALIZATION = new EventType( "de.javakaffee.web.msm.SessionDeserialization",
+            "Session Deserialization", "sessionId", String.class, "bytes", long.class, "objects", int.class );
+
+    /**
+     * The creation of an {@link XMLReflectionFormat}, with the class and the number of its fields.
+     */
+    static final EventType REFLECTION_FORMAT = new EventType( "de.javakaffee.web.msm.ReflectionFormatCreation",
+            "Reflection Format Creation", "className", String.class, "fields", int.class, "optimized", boolean.class );
+
+    /**
+     * A class name read from a serialized session that could not be resolved.
+     */
+    static final EventType CLASS_RESOLUTION_MISS = new EventType( "de.javakaffee.web.msm.ClassResolutionMiss",
+            "Class Resolution Miss", "className", String.class );
+
+    private XMLFlightRecorder() {
+    }
+
+    /**
+     * Returns <code>true</code> if the flight recorder is available in this jvm.
+     */
+    static boolean isAvailable() {
+        return CREATE != null;
+    }
+
+    /**
+     * Registers a listener that updates {@link #_recording} whenever a recording changes its state.
+     * The listener interface is implemented by a proxy, as it's only available with flight recorder.
+     */
+    private static void addRecorderListener() {
+        try {
+            final Class<?> flightRecorder = Class.forName( "jdk.jfr.FlightRecorder" );
+            final Class<?> listenerClass = Class.forName( "jdk.jfr.FlightRecorderListener" );
+            final Object listener = Proxy.newProxyInstance( XMLFlightRecorder.class.getClassLoader(),
+                    new Class<?>[] { listenerClass }, new InvocationHandler() {
+                        public Object invoke( final Object proxy, final Method method, final Object[] args ) {
+                            if ( method.getDeclaringClass() == Object.class ) {
+                                if ( "equals".equals( method.getName() ) ) {
+                                    return proxy == args[0];
+                                }
+                                return "hashCode".equals( method.getName() )
+                                    ? System.identityHashCode( proxy )
+                                    : XMLFlightRecorder.class.getName() + " listener";
+                            }
+                            if ( "recordingStateChanged".equals( method.getName() ) ) {
+                                updateRecording();
+                            }
+                            return null;
+                        }
+                    } );
+            flightRecorder.getMethod( "addListener", listenerClass ).invoke( null, listener );
+            /* recordings started before the listener was added don't notify it
+             */
+            if ( (Boolean) flightRecorder.getMethod( "isInitialized" ).invoke( null ) ) {
+                updateRecording();
+            }
+        } catch ( final Exception e ) {
+            _log.log( Level.WARNING, "Could not add flight recorder listener, events are not recorded", e );
+        }
+    }
+
+    private static synchronized void updateRecording() {
+        boolean recording = false;
+        try {
+            for ( final Object r : (List<?>) GET_RECORDINGS.invoke( GET_FLIGHT_RECORDER.invoke( null ) ) ) {
+                if ( "RUNNING".equals( String.valueOf( GET_STATE.invoke( r ) ) ) ) {
+                    recording = true;
+                    break;
+                }
+            }
+        } catch ( final Exception e ) {
+            _log.log( Level.FINE, "Could not determine the running recordings", e );
+        }
+        _recording = recording;
+    }
+
+    /**
+     * A type of event, its fields are set in the order they're defined.
+     */
+    static final class EventType {
+
+        private final String _name;
+        private final Object _factory;
+        private final Object _type;
+
+        /**
+         * @param fields pairs of the name and the type of a field.
+         */
+        EventType( final String name, final String label, final Object ... fields ) {
+            _name = name;
+            _factory = CREATE != null ? createFactory( name, label, fields ) : null;
+            _type = _factory != null ? getEventType( _factory ) : null;
+        }
+
+        private static Object createFactory( final String name, final String label, final Object[] fields ) {
+            try {
+                final List<Object> annotations = Arrays.asList(
+                        ANNOTATION_ELEMENT.newInstance( ANNOTATIONS[0], name ),
+                        ANNOTATION_ELEMENT.newInstance( ANNOTATIONS[1], label ),
+                        ANNOTATION_ELEMENT.newInstance( ANNOTATIONS[2], CATEGORY ) );
+                final List<Object> descriptors = new ArrayList<Object>();
+                for ( int i = 0; i < fields.length; i += 2 ) {
+                    descriptors.add( VALUE_DESCRIPTOR.newInstance( fields[i + 1], fields[i] ) );
+                }
+                return CREATE.invoke( null, annotations, descriptors );
+            } catch ( final Exception e ) {
+                _log.log( Level.WARNING, "Could not create flight recorder event " + name, e );
+                return null;
+            }
+        }
+
+        private static Object getEventType( final Object factory ) {
+            try {
+                return GET_EVENT_TYPE.invoke( factory );
+            } catch ( final Exception e ) {
+                _log.log( Level.WARNING, "Could not get flight recorder event type", e );
+                return null;
+            }
+        }
+
+        /**
+         * Starts an event, its duration is measured until it's {@link #commit(Object, Object...) committed}.
+         * 
+         * @return the event, or <code>null</code> if the flight recorder is not available,
+         *  no recording is running or the event is not enabled.
+         */
+        Object begin() {
+            if ( !_recording || _type == null ) {
+                return null;
+            }
+            try {
+                if ( !( (Boolean) IS_ENABLED.invoke( _type ) ) ) {
+                    return null;
+                }
+                final Object event = NEW_EVENT.invoke( _factory );
+                BEGIN.invoke( event );
+                return event;
+            } catch ( final Exception e ) {
+                _log.log( Level.FINE, "Could not begin flight recorder event " + _name, e );
+                return null;
+            }
+        }
+
+        /**
+         * Ends the given event and commits it with the given field values, if it passes
+         * the threshold of the recording.
+         * 
+         * @param event the event returned by {@link #begin()}, may be <code>null</code>.
+         */
+        void commit( final Object event, final Object ... values ) {
+            if ( event == null ) {
+                return;
+            }
+            try {
+                END.invoke( event );
+                if ( (Boolean) SHOULD_COMMIT.invoke( event ) ) {
+                    for ( int i = 0; i < values.length; i++ ) {
+                        SET.invoke( event, i, values[i] );
+                    }
+                    COMMIT.invoke( event );
+                }
+            } catch ( final Exception e ) {
+                _log.log( Level.FINE, "Could not commit flight recorder event " + _name, e );
+            }
+        }
+
+        String getName() {
+            return _name;
+        }
+
+    }
+
+}
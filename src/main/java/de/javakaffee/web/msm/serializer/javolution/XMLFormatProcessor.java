@@ -0,0 +1,427 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLFormat;
+
+/**
+ * An annotation processor that generates {@link XMLFormat}s for classes annotated
+ * with {@link XMLGenerateFormat}, see there for the requirements for such classes.
+ * <p>
+ * The processor is registered via <code>META-INF/services/javax.annotation.processing.Processor</code>,
+ * so it's run by javac (since java 6) when this jar is on the classpath of the
+ * compilation. The generated formats don't support the positional layout (see
+ * {@link XMLBinding#setPositionalLayout(boolean)}), they always write the field names.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+@SupportedAnnotationTypes( "de.javakaffee.web.msm.serializer.javolution.XMLGenerateFormat" )
+public class XMLFormatProcessor extends AbstractProcessor {
+
+    static final String SUFFIX = "_XMLFormat";
+
+    private static final String[] ATTRIBUTE_TYPES = { "java.lang.String", "java.lang.Boolean", "java.lang.Integer",
+        "java.lang.Long", "java.lang.Short", "java.lang.Double", "java.lang.Float", "java.lang.Character", "java.lang.Byte" };
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean process( final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv ) {
+        for ( final Element element : roundEnv.getElementsAnnotatedWith( XMLGenerateFormat.class ) ) {
+            if ( element.getKind() != ElementKind.CLASS ) {
+                error( element, "@XMLGenerateFormat is only supported for classes." );
+                continue;
+            }
+            try {
+                generate( (TypeElement) element );
+            } catch ( final IllegalArgumentException e ) {
+                error( element, e.getMessage() );
+            } catch ( final IOException e ) {
+                error( element, "Could not write the generated format: " + e );
+            }
+        }
+        return true;
+    }
+
+    private void error( final Element element, final String message ) {
+        processingEnv.getMessager().printMessage( Diagnostic.Kind.ERROR, message, element );
+    }
+
+    private void generate( final TypeElement type ) throws IOException {
+        if ( type.getModifiers().contains( Modifier.PRIVATE ) || type.getModifiers().contains( Modifier.ABSTRACT )
+                || type.getNestingKind().isNested() && !type.getModifiers().contains( Modifier.STATIC ) ) {
+            throw new IllegalArgumentException( "Formats can only be generated for non private, non abstract top level or static nested classes." );
+        }
+        final PackageElement pkg = processingEnv.getElementUtils().getPackageOf( type );
+        if ( !hasAccessibleNoArgConstructor( type, pkg ) ) {
+            throw new IllegalArgumentException( "Formats can only be generated for classes with a non private no-arg constructor." );
+        }
+
+        final List<FieldInfo> fields = collectFields( type, pkg );
+        final List<FieldInfo> attributes = new ArrayList<FieldInfo>();
+        final List<FieldInfo> elements = new ArrayList<FieldInfo>();
+        /* the same names are rejected as by the XMLReflectionFormat, a format writing them
+         * would produce xml that cannot be read
+         */
+        final XMLReflectionFormat.FieldNames names = new XMLReflectionFormat.FieldNames();
+        for ( final FieldInfo field : fields ) {
+            if ( !names.add( field.name, field.alias, field.attribute ) ) {
+                throw new IllegalArgumentException( "The name '" + field.name + "' of field " + field.fieldName + " is already used." );
+            }
+            ( field.attribute ? attributes : elements ).add( field );
+        }
+
+        final String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        final String binaryName = processingEnv.getElementUtils().getBinaryName( type ).toString();
+        final String simpleName = ( packageName.length() > 0 ? binaryName.substring( packageName.length() + 1 ) : binaryName ).replace( '$', '_' )
+                + SUFFIX;
+        final String typeName = erasure( type.asType() );
+
+        final JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                ( packageName.length() > 0 ? packageName + "." : "" ) + simpleName, type );
+        final PrintWriter out = new PrintWriter( file.openWriter() );
+        try {
+            if ( packageName.length() > 0 ) {
+                out.println( "package " + packageName + ";" );
+                out.println();
+            }
+            out.println( "import de.javakaffee.web.msm.serializer.javolution.XMLBinding.InputElement;" );
+            out.println( "import de.javakaffee.web.msm.serializer.javolution.XMLBinding.OutputElement;" );
+            out.println( "import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLFormat;" );
+            out.println();
+            out.println( "/**" );
+            out.println( " * Generated by " + XMLFormatProcessor.class.getName() + " for {@link " + type.getQualifiedName() + "}." );
+            out.println( " */" );
+            out.println( "@SuppressWarnings( \"unchecked\" )" );
+            out.println( "public final class " + simpleName + " extends XMLFormat<" + typeName + "> {" );
+            out.println();
+            out.println( "    @Override" );
+            out.println( "    protected " + typeName + " newInstance( final Class<" + typeName + "> clazz, final InputElement input ) {" );
+            out.println( "        return new " + typeName + "();" );
+            out.println( "    }" );
+            out.println();
+            out.println( "    @Override" );
+            out.println( "    public void write( final " + typeName + " obj, final OutputElement output ) throws javax.xml.stream.XMLStreamException {" );
+            for ( final FieldInfo field : attributes ) {
+                writeAttribute( out, field );
+            }
+            for ( final FieldInfo field : elements ) {
+                out.println( "        {" );
+                out.println( "            final Object value = " + field.getter + ";" );
+                out.println( "            if ( value != null ) {" );
+                out.println( "                output.writeStartElement( \"" + field.elementName() + "\" );" );
+                out.println( "                output.add( value );" );
+                out.println( "                output.writeEndElement();" );
+                out.println( "            }" );
+                out.println( "        }" );
+            }
+            out.println( "    }" );
+            out.println();
+            out.println( "    @Override" );
+            out.println( "    public void read( final InputElement input, final " + typeName + " obj ) throws javax.xml.stream.XMLStreamException {" );
+            for ( final FieldInfo field : attributes ) {
+                readAttribute( out, field );
+            }
+            /* fields without element keep their default value like with the reflection format,
+             * even if the constructor initialized them
+             */
+            for ( final FieldInfo field : elements ) {
+                out.println( "        " + field.setter( defaultValue( field.type ) ) + ";" );
+            }
+            if ( !elements.isEmpty() ) {
+                out.println( "        while ( input.hasNext() ) {" );
+                out.println( "            final String name = input.getNextElementName();" );
+                out.println( "            final Object value = input.getNext();" );
+                String prefix = "if";
+                for ( final FieldInfo field : elements ) {
+                    out.println( "            " + prefix + " ( \"" + field.elementName() + "\".equals( name ) ) {" );
+                    out.println( "                " + field.setter( "(" + boxedType( field.type ) + ") value" ) + ";" );
+                    out.println( "            }" );
+                    prefix = "else if";
+                }
+                out.println( "        }" );
+            }
+            out.println( "    }" );
+            out.println();
+            out.println( "}" );
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeAttribute( final PrintWriter out, final FieldInfo field ) {
+        final TypeKind kind = field.type.getKind();
+        out.println( "        {" );
+        if ( kind.isPrimitive() ) {
+            out.println( "            final " + field.type + " value = " + field.getter + ";" );
+            final String isDefault;
+            switch ( kind ) {
+                case BOOLEAN: isDefault = "!value"; break;
+                case FLOAT: isDefault = "Float.floatToRawIntBits( value ) == 0"; break;
+                case DOUBLE: isDefault = "Double.doubleToRawLongBits( value ) == 0"; break;
+                default: isDefault = "value == 0";
+            }
+            out.println( "            if ( !( " + isDefault + " ) || !output.isOmitDefaultValues() ) {" );
+            out.println( "                output.setAttribute( \"" + field.name + "\", value );" );
+        } else {
+            out.println( "            final " + erasure( field.type ) + " value = " + field.getter + ";" );
+            out.println( "            if ( value != null ) {" );
+            out.println( "                output.setAttribute( \"" + field.name + "\", " + ( isEnum( field.type ) ? "value.name()" : "value.toString()" ) + " );" );
+        }
+        out.println( "            }" );
+        out.println( "        }" );
+    }
+
+    private void readAttribute( final PrintWriter out, final FieldInfo field ) {
+        if ( field.type.getKind().isPrimitive() ) {
+            out.println( "        " + field.setter( "input.getAttribute( \"" + field.name + "\", " + defaultValue( field.type ) + " )" ) + ";" );
+            return;
+        }
+        final String type = erasure( field.type );
+        final String value;
+        if ( isEnum( field.type ) ) {
+            value = "Enum.valueOf( " + type + ".class, value )";
+        } else if ( type.equals( "java.lang.String" ) ) {
+            value = "value";
+        } else if ( type.equals( "java.lang.Character" ) ) {
+            value = "Character.valueOf( value.charAt( 0 ) )";
+        } else {
+            value = type + ".valueOf( value )";
+        }
+        out.println( "        {" );
+        out.println( "            final String value = input.getAttribute( \"" + field.name + "\" );" );
+        out.println( "            " + field.setter( "value != null ? " + value + " : null" ) + ";" );
+        out.println( "        }" );
+    }
+
+    private boolean hasAccessibleNoArgConstructor( final TypeElement type, final PackageElement pkg ) {
+        for ( final ExecutableElement constructor : ElementFilter.constructorsIn( type.getEnclosedElements() ) ) {
+            if ( constructor.getParameters().isEmpty() && !constructor.getModifiers().contains( Modifier.PRIVATE ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects the fields like the {@link XMLReflectionFormat}: the fields of the class
+     * itself first, then the ones of the superclasses, ordered by {@link XMLFieldOrder}.
+     */
+    private List<FieldInfo> collectFields( final TypeElement type, final PackageElement pkg ) {
+        final List<FieldInfo> result = new ArrayList<FieldInfo>();
+        TypeElement current = type;
+        while ( current != null && !current.getQualifiedName().contentEquals( "java.lang.Object" ) ) {
+            for ( final VariableElement field : ElementFilter.fieldsIn( current.getEnclosedElements() ) ) {
+                final Set<Modifier> modifiers = field.getModifiers();
+                if ( !modifiers.contains( Modifier.STATIC ) && !modifiers.contains( Modifier.TRANSIENT )
+                        && field.getAnnotation( XMLExclude.class ) == null ) {
+                    result.add( createFieldInfo( current, field, pkg ) );
+                }
+            }
+            final TypeMirror superclass = current.getSuperclass();
+            current = superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ( (DeclaredType) superclass ).asElement() : null;
+        }
+
+        final XMLFieldOrder order = type.getAnnotation( XMLFieldOrder.class );
+        if ( order == null ) {
+            return result;
+        }
+        final List<FieldInfo> ordered = new ArrayList<FieldInfo>( result.size() );
+        for ( final String name : order.value() ) {
+            FieldInfo found = null;
+            for ( final FieldInfo field : result ) {
+                if ( field.fieldName.equals( name ) ) {
+                    found = field;
+                    break;
+                }
+            }
+            if ( found == null ) {
+                throw new IllegalArgumentException( "The field '" + name + "' specified by @XMLFieldOrder does not exist or is not serialized." );
+            }
+            result.remove( found );
+            ordered.add( found );
+        }
+        ordered.addAll( result );
+        return ordered;
+    }
+
+    private FieldInfo createFieldInfo( final TypeElement owner, final VariableElement field, final PackageElement pkg ) {
+        final String fieldName = field.getSimpleName().toString();
+        final XMLField annotation = field.getAnnotation( XMLField.class );
+        final boolean alias = annotation != null && annotation.name().length() > 0;
+        final String name = alias ? annotation.name() : fieldName;
+        final XMLField.Mapping mapping = annotation != null ? annotation.mapping() : XMLField.Mapping.DEFAULT;
+        final boolean defaultAttribute = isAttribute( field.asType() );
+        if ( mapping == XMLField.Mapping.ATTRIBUTE && !defaultAttribute ) {
+            throw new IllegalArgumentException( "The field " + fieldName + " cannot be mapped to an attribute by generated formats." );
+        }
+        final boolean attribute = mapping == XMLField.Mapping.DEFAULT ? defaultAttribute : mapping == XMLField.Mapping.ATTRIBUTE;
+
+        final String getter;
+        final String setterPrefix;
+        if ( isAccessible( field, pkg ) && !field.getModifiers().contains( Modifier.FINAL ) ) {
+            getter = "obj." + fieldName;
+            setterPrefix = "obj." + fieldName + " = ";
+        } else {
+            /* the property name of a field like "_name" is "name"
+             */
+            final String property = fieldName.length() > 1 && fieldName.charAt( 0 ) == '_' ? fieldName.substring( 1 ) : fieldName;
+            final String capitalized = Character.toUpperCase( property.charAt( 0 ) ) + property.substring( 1 );
+            final String getterName = findMethod( owner, pkg, "get" + capitalized, 0 ) ? "get" + capitalized
+                : field.asType().getKind() == TypeKind.BOOLEAN && findMethod( owner, pkg, "is" + capitalized, 0 ) ? "is" + capitalized
+                : null;
+            if ( getterName == null || !findMethod( owner, pkg, "set" + capitalized, 1 ) ) {
+                throw new IllegalArgumentException( "The field " + fieldName + " of " + owner + " must be accessible from package " + pkg
+                        + " (non private and non final) or have a getter and setter." );
+            }
+            getter = "obj." + getterName + "()";
+            setterPrefix = "obj.set" + capitalized + "( ";
+        }
+        return new FieldInfo( fieldName, name, alias, field.asType(), attribute, getter, setterPrefix );
+    }
+
+    private boolean isAccessible( final Element element, final PackageElement pkg ) {
+        final Set<Modifier> modifiers = element.getModifiers();
+        if ( modifiers.contains( Modifier.PUBLIC ) ) {
+            return true;
+        }
+        return !modifiers.contains( Modifier.PRIVATE ) && processingEnv.getElementUtils().getPackageOf( element ).equals( pkg );
+    }
+
+    private boolean findMethod( final TypeElement owner, final PackageElement pkg, final String name, final int parameters ) {
+        for ( final ExecutableElement method : ElementFilter.methodsIn( owner.getEnclosedElements() ) ) {
+            if ( method.getSimpleName().contentEquals( name ) && method.getParameters().size() == parameters
+                    && !method.getModifiers().contains( Modifier.STATIC ) && isAccessible( method, pkg ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link XMLReflectionFormat#isAttribute(Class)}.
+     */
+    private boolean isAttribute( final TypeMirror type ) {
+        if ( type.getKind().isPrimitive() ) {
+            return true;
+        }
+        if ( isEnum( type ) ) {
+            return true;
+        }
+        final String name = erasure( type );
+        for ( final String attributeType : ATTRIBUTE_TYPES ) {
+            if ( attributeType.equals( name ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isEnum( final TypeMirror type ) {
+        return type.getKind() == TypeKind.DECLARED && ( (DeclaredType) type ).asElement().getKind() == ElementKind.ENUM;
+    }
+
+    private String erasure( final TypeMirror type ) {
+        return processingEnv.getTypeUtils().erasure( type ).toString();
+    }
+
+    private String boxedType( final TypeMirror type ) {
+        if ( type.getKind().isPrimitive() ) {
+            return processingEnv.getTypeUtils().boxedClass( processingEnv.getTypeUtils().getPrimitiveType( type.getKind() ) )
+                    .getQualifiedName().toString();
+        }
+        return erasure( type );
+    }
+
+    private static String defaultValue( final TypeMirror type ) {
+        switch ( type.getKind() ) {
+            case BOOLEAN: return "false";
+            case CHAR: return "(char) 0";
+            case BYTE: return "(byte) 0";
+            case SHORT: return "(short) 0";
+            case INT: return "0";
+            case LONG: return "0L";
+            case FLOAT: return "0f";
+            case DOUBLE: return "0d";
+            default: return "null";
+        }
+    }
+
+    static final class FieldInfo {
+        final String fieldName;
+        final String name;
+        final boolean alias;
+        final TypeMirror type;
+        final boolean attribute;
+        final String getter;
+        private final String _setterPrefix;
+
+        FieldInfo( final String fieldName, final String name, final boolean alias, final TypeMirror type, final boolean attribute,
+                final String getter, final String setterPrefix ) {
+            this.fieldName = fieldName;
+            this.name = name;
+            this.alias = alias;
+            this.type = type;
+            this.attribute = attribute;
+            this.getter = getter;
+            _setterPrefix = setterPrefix;
+        }
+
+        String setter( final String value ) {
+            return _setterPrefix + value + ( _setterPrefix.endsWith( "( " ) ? " )" : "" );
+        }
+
+        String elementName() {
+            return XMLBinding.replace( name, '$', "_d_" );
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLFormat;
+
+/**
+ * Provides custom {@link XMLFormat}s, e.g. hand written formats for the classes
+ * that make up most of the serialized sessions. Providers can be added to the
+ * {@link AaltoTranscoderFactory} or registered via the
+ * {@link java.util.ServiceLoader} mechanism, by listing the implementation in
+ * <code>META-INF/services/de.javakaffee.web.msm.serializer.javolution.XMLFormatProvider</code>
+ * (implementations need a public no-arg constructor then).
+ * <p>
+ * A provider can match classes as it likes, e.g. also by superclass or interface.
+ * The returned format is cached per class, so a provider is asked only once for
+ * each class.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface XMLFormatProvider {
+
+    /**
+     * Returns the format for the given class or <code>null</code>, if this provider
+     * does not provide a format for this class.
+     */
+    <T> XMLFormat<T> getFormat( Class<T> clazz );
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLFormat;
+
+/**
+ * Marks a class for which the {@link XMLFormatProcessor} shall generate an
+ * {@link XMLFormat} at compile time. The generated format is named like the
+ * class with the suffix "_XMLFormat" (for nested classes the names of the
+ * enclosing classes are prepended, separated by '_'), is placed in the same
+ * package and is used by the {@link XMLBinding} instead of the {@link XMLReflectionFormat}.
+ * <p>
+ * The generated format produces the same xml as the {@link XMLReflectionFormat}
+ * (also regarding {@link XMLField}, {@link XMLExclude} and {@link XMLFieldOrder}),
+ * but accesses the fields directly (or via getters/setters for private fields)
+ * and creates objects via the no-arg constructor, without any reflection.
+ * Therefore the class needs an accessible no-arg constructor and all fields
+ * must be accessible from the package of the class, either directly or via
+ * getter and setter.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+@Documented
+@Retention( RetentionPolicy.RUNTIME )
+@Target( ElementType.TYPE )
+public @interface XMLGenerateFormat {
+}
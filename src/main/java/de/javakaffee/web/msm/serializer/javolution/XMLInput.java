@@ -0,0 +1,152 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.InputElement;
+
+/**
+ * The source of xml events an {@link InputElement} reads from. This is the
+ * small subset of {@link XMLStreamReader} that is actually used by the
+ * {@link InputElement}, so that it can be backed by something else than
+ * an aalto stream reader (e.g. the events recorded by an {@link XMLRecordedInput}).
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+abstract class XMLInput {
+
+    /**
+     * Moves to the next event and returns its type, see {@link XMLStreamReader#next()}.
+     */
+    abstract int next() throws XMLStreamException;
+
+    /**
+     * Skips everything but start and end elements, see {@link XMLStreamReader#nextTag()}.
+     */
+    abstract int nextTag() throws XMLStreamException;
+
+    abstract int getEventType();
+
+    abstract String getLocalName();
+
+    abstract int getAttributeCount();
+
+    abstract String getAttributeLocalName( int index );
+
+    abstract String getAttributeValue( int index );
+
+    /**
+     * Returns the value of the attribute with the given (namespace less) name,
+     * or <code>null</code> if the current element does not have such an attribute.
+     */
+    abstract String getAttributeValue( String localName );
+
+    /**
+     * Returns the value of the attribute with the given name as int, or the default value
+     * if the current element does not have such an attribute.
+     */
+    int getIntAttribute( final String localName, final int defaultValue ) {
+        final String result = getAttributeValue( localName );
+        return result != null ? Integer.parseInt( result ) : defaultValue;
+    }
+
+    long getLongAttribute( final String localName, final long defaultValue ) {
+        final String result = getAttributeValue( localName );
+        return result != null ? Long.parseLong( result ) : defaultValue;
+    }
+
+    float getFloatAttribute( final String localName, final float defaultValue ) {
+        final String result = getAttributeValue( localName );
+        return result != null ? Float.parseFloat( result ) : defaultValue;
+    }
+
+    double getDoubleAttribute( final String localName, final double defaultValue ) {
+        final String result = getAttributeValue( localName );
+        return result != null ? Double.parseDouble( result ) : defaultValue;
+    }
+
+    abstract Location getLocation();
+
+    abstract void close() throws XMLStreamException;
+
+    /**
+     * An {@link XMLInput} that delegates to an {@link XMLStreamReader}.
+     */
+    static final class StaxInput extends XMLInput {
+
+        private final XMLStreamReader _reader;
+
+        StaxInput( final XMLStreamReader reader ) {
+            _reader = reader;
+        }
+
+        @Override
+        int next() throws XMLStreamException {
+            return _reader.next();
+        }
+
+        @Override
+        int nextTag() throws XMLStreamException {
+            return _reader.nextTag();
+        }
+
+        @Override
+        int getEventType() {
+            return _reader.getEventType();
+        }
+
+        @Override
+        String getLocalName() {
+            return _reader.getLocalName();
+        }
+
+        @Override
+        int getAttributeCount() {
+            return _reader.getAttributeCount();
+        }
+
+        @Override
+        String getAttributeLocalName( final int index ) {
+            return _reader.getAttributeLocalName( index );
+        }
+
+        @Override
+        String getAttributeValue( final int index ) {
+            return _reader.getAttributeValue( index );
+        }
+
+        @Override
+        String getAttributeValue( final String localName ) {
+            return _reader.getAttributeValue( null, localName );
+        }
+
+        @Override
+        Location getLocation() {
+            return _reader.getLocation();
+        }
+
+        @Override
+        void close() throws XMLStreamException {
+            _reader.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.stream.XMLStreamException;
+
+import sun.reflect.ReflectionFactory;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.InstantiationStrategy;
+
+/**
+ * Creates the instances of a class when objects are read. The strategy is chosen once
+ * per class and the instantiator is cached:
+ * <ul>
+ * <li>the common jdk collections and maps are created directly, presized if the expected
+ * number of elements is known,</li>
+ * <li>classes with a no-arg constructor are created via this (cached and accessible) constructor,</li>
+ * <li>other classes are created via a serialization constructor that does not run any constructor
+ * of the class, this is also used by the {@link XMLReflectionFormat}.</li>
+ * </ul>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+abstract class XMLInstantiator<T> {
+
+    private static final ReflectionFactory REFLECTION_FACTORY = ReflectionFactory.getReflectionFactory();
+    private static final Object[] INITARGS = new Object[0];
+
+    private static final ConcurrentMap<Class<?>, XMLInstantiator<?>> INSTANTIATORS = new ConcurrentHashMap<Class<?>, XMLInstantiator<?>>();
+    /* the instantiators for the XMLReflectionFormat, kept separately so that they
+     * don't replace the constructors chosen for other formats
+     */
+    private static final ConcurrentMap<Class<?>, XMLInstantiator<?>> SERIALIZATION_INSTANTIATORS = new ConcurrentHashMap<Class<?>, XMLInstantiator<?>>();
+    private static final Map<Class<?>, XMLInstantiator<?>> COLLECTION_FACTORIES = new HashMap<Class<?>, XMLInstantiator<?>>();
+
+    static {
+        COLLECTION_FACTORIES.put( ArrayList.class, new XMLInstantiator<ArrayList<?>>( InstantiationStrategy.COLLECTION_FACTORY ) {
+            @Override
+            ArrayList<?> newInstance( final int size ) {
+                return size >= 0 ? new ArrayList<Object>( size ) : new ArrayList<Object>();
+            }
+        } );
+        COLLECTION_FACTORIES.put( Vector.class, new XMLInstantiator<Vector<?>>( InstantiationStrategy.COLLECTION_FACTORY ) {
+            @Override
+            Vector<?> newInstance( final int size ) {
+                return size >= 0 ? new Vector<Object>( Math.max( size, 1 ) ) : new Vector<Object>();
+            }
+        } );
+        COLLECTION_FACTORIES.put( HashSet.class, new XMLInstantiator<HashSet<?>>( InstantiationStrategy.COLLECTION_FACTORY ) {
+            @Override
+            HashSet<?> newInstance( final int size ) {
+                return size >= 0 ? new HashSet<Object>( capacity( size ) ) : new HashSet<Object>();
+            }
+        } );
+        COLLECTION_FACTORIES.put( LinkedHashSet.class, new XMLInstantiator<LinkedHashSet<?>>( InstantiationStrategy.COLLECTION_FACTORY ) {
+            @Override
+            LinkedHashSet<?> newInstance( final int size ) {
+                return size >= 0 ? new LinkedHashSet<Object>( capacity( size ) ) : new LinkedHashSet<Object>();
+            }
+        } );
+        COLLECTION_FACTORIES.put( HashMap.class, new XMLInstantiator<HashMap<?, ?>>( InstantiationStrategy.COLLECTION_FACTORY ) {
+            @Override
+            HashMap<?, ?> newInstance( final int size ) {
+                return size >= 0 ? new HashMap<Object, Object>( capacity( size ) ) : new HashMap<Object, Object>();
+            }
+        } );
+        COLLECTION_FACTORIES.put( LinkedHashMap.class, new XMLInstantiator<LinkedHashMap<?, ?>>( InstantiationStrategy.COLLECTION_FACTORY ) {
+            @Override
+            LinkedHashMap<?, ?> newInstance( final int size ) {
+                return size >= 0 ? new LinkedHashMap<Object, Object>( capacity( size ) ) : new LinkedHashMap<Object, Object>();
+            }
+        } );
+        COLLECTION_FACTORIES.put( Hashtable.class, new XMLInstantiator<Hashtable<?, ?>>( InstantiationStrategy.COLLECTION_FACTORY ) {
+            @Override
+            Hashtable<?, ?> newInstance( final int size ) {
+                return size >= 0 ? new Hashtable<Object, Object>( capacity( size ) ) : new Hashtable<Object, Object>();
+            }
+        } );
+        COLLECTION_FACTORIES.put( IdentityHashMap.class, new XMLInstantiator<IdentityHashMap<?, ?>>( InstantiationStrategy.COLLECTION_FACTORY ) {
+            @Override
+            IdentityHashMap<?, ?> newInstance( final int size ) {
+                return size >= 0 ? new IdentityHashMap<Object, Object>( size ) : new IdentityHashMap<Object, Object>();
+            }
+        } );
+        COLLECTION_FACTORIES.put( ConcurrentHashMap.class, new XMLInstantiator<ConcurrentHashMap<?, ?>>( InstantiationStrategy.COLLECTION_FACTORY ) {
+            @Override
+            ConcurrentHashMap<?, ?> newInstance( final int size ) {
+                return size >= 0 ? new ConcurrentHashMap<Object, Object>( capacity( size ) ) : new ConcurrentHashMap<Object, Object>();
+            }
+        } );
+    }
+
+    private final InstantiationStrategy _strategy;
+
+    XMLInstantiator( final InstantiationStrategy strategy ) {
+        _strategy = strategy;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param size the number of elements the instance will contain if it's a collection or map,
+     *      or <code>-1</code> if that's not known.
+     */
+    abstract T newInstance( int size ) throws XMLStreamException;
+
+    InstantiationStrategy getStrategy() {
+        return _strategy;
+    }
+
+    /**
+     * Returns the initial capacity of a hash based collection for the given number of elements.
+     */
+    static int capacity( final int size ) {
+        return size < 3 ? size + 1 : (int) ( size / 0.75f + 1 );
+    }
+
+    /**
+     * Returns the (cached) instantiator for the given class: a collection factory,
+     * the no-arg constructor or a serialization constructor.
+     */
+    @SuppressWarnings( "unchecked" )
+    static <T> XMLInstantiator<T> forClass( final Class<T> clazz ) {
+        XMLInstantiator<?> result = INSTANTIATORS.get( clazz );
+        if ( result == null ) {
+            result = COLLECTION_FACTORIES.get( clazz );
+            if ( result == null ) {
+                result = createConstructorInstantiator( clazz );
+            }
+            if ( result == null ) {
+                result = createSerializationInstantiator( clazz );
+            }
+            final XMLInstantiator<?> existing = INSTANTIATORS.putIfAbsent( clazz, result );
+            if ( existing != null ) {
+                result = existing;
+            }
+        }
+        return (XMLInstantiator<T>) result;
+    }
+
+    /**
+     * Returns the (cached) instantiator for the given class that creates instances
+     * without running any constructor of the class, as used by the {@link XMLReflectionFormat}.
+     * This doesn't affect the instantiator returned by {@link #forClass(Class)}.
+     */
+    @SuppressWarnings( "unchecked" )
+    static <T> XMLInstantiator<T> forSerialization( final Class<T> clazz ) {
+        XMLInstantiator<?> result = SERIALIZATION_INSTANTIATORS.get( clazz );
+        if ( result == null ) {
+            result = createSerializationInstantiator( clazz );
+            final XMLInstantiator<?> existing = SERIALIZATION_INSTANTIATORS.putIfAbsent( clazz, result );
+            if ( existing != null ) {
+                result = existing;
+            }
+        }
+        return (XMLInstantiator<T>) result;
+    }
+
+    /**
+     * Returns the strategies chosen for the classes instantiated so far. For classes
+     * that are instantiated both by the {@link XMLReflectionFormat} and by other formats,
+     * the strategy of the other formats is returned.
+     */
+    static Map<Class<?>, InstantiationStrategy> getStrategies() {
+        final Map<Class<?>, InstantiationStrategy> result = new HashMap<Class<?>, InstantiationStrategy>();
+        for ( final Map.Entry<Class<?>, XMLInstantiator<?>> entry : SERIALIZATION_INSTANTIATORS.entrySet() ) {
+            result.put( entry.getKey(), entry.getValue().getStrategy() );
+        }
+        for ( final Map.Entry<Class<?>, XMLInstantiator<?>> entry : INSTANTIATORS.entrySet() ) {
+            result.put( entry.getKey(), entry.getValue().getStrategy() );
+        }
+        return result;
+    }
+
+    private static <T> XMLInstantiator<T> createConstructorInstantiator( final Class<T> clazz ) {
+        if ( Modifier.isAbstract( clazz.getModifiers() ) ) {
+            return null;
+        }
+        final Constructor<T> constructor;
+        try {
+            constructor = clazz.getDeclaredConstructor();
+            constructor.setAccessible( true );
+        } catch ( final NoSuchMethodException e ) {
+            return null;
+        } catch ( final SecurityException e ) {
+            return null;
+        }
+        return new ConstructorInstantiator<T>( constructor, InstantiationStrategy.CONSTRUCTOR );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static <T> XMLInstantiator<T> createSerializationInstantiator( final Class<T> clazz ) {
+        try {
+            final Constructor<T> constructor = (Constructor<T>) REFLECTION_FACTORY.newConstructorForSerialization( clazz,
+                    Object.class.getDeclaredConstructor() );
+            constructor.setAccessible( true );
+            return new ConstructorInstantiator<T>( constructor, InstantiationStrategy.SERIALIZATION_CONSTRUCTOR );
+        } catch ( final SecurityException e ) {
+            throw new RuntimeException( e );
+        } catch ( final NoSuchMethodException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    static final class ConstructorInstantiator<T> extends XMLInstantiator<T> {
+
+        private final Constructor<T> _constructor;
+
+        ConstructorInstantiator( final Constructor<T> constructor, final InstantiationStrategy strategy ) {
+            super( strategy );
+            _constructor = constructor;
+        }
+
+        @Override
+        T newInstance( final int size ) throws XMLStreamException {
+            try {
+                return _constructor.newInstance( INITARGS );
+            } catch ( final Exception e ) {
+                throw new XMLStreamException( e );
+            }
+        }
+
+    }
+
+}
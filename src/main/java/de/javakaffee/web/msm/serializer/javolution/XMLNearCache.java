@@ -0,0 +1,183 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLStreamException;
+
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLReader;
+
+/**
+ * Caches the parsed form of recently read payloads, so that a payload that is read
+ * again (e.g. the same session on subsequent requests) is not parsed again. The
+ * cache does not contain the objects that were read but the recorded xml events
+ * (see {@link XMLRecordedInput}), so that every read returns new objects that can
+ * be modified independently, they're just created without parsing.
+ * <p>
+ * Payloads are looked up by their hash and compared byte by byte, the cache is a LRU
+ * cache bounded by the total size of the cached entries. An entry is weighed by the
+ * size of its payload plus the estimated size of its recording, which is usually several
+ * times the size of the payload (even more for compressed payloads).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLNearCache {
+
+    private final long _maxSize;
+    private final LinkedHashMap<Payload, XMLRecordedInput.Recording> _recordings =
+        new LinkedHashMap<Payload, XMLRecordedInput.Recording>( 16, 0.75f, true );
+    /* guarded by _recordings */
+    private long _size;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    /**
+     * @param maxSize the max total size of the cached entries in bytes.
+     */
+    XMLNearCache( final long maxSize ) {
+        _maxSize = maxSize;
+    }
+
+    /**
+     * Reads the given payload, from the cache if it was read before.
+     */
+    <T> T read( final XMLBinding binding, final XMLCompressor compressor, final byte[] payload ) throws XMLStreamException {
+        return this.<T>read( binding, compressor, payload, null );
+    }
+
+    /**
+     * @param objectCount receives the number of read objects at index <code>0</code>, may be <code>null</code>.
+     */
+    <T> T read( final XMLBinding binding, final XMLCompressor compressor, final byte[] payload,
+            final int[] objectCount ) throws XMLStreamException {
+        final Payload key = new Payload( payload );
+        final XMLRecordedInput.Recording recording;
+        synchronized ( _recordings ) {
+            recording = _recordings.get( key );
+        }
+        if ( recording != null ) {
+            _hits.incrementAndGet();
+            final XMLReader reader = binding.newXMLReader( new XMLRecordedInput( recording ) );
+            try {
+                final T result = reader.<T>read();
+                if ( objectCount != null ) {
+                    objectCount[0] = reader.getObjectCount();
+                }
+                return result;
+            } finally {
+                reader.close();
+            }
+        }
+
+        _misses.incrementAndGet();
+        final XMLReader source = XMLPayloadHeader.newXMLReader( binding, compressor, payload, 0, payload.length );
+        final XMLRecordedInput.Recorder recorder = new XMLRecordedInput.Recorder( source.getInput() );
+        final XMLReader reader = binding.newXMLReader( recorder );
+        try {
+            final T result = reader.<T>read();
+            if ( objectCount != null ) {
+                objectCount[0] = reader.getObjectCount();
+            }
+            put( key, recorder.getRecording() );
+            return result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void put( final Payload key, final XMLRecordedInput.Recording recording ) {
+        if ( weigh( key, recording ) > _maxSize ) {
+            return;
+        }
+        synchronized ( _recordings ) {
+            final XMLRecordedInput.Recording previous = _recordings.put( key, recording );
+            _size += weigh( key, recording ) - ( previous != null ? weigh( key, previous ) : 0 );
+            final Iterator<Map.Entry<Payload, XMLRecordedInput.Recording>> iter = _recordings.entrySet().iterator();
+            while ( _size > _maxSize && iter.hasNext() ) {
+                final Map.Entry<Payload, XMLRecordedInput.Recording> entry = iter.next();
+                _size -= weigh( entry.getKey(), entry.getValue() );
+                iter.remove();
+                _evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static long weigh( final Payload key, final XMLRecordedInput.Recording recording ) {
+        return key.bytes.length + recording.getEstimatedSize();
+    }
+
+    long getHits() {
+        return _hits.get();
+    }
+
+    long getMisses() {
+        return _misses.get();
+    }
+
+    long getEvictions() {
+        return _evictions.get();
+    }
+
+    /**
+     * The total size of the cached entries, see {@link #weigh(Payload, XMLRecordedInput.Recording)}.
+     */
+    long getSize() {
+        synchronized ( _recordings ) {
+            return _size;
+        }
+    }
+
+    int getCount() {
+        synchronized ( _recordings ) {
+            return _recordings.size();
+        }
+    }
+
+    /**
+     * The key of the cache, the payload is not copied and must not be modified.
+     */
+    private static final class Payload {
+
+        final byte[] bytes;
+        private final int _hash;
+
+        Payload( final byte[] bytes ) {
+            this.bytes = bytes;
+            _hash = Arrays.hashCode( bytes );
+        }
+
+        @Override
+        public int hashCode() {
+            return _hash;
+        }
+
+        @Override
+        public boolean equals( final Object obj ) {
+            return obj instanceof Payload && ( (Payload) obj )._hash == _hash && Arrays.equals( ( (Payload) obj ).bytes, bytes );
+        }
+
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.OutputElement;
+
+/**
+ * The target of the xml events an {@link OutputElement} writes, the counterpart
+ * of the {@link XMLInput}. This is the subset of {@link XMLStreamWriter} that
+ * is actually used, so that it can be backed by an aalto stream writer,
+ * by the {@link XMLUtf8Output} or by the {@link XMLBinaryOutput}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+abstract class XMLOutput {
+
+    abstract void writeStartDocument() throws XMLStreamException;
+
+    abstract void writeEndDocument() throws XMLStreamException;
+
+    abstract void writeStartElement( String localName ) throws XMLStreamException;
+
+    abstract void writeEndElement() throws XMLStreamException;
+
+    abstract void writeAttribute( String localName, String value ) throws XMLStreamException;
+
+    void writeAttribute( final String localName, final int value ) throws XMLStreamException {
+        writeAttribute( localName, String.valueOf( value ) );
+    }
+
+    void writeAttribute( final String localName, final long value ) throws XMLStreamException {
+        writeAttribute( localName, String.valueOf( value ) );
+    }
+
+    void writeAttribute( final String localName, final float value ) throws XMLStreamException {
+        writeAttribute( localName, String.valueOf( value ) );
+    }
+
+    void writeAttribute( final String localName, final double value ) throws XMLStreamException {
+        writeAttribute( localName, String.valueOf( value ) );
+    }
+
+    /**
+     * Returns the number of bytes written so far, or <code>-1</code> if it's not known.
+     */
+    long getBytesWritten() {
+        return -1;
+    }
+
+    /**
+     * Sets the names of the format that writes the current object, so that
+     * they don't have to be encoded again.
+     * 
+     * @return the names that were set before, to be restored when the object is written.
+     */
+    XMLUtf8Output.Names setNames( final XMLUtf8Output.Names names ) {
+        return null;
+    }
+
+    abstract void flush() throws XMLStreamException;
+
+    abstract void close() throws XMLStreamException;
+
+    /**
+     * An {@link XMLOutput} that delegates to an {@link XMLStreamWriter}.
+     */
+    static final class StaxOutput extends XMLOutput {
+
+        private final XMLStreamWriter _writer;
+
+        StaxOutput( final XMLStreamWriter writer ) {
+            _writer = writer;
+        }
+
+        @Override
+        void writeStartDocument() throws XMLStreamException {
+            _writer.writeStartDocument();
+        }
+
+        @Override
+        void writeEndDocument() throws XMLStreamException {
+            _writer.writeEndDocument();
+        }
+
+        @Override
+        void writeStartElement( final String localName ) throws XMLStreamException {
+            _writer.writeStartElement( localName );
+        }
+
+        @Override
+        void writeEndElement() throws XMLStreamException {
+            _writer.writeEndElement();
+        }
+
+        @Override
+        void writeAttribute( final String localName, final String value ) throws XMLStreamException {
+            _writer.writeAttribute( localName, value );
+        }
+
+        @Override
+        void flush() throws XMLStreamException {
+            _writer.flush();
+        }
+
+        @Override
+        void close() throws XMLStreamException {
+            _writer.close();
+        }
+
+    }
+
+}
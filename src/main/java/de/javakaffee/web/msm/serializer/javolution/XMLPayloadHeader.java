@@ -0,0 +1,259 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import javax.xml.stream.XMLStreamException;
+
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLReader;
+
+/**
+ * The header that can be prepended to serialized objects, so that the format of the
+ * payload can be changed without breaking readers that are not updated at the same time.
+ * <p>
+ * The header consists of the {@link #MAGIC} byte (which neither starts an xml document
+ * nor the binary format), the format {@link #VERSION}, the feature flags (e.g. {@link #BINARY})
+ * and the CRC32 checksum of the payload (4 bytes, big endian). Payloads without header
+ * (xml or binary) are still read.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLPayloadHeader {
+
+    static final byte MAGIC = (byte) 0xA7;
+    static final int VERSION = 1;
+    static final int LENGTH = 7;
+
+    /**
+     * The payload is written in the binary format, see {@link XMLBinding#setBinaryFormat(boolean)}.
+     */
+    static final int BINARY = 0x01;
+
+    /**
+     * The payload is compressed with deflate, see {@link XMLCompressor}.
+     */
+    static final int COMPRESSED = 0x02;
+
+    /**
+     * The payload is compressed with a preset dictionary.
+     */
+    static final int DICTIONARY = 0x04;
+
+    /**
+     * The flags understood by this version, payloads with other flags are rejected.
+     */
+    static final int SUPPORTED_FLAGS = BINARY | COMPRESSED | DICTIONARY;
+
+    private final int _version;
+    private final int _flags;
+    private final int _offset;
+    private final int _length;
+
+    private XMLPayloadHeader( final int version, final int flags, final int offset, final int length ) {
+        _version = version;
+        _flags = flags;
+        _offset = offset;
+        _length = length;
+    }
+
+    int getVersion() {
+        return _version;
+    }
+
+    int getFlags() {
+        return _flags;
+    }
+
+    boolean isEnabled( final int flag ) {
+        return ( _flags & flag ) != 0;
+    }
+
+    /**
+     * The offset of the payload following the header.
+     */
+    int getOffset() {
+        return _offset;
+    }
+
+    /**
+     * The length of the payload following the header.
+     */
+    int getLength() {
+        return _length;
+    }
+
+    /**
+     * Writes the header and the given object to the given buffer, starting at its current position.
+     *
+     * @return the buffer that was written to (flipped), see {@link XMLBinding#write(Object, ByteBuffer)}.
+     */
+    static ByteBuffer write( final XMLBinding binding, final Object o, final ByteBuffer buffer ) throws XMLStreamException {
+        return write( binding, null, o, buffer );
+    }
+
+    /**
+     * Writes the header and the given object to the given buffer, starting at its current position.
+     * The payload is compressed with the given compressor, unless the compressed payload would not be smaller.
+     *
+     * @param compressor the compressor, or <code>null</code> if the payload shall not be compressed.
+     * @return the buffer that was written to (flipped), see {@link XMLBinding#write(Object, ByteBuffer)}.
+     */
+    static ByteBuffer write( final XMLBinding binding, final XMLCompressor compressor, final Object o,
+            final ByteBuffer buffer ) throws XMLStreamException {
+        return write( binding, compressor, o, buffer, null );
+    }
+
+    /**
+     * @param objectCount receives the number of written objects at index <code>0</code>, may be <code>null</code>.
+     */
+    static ByteBuffer write( final XMLBinding binding, final XMLCompressor compressor, final Object o,
+            final ByteBuffer buffer, final int[] objectCount ) throws XMLStreamException {
+        final int start = buffer.position();
+        /* the header is written when the payload is complete, as it contains the checksum.
+         */
+        ByteBuffer result = buffer;
+        if ( result.remaining() < LENGTH ) {
+            result = buffer.isDirect()
+                ? ByteBuffer.allocateDirect( start + LENGTH + 4096 )
+                : ByteBuffer.allocate( start + LENGTH + 4096 );
+            buffer.flip();
+            result.put( buffer );
+        }
+        result.position( start + LENGTH );
+        result = binding.write( o, result, true, objectCount );
+
+        int flags = binding.isBinaryFormat() ? BINARY : 0;
+        if ( compressor != null ) {
+            final byte[] compressed = compress( compressor, result, start + LENGTH, result.limit() );
+            if ( compressed != null ) {
+                result.position( start + LENGTH );
+                result.put( compressed );
+                result.limit( result.position() );
+                result.position( 0 );
+                flags |= COMPRESSED | ( compressor.hasDictionary() ? DICTIONARY : 0 );
+            }
+        }
+        result.put( start, MAGIC );
+        result.put( start + 1, (byte) VERSION );
+        result.put( start + 2, (byte) flags );
+        result.putInt( start + 3, checksum( result, start + LENGTH, result.limit() ) );
+        return result;
+    }
+
+    /**
+     * Reads the header of the given serialized object.
+     *
+     * @return the header or <code>null</code> if the given bytes don't start with a header.
+     * @throws XMLStreamException if the version or flags are not supported or the checksum does not match.
+     */
+    static XMLPayloadHeader read( final byte[] data, final int offset, final int length ) throws XMLStreamException {
+        if ( length == 0 || data[offset] != MAGIC ) {
+            return null;
+        }
+        if ( length < LENGTH ) {
+            throw new XMLStreamException( "The payload header is incomplete (" + length + " bytes)." );
+        }
+        final int version = data[offset + 1] & 0xff;
+        if ( version > VERSION ) {
+            throw new XMLStreamException( "Unsupported payload version " + version + ", supported up to " + VERSION );
+        }
+        final int flags = data[offset + 2] & 0xff;
+        if ( ( flags & ~SUPPORTED_FLAGS ) != 0 ) {
+            throw new XMLStreamException( "Unsupported payload flags 0x" + Integer.toHexString( flags ) );
+        }
+        final int checksum = ( data[offset + 3] & 0xff ) << 24 | ( data[offset + 4] & 0xff ) << 16
+                | ( data[offset + 5] & 0xff ) << 8 | ( data[offset + 6] & 0xff );
+        final CRC32 crc = new CRC32();
+        crc.update( data, offset + LENGTH, length - LENGTH );
+        if ( (int) crc.getValue() != checksum ) {
+            throw new XMLStreamException( "The checksum of the payload does not match." );
+        }
+        return new XMLPayloadHeader( version, flags, offset + LENGTH, length - LENGTH );
+    }
+
+    /**
+     * Creates a reader for the given serialized object, with or without header.
+     */
+    static XMLReader newXMLReader( final XMLBinding binding, final byte[] data, final int offset, final int length ) throws XMLStreamException {
+        return newXMLReader( binding, null, data, offset, length );
+    }
+
+    /**
+     * Creates a reader for the given serialized object, with or without header.
+     *
+     * @param compressor the compressor to decompress compressed payloads, if <code>null</code>
+     *  one with the default dictionary is used.
+     */
+    static XMLReader newXMLReader( final XMLBinding binding, final XMLCompressor compressor,
+            final byte[] data, final int offset, final int length ) throws XMLStreamException {
+        final XMLPayloadHeader header = read( data, offset, length );
+        if ( header == null ) {
+            return binding.newXMLReader( data, offset, length );
+        }
+        byte[] payload = data;
+        int payloadOffset = header._offset;
+        int payloadLength = header._length;
+        if ( header.isEnabled( COMPRESSED ) ) {
+            payload = ( compressor != null ? compressor : DefaultCompressor.INSTANCE ).decompress( data, payloadOffset, payloadLength );
+            payloadOffset = 0;
+            payloadLength = payload.length;
+        }
+        if ( header.isEnabled( BINARY ) != XMLBinaryInput.isBinary( payload, payloadOffset, payloadLength ) ) {
+            throw new XMLStreamException( "The payload does not match the format specified by the header." );
+        }
+        return binding.newXMLReader( payload, payloadOffset, payloadLength );
+    }
+
+    /**
+     * The compressor with the default dictionary, created when it's needed first.
+     */
+    private static final class DefaultCompressor {
+        static final XMLCompressor INSTANCE = XMLCompressor.withDefaultDictionary();
+    }
+
+    /**
+     * Compresses the bytes between the given indexes, direct buffers are copied to a temporary array.
+     */
+    private static byte[] compress( final XMLCompressor compressor, final ByteBuffer buffer, final int from, final int to ) {
+        if ( buffer.hasArray() ) {
+            return compressor.compress( buffer.array(), buffer.arrayOffset() + from, to - from );
+        }
+        final byte[] bytes = new byte[to - from];
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position( from );
+        duplicate.get( bytes );
+        return compressor.compress( bytes, 0, bytes.length );
+    }
+
+    private static int checksum( final ByteBuffer buffer, final int from, final int to ) {
+        final CRC32 crc = new CRC32();
+        if ( buffer.hasArray() ) {
+            crc.update( buffer.array(), buffer.arrayOffset() + from, to - from );
+        } else {
+            final byte[] bytes = new byte[to - from];
+            final ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position( from );
+            duplicate.get( bytes );
+            crc.update( bytes, 0, bytes.length );
+        }
+        return (int) crc.getValue();
+    }
+
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * An {@link XMLInput} that replays the events recorded by a {@link Recorder}, so that
+ * a document that was read already can be read again without parsing it. A recording
+ * is immutable and can be replayed by several threads at the same time, each with
+ * its own {@link XMLRecordedInput}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLRecordedInput extends XMLInput {
+
+    private static final String[] NO_ATTRIBUTES = new String[0];
+
+    private final Recording _recording;
+    private int _current = -1;
+
+    XMLRecordedInput( final Recording recording ) {
+        _recording = recording;
+    }
+
+    @Override
+    int next() throws XMLStreamException {
+        if ( _current >= _recording.size() ) {
+            throw new XMLStreamException( "No more events, reached the end of the document." );
+        }
+        _current++;
+        return getEventType();
+    }
+
+    @Override
+    int nextTag() throws XMLStreamException {
+        final int eventType = next();
+        if ( eventType == XMLStreamConstants.END_DOCUMENT ) {
+            throw new XMLStreamException( "Expected a start or end element, but reached the end of the document." );
+        }
+        return eventType;
+    }
+
+    @Override
+    int getEventType() {
+        if ( _current < 0 ) {
+            return XMLStreamConstants.START_DOCUMENT;
+        }
+        if ( _current >= _recording.size() ) {
+            return XMLStreamConstants.END_DOCUMENT;
+        }
+        return _recording._types[_current];
+    }
+
+    private void checkElement() {
+        if ( _current < 0 || _current >= _recording.size() ) {
+            throw new IllegalStateException( "Not positioned on an element." );
+        }
+    }
+
+    @Override
+    String getLocalName() {
+        checkElement();
+        return _recording._names[_current];
+    }
+
+    @Override
+    int getAttributeCount() {
+        checkElement();
+        return _recording._attributes[_current].length / 2;
+    }
+
+    @Override
+    String getAttributeLocalName( final int index ) {
+        return _recording._attributes[_current][index * 2];
+    }
+
+    @Override
+    String getAttributeValue( final int index ) {
+        return _recording._attributes[_current][index * 2 + 1];
+    }
+
+    @Override
+    String getAttributeValue( final String localName ) {
+        checkElement();
+        final String[] attributes = _recording._attributes[_current];
+        for ( int i = 0; i < attributes.length; i += 2 ) {
+            if ( attributes[i].equals( localName ) ) {
+                return attributes[i + 1];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    Location getLocation() {
+        final int event = _current;
+        return new Location() {
+            public int getLineNumber() {
+                return -1;
+            }
+            public int getColumnNumber() {
+                return -1;
+            }
+            public int getCharacterOffset() {
+                return -1;
+            }
+            public String getPublicId() {
+                return null;
+            }
+            public String getSystemId() {
+                return null;
+            }
+            @Override
+            public String toString() {
+                return "[event " + event + "]";
+            }
+        };
+    }
+
+    @Override
+    void close() {
+        // nothing to release, the recording is shared
+    }
+
+    /**
+     * The recorded start and end elements of a document.
+     */
+    static final class Recording {
+
+        /* rough heap sizes of a reference, an array header and a string without its chars */
+        private static final int REFERENCE_SIZE = 8;
+        private static final int ARRAY_SIZE = 16;
+        private static final int STRING_SIZE = 40;
+
+        private final int[] _types;
+        private final String[] _names;
+        /* name/value pairs */
+        private final String[][] _attributes;
+        private final long _estimatedSize;
+
+        private Recording( final List<Integer> types, final List<String> names, final List<String[]> attributes ) {
+            _types = new int[types.size()];
+            for ( int i = 0; i < _types.length; i++ ) {
+                _types[i] = types.get( i ).intValue();
+            }
+            _names = names.toArray( new String[names.size()] );
+            _attributes = attributes.toArray( new String[attributes.size()][] );
+            _estimatedSize = estimateSize();
+        }
+
+        /* element and attribute names are interned by the parser and shared, attribute values are not
+         */
+        private long estimateSize() {
+            long result = 3 * ARRAY_SIZE + _types.length * ( 4 + 2 * REFERENCE_SIZE );
+            for ( final String[] attributes : _attributes ) {
+                if ( attributes.length > 0 ) {
+                    result += ARRAY_SIZE + attributes.length * REFERENCE_SIZE;
+                    for ( int i = 1; i < attributes.length; i += 2 ) {
+                        result += STRING_SIZE + 2 * attributes[i].length();
+                    }
+                }
+            }
+            return result;
+        }
+
+        int size() {
+            return _types.length;
+        }
+
+        /**
+         * A rough estimate of the heap size of this recording in bytes.
+         */
+        long getEstimatedSize() {
+            return _estimatedSize;
+        }
+
+    }
+
+    /**
+     * An {@link XMLInput} that delegates to another one and records the start and end
+     * elements that are read.
+     */
+    static final class Recorder extends XMLInput {
+
+        private final XMLInput _input;
+        private final List<Integer> _types = new ArrayList<Integer>();
+        private final List<String> _names = new ArrayList<String>();
+        private final List<String[]> _attributes = new ArrayList<String[]>();
+
+        Recorder( final XMLInput input ) {
+            _input = input;
+        }
+
+        /**
+         * Returns the events recorded so far.
+         */
+        Recording getRecording() {
+            return new Recording( _types, _names, _attributes );
+        }
+
+        private int record( final int eventType ) {
+            if ( eventType == XMLStreamConstants.START_ELEMENT ) {
+                final int count = _input.getAttributeCount();
+                final String[] attributes = count > 0 ? new String[count * 2] : NO_ATTRIBUTES;
+                for ( int i = 0; i < count; i++ ) {
+                    attributes[i * 2] = _input.getAttributeLocalName( i );
+                    attributes[i * 2 + 1] = _input.getAttributeValue( i );
+                }
+                _types.add( eventType );
+                _names.add( _input.getLocalName() );
+                _attributes.add( attributes );
+            } else if ( eventType == XMLStreamConstants.END_ELEMENT ) {
+                _types.add( eventType );
+                _names.add( _input.getLocalName() );
+                _attributes.add( NO_ATTRIBUTES );
+            }
+            return eventType;
+        }
+
+        @Override
+        int next() throws XMLStreamException {
+            return record( _input.next() );
+        }
+
+        @Override
+        int nextTag() throws XMLStreamException {
+            return record( _input.nextTag() );
+        }
+
+        @Override
+        int getEventType() {
+            return _input.getEventType();
+        }
+
+        @Override
+        String getLocalName() {
+            return _input.getLocalName();
+        }
+
+        @Override
+        int getAttributeCount() {
+            return _input.getAttributeCount();
+        }
+
+        @Override
+        String getAttributeLocalName( final int index ) {
+            return _input.getAttributeLocalName( index );
+        }
+
+        @Override
+        String getAttributeValue( final int index ) {
+            return _input.getAttributeValue( index );
+        }
+
+        @Override
+        String getAttributeValue( final String localName ) {
+            return _input.getAttributeValue( localName );
+        }
+
+        @Override
+        int getIntAttribute( final String localName, final int defaultValue ) {
+            return _input.getIntAttribute( localName, defaultValue );
+        }
+
+        @Override
+        long getLongAttribute( final String localName, final long defaultValue ) {
+            return _input.getLongAttribute( localName, defaultValue );
+        }
+
+        @Override
+        float getFloatAttribute( final String localName, final float defaultValue ) {
+            return _input.getFloatAttribute( localName, defaultValue );
+        }
+
+        @Override
+        double getDoubleAttribute( final String localName, final double defaultValue ) {
+            return _input.getDoubleAttribute( localName, defaultValue );
+        }
+
+        @Override
+        Location getLocation() {
+            return _input.getLocation();
+        }
+
+        @Override
+        void close() throws XMLStreamException {
+            _input.close();
+        }
+
+    }
+
+}
@@ -20,17 +20,18 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.stream.XMLStreamException;
 
-import sun.reflect.ReflectionFactory;
-import de.javakaffee.web.msm.serializer.javolution.XMLBinding.Element;
 import de.javakaffee.web.msm.serializer.javolution.XMLBinding.InputElement;
 import de.javakaffee.web.msm.serializer.javolution.XMLBinding.OutputElement;
 import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLFormat;
@@ -41,7 +42,15 @@ import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLFormat;
  * <p>
  * When serializing an object to xml, the values of the declared fields are read
  * (including inherited fields) from the object. Fields marked as
- * <code>transient</code> or <code>static</code> are omitted.
+ * <code>transient</code> or <code>static</code> are omitted. If the binding is
+ * configured to omit default values, primitive fields with their default value
+ * are omitted as well.
+ * </p>
+ * <p>
+ * The binding can be customized with annotations: fields annotated with {@link XMLExclude}
+ * are omitted, {@link XMLField} specifies the name that is written for a field and if it's
+ * written as attribute or element, and {@link XMLFieldOrder} specifies the order of the fields.
+ * The annotations are evaluated once when the format for a class is created.
  * </p>
  * <p>
  * During deserialization, first all attributes contained in the xml are read
@@ -57,14 +66,21 @@ public class XMLReflectionFormat<T> extends de.javakaffee.web.msm.serializer.jav
     private static final Logger LOG = Logger.getLogger( XMLReflectionFormat.class.getName() );
 
     private static final Map<Class<?>, XMLNumberFormat<?>> _numberFormats = new ConcurrentHashMap<Class<?>, XMLNumberFormat<?>>();
-    private static final ReflectionFactory REFLECTION_FACTORY = ReflectionFactory.getReflectionFactory();
-    private static final Object[] INITARGS = new Object[0];
 
-    private final Constructor<T> _constructor;
+    /* the attribute containing the layout of a positionally written class
+     */
+    static final String LAYOUT = "__layout";
+    private static volatile String[] POSITION_NAMES = new String[0];
+
+    private final Class<T> _class;
+    private final XMLInstantiator<T> _instantiator;
     private final AttributeHandler[] _attributes;
     private final FieldHandler[] _elements;
-    private final Map<String, Field> _attributesMap;
-    private final Map<String, Field> _elementsMap;
+    private final NameTable _attributeNames;
+    private final NameTable _elementNames;
+    private final XMLUtf8Output.Names _encodedNames;
+    private final String _fingerprint;
+    private final String _layout;
 
     /**
      * Creates a new instance for the provided class.
@@ -73,93 +89,346 @@ public class XMLReflectionFormat<T> extends de.javakaffee.web.msm.serializer.jav
      *            the Class that is supported by this {@link XMLFormat}.
      * @param classLoader
      */
-    @SuppressWarnings( "unchecked" )
     public XMLReflectionFormat( final Class<T> clazz ) {
+        this( clazz, false );
+    }
 
-        try {
-            _constructor =
-                    REFLECTION_FACTORY.newConstructorForSerialization( clazz, Object.class.getDeclaredConstructor( new Class[0] ) );
-            _constructor.setAccessible( true );
-        } catch ( final SecurityException e ) {
-            throw new RuntimeException( e );
-        } catch ( final NoSuchMethodException e ) {
-            throw new RuntimeException( e );
-        }
+    /**
+     * Creates a new instance for the provided class.
+     * 
+     * @param clazz
+     *            the Class that is supported by this {@link XMLFormat}.
+     * @param optimizedAccess
+     *            if fields shall be accessed via {@link XMLFieldAccessor#optimized(Field) optimized}
+     *            accessors instead of reflection.
+     */
+    XMLReflectionFormat( final Class<T> clazz, final boolean optimizedAccess ) {
+        final Object event = XMLFlightRecorder.REFLECTION_FORMAT.begin();
+        _class = clazz;
+        _instantiator = XMLInstantiator.forSerialization( clazz );
 
-        final AttributesAndElements fields = allFields( clazz );
+        final AttributesAndElements fields = allFields( clazz, optimizedAccess );
 
         _attributes = fields.attributes.toArray( new AttributeHandler[fields.attributes.size()] );
         _elements = fields.elements.toArray( new FieldHandler[fields.elements.size()] );
 
-        // no concurrency support required here, as we'll only read from the map
-        _attributesMap = new HashMap<String, Field>( _attributes.length + 1 );
-        for ( final AttributeHandler attribute : _attributes ) {
-            _attributesMap.put( attribute._field.getName(), attribute._field );
+        final String[] attributeNames = new String[_attributes.length];
+        for ( int i = 0; i < _attributes.length; i++ ) {
+            attributeNames[i] = _attributes[i]._name;
+        }
+        _attributeNames = new NameTable( attributeNames );
+        final String[] elementNames = new String[_elements.length];
+        for ( int i = 0; i < _elements.length; i++ ) {
+            elementNames[i] = _elements[i]._name;
+        }
+        _elementNames = new NameTable( elementNames );
+
+        /* encode the names (including the position names) once for the raw utf-8 writer
+         */
+        final int positions = Math.max( _attributes.length, _elements.length );
+        final String[] names = new String[attributeNames.length + elementNames.length + positions];
+        System.arraycopy( attributeNames, 0, names, 0, attributeNames.length );
+        System.arraycopy( elementNames, 0, names, attributeNames.length, elementNames.length );
+        for ( int i = 0; i < positions; i++ ) {
+            names[attributeNames.length + elementNames.length + i] = positionName( i );
+        }
+        _encodedNames = new XMLUtf8Output.Names( names );
+
+        _fingerprint = fingerprint( _attributes, _elements );
+        _layout = _fingerprint + ":" + joinNames( attributeNames ) + ";" + joinNames( elementNames );
+        if ( event != null ) {
+            XMLFlightRecorder.REFLECTION_FORMAT.commit( event, clazz.getName(), _attributes.length + _elements.length, optimizedAccess );
+        }
+    }
+
+    /**
+     * The class bound by this format.
+     */
+    Class<T> getBoundClass() {
+        return _class;
+    }
+
+    @Override
+    XMLUtf8Output.Names getNames() {
+        return _encodedNames;
+    }
+
+    /**
+     * Returns the fingerprint of the layout of the bound class, i.e. of the names, types and
+     * the order of the fields and if they're bound to attributes or elements. If the fingerprint
+     * of the writing and the reading side match, positionally written objects can be read
+     * without mapping fields by name.
+     */
+    public String getLayoutFingerprint() {
+        return _fingerprint;
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the field layout.
+     */
+    private static String fingerprint( final AttributeHandler[] attributes, final FieldHandler[] elements ) {
+        final StringBuilder sb = new StringBuilder();
+        for ( final AttributeHandler attribute : attributes ) {
+            sb.append( "a:" ).append( attribute._name ).append( ':' ).append( attribute._field.getType().getName() ).append( ';' );
+        }
+        for ( final FieldHandler element : elements ) {
+            sb.append( "e:" ).append( element._name ).append( ':' ).append( element._field.getType().getName() ).append( ';' );
+        }
+        long hash = 0xcbf29ce484222325L;
+        for ( int i = 0; i < sb.length(); i++ ) {
+            hash ^= sb.charAt( i );
+            hash *= 0x100000001b3L;
+        }
+        return Long.toHexString( hash );
+    }
+
+    private static String joinNames( final String[] names ) {
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < names.length; i++ ) {
+            if ( i > 0 ) {
+                sb.append( ',' );
+            }
+            sb.append( names[i] );
+        }
+        return sb.toString();
+    }
+
+    private static String[] splitNames( final String names ) {
+        if ( names.length() == 0 ) {
+            return new String[0];
+        }
+        final List<String> result = new ArrayList<String>();
+        int start = 0;
+        int end;
+        while ( ( end = names.indexOf( ',', start ) ) >= 0 ) {
+            result.add( names.substring( start, end ) );
+            start = end + 1;
+        }
+        result.add( names.substring( start ) );
+        return result.toArray( new String[result.size()] );
+    }
+
+    /**
+     * Returns the (interned) name of the attribute/element at the given position
+     * for positionally written objects, like "_0", "_1" etc.
+     */
+    static String positionName( final int position ) {
+        String[] names = POSITION_NAMES;
+        if ( position >= names.length ) {
+            synchronized ( XMLReflectionFormat.class ) {
+                names = POSITION_NAMES;
+                if ( position >= names.length ) {
+                    final String[] newNames = new String[Math.max( position + 1, names.length * 2 )];
+                    System.arraycopy( names, 0, newNames, 0, names.length );
+                    for ( int i = names.length; i < newNames.length; i++ ) {
+                        newNames[i] = ( "_" + i ).intern();
+                    }
+                    POSITION_NAMES = names = newNames;
+                }
+            }
         }
-        _elementsMap = new HashMap<String, Field>( _elements.length + 1 );
-        for ( final FieldHandler element : _elements ) {
-            _elementsMap.put( element._field.getName(), element._field );
+        return names[position];
+    }
+
+    /**
+     * Returns the position of the given position name, or -1 if it's not a position name.
+     */
+    static int positionOf( final String name ) {
+        final int length = name.length();
+        if ( length < 2 || length > 10 || name.charAt( 0 ) != '_' ) {
+            return -1;
         }
+        int result = 0;
+        for ( int i = 1; i < length; i++ ) {
+            final char c = name.charAt( i );
+            if ( c < '0' || c > '9' ) {
+                return -1;
+            }
+            result = result * 10 + ( c - '0' );
+        }
+        return result;
     }
 
-    private AttributesAndElements allFields( final Class<T> cls ) {
-        final AttributesAndElements result = new AttributesAndElements();
+    /**
+     * Maps the positions of positionally written attributes and elements to the local fields.
+     */
+    static final class Layout {
+
+        /* the writer had the same layout, positions are the indexes of the local fields
+         */
+        static final Layout SAME = new Layout( null, null );
+
+        private final int[] _attributeIndexes;
+        private final int[] _elementIndexes;
+
+        Layout( final int[] attributeIndexes, final int[] elementIndexes ) {
+            _attributeIndexes = attributeIndexes;
+            _elementIndexes = elementIndexes;
+        }
+
+        int attributeIndex( final int position ) {
+            return index( _attributeIndexes, position );
+        }
+
+        int elementIndex( final int position ) {
+            return index( _elementIndexes, position );
+        }
+
+        private static int index( final int[] indexes, final int position ) {
+            if ( indexes == null || position < 0 ) {
+                return position;
+            }
+            return position < indexes.length ? indexes[position] : -1;
+        }
+
+    }
+
+    private AttributesAndElements allFields( final Class<T> cls, final boolean optimizedAccess ) {
+        final List<Field> fields = new ArrayList<Field>();
         Class<? super T> clazz = cls;
         while ( clazz != null ) {
-            addDeclaredFields( clazz, result );
+            addDeclaredFields( clazz, fields );
             clazz = clazz.getSuperclass();
         }
+
+        final XMLFieldOrder order = cls.getAnnotation( XMLFieldOrder.class );
+        final List<Field> ordered = order != null ? applyOrder( cls, fields, order.value() ) : fields;
+
+        final AttributesAndElements result = new AttributesAndElements( optimizedAccess );
+        for ( final Field field : ordered ) {
+            result.add( field );
+        }
         return result;
     }
 
-    private void addDeclaredFields( final Class<? super T> clazz, final AttributesAndElements result ) {
+    private void addDeclaredFields( final Class<? super T> clazz, final List<Field> fields ) {
         final Field[] declaredFields = clazz.getDeclaredFields();
         for ( final Field field : declaredFields ) {
-            if ( !Modifier.isTransient( field.getModifiers() ) && !Modifier.isStatic( field.getModifiers() ) ) {
+            if ( !Modifier.isTransient( field.getModifiers() ) && !Modifier.isStatic( field.getModifiers() )
+                    && !field.isAnnotationPresent( XMLExclude.class ) ) {
                 field.setAccessible( true );
-                result.add( field );
+                fields.add( field );
+            }
+        }
+    }
+
+    private static List<Field> applyOrder( final Class<?> cls, final List<Field> fields, final String[] order ) {
+        final List<Field> remaining = new ArrayList<Field>( fields );
+        final List<Field> result = new ArrayList<Field>( fields.size() );
+        for ( final String name : order ) {
+            final Field field = removeField( remaining, name );
+            if ( field == null ) {
+                throw new IllegalArgumentException( "The field '" + name + "' specified by the @XMLFieldOrder of " + cls.getName()
+                        + " does not exist or is not serialized, the serialized fields are " + fields );
+            }
+            result.add( field );
+        }
+        result.addAll( remaining );
+        return result;
+    }
+
+    private static Field removeField( final List<Field> fields, final String name ) {
+        for ( int i = 0; i < fields.size(); i++ ) {
+            if ( fields.get( i ).getName().equals( name ) ) {
+                return fields.remove( i );
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The names of the fields of a class, used to check that names specified via {@link XMLField}
+     * neither clash with each other nor with the attributes the {@link XMLBinding} uses itself.
+     * This is also used by the {@link XMLFormatProcessor}, so that generated formats are checked the same way.
+     */
+    static final class FieldNames {
+
+        /* the attribute names the XMLBinding uses itself
+         */
+        private static final Set<String> RESERVED_ATTRIBUTES = new HashSet<String>( Arrays.asList( "class", "ref", AaltoTranscoder.REF_ID, LAYOUT, XMLBinding.KEY ) );
+
+        private final Set<String> _attributeNames = new HashSet<String>();
+        private final Set<String> _elementNames = new HashSet<String>();
+        private final Set<String> _aliases = new HashSet<String>();
+
+        /**
+         * Adds the name of a field.
+         * 
+         * @param alias <code>true</code> if the name was specified via {@link XMLField#name()}.
+         * @return <code>false</code> if the name is already used.
+         */
+        boolean add( final String name, final boolean alias, final boolean attribute ) {
+            /* names of not annotated fields may clash (shadowed fields), this
+             * is only checked for names specified via @XMLField
+             */
+            final Set<String> names = attribute ? _attributeNames : _elementNames;
+            if ( alias && ( attribute && RESERVED_ATTRIBUTES.contains( name ) || names.contains( name ) )
+                    || _aliases.contains( name ) && names.contains( name ) ) {
+                return false;
+            }
+            names.add( name );
+            if ( alias ) {
+                _aliases.add( name );
             }
+            return true;
         }
+
     }
 
     static class AttributesAndElements {
+
         private final Collection<AttributeHandler> attributes;
         private final Collection<FieldHandler> elements;
+        private final FieldNames _names = new FieldNames();
+        private final boolean _optimizedAccess;
 
-        AttributesAndElements() {
+        AttributesAndElements( final boolean optimizedAccess ) {
             attributes = new ArrayList<AttributeHandler>();
             elements = new ArrayList<FieldHandler>();
+            _optimizedAccess = optimizedAccess;
         }
 
         void add( final Field field ) {
-            if ( isAttribute( field ) ) {
+            final XMLField annotation = field.getAnnotation( XMLField.class );
+            final boolean alias = annotation != null && annotation.name().length() > 0;
+            final String name = alias ? annotation.name() : field.getName();
+            final XMLField.Mapping mapping = annotation != null ? annotation.mapping() : XMLField.Mapping.DEFAULT;
+            final boolean attribute = mapping == XMLField.Mapping.DEFAULT ? isAttribute( field ) : mapping == XMLField.Mapping.ATTRIBUTE;
+
+            if ( !_names.add( name, alias, attribute ) ) {
+                throw new IllegalArgumentException( "The name '" + name + "' of field " + field + " is already used." );
+            }
+
+            final XMLFieldAccessor accessor = _optimizedAccess ? XMLFieldAccessor.optimized( field ) : XMLFieldAccessor.reflective( field );
+
+            if ( attribute ) {
                 final Class<?> fieldType = field.getType();
                 if ( fieldType.isPrimitive() ) {
 
                     if ( fieldType == boolean.class ) {
-                        attributes.add( new BooleanAttributeHandler( field ) );
+                        attributes.add( new BooleanAttributeHandler( field, name, accessor ) );
                     } else if ( fieldType == int.class ) {
-                        attributes.add( new IntAttributeHandler( field ) );
+                        attributes.add( new IntAttributeHandler( field, name, accessor ) );
                     } else if ( fieldType == long.class ) {
-                        attributes.add( new LongAttributeHandler( field ) );
+                        attributes.add( new LongAttributeHandler( field, name, accessor ) );
                     } else if ( fieldType == float.class ) {
-                        attributes.add( new FloatAttributeHandler( field ) );
+                        attributes.add( new FloatAttributeHandler( field, name, accessor ) );
                     } else if ( fieldType == double.class ) {
-                        attributes.add( new DoubleAttributeHandler( field ) );
+                        attributes.add( new DoubleAttributeHandler( field, name, accessor ) );
                     } else if ( fieldType == byte.class ) {
-                        attributes.add( new ByteAttributeHandler( field ) );
+                        attributes.add( new ByteAttributeHandler( field, name, accessor ) );
                     } else if ( fieldType == char.class ) {
-                        attributes.add( new CharAttributeHandler( field ) );
+                        attributes.add( new CharAttributeHandler( field, name, accessor ) );
                     } else if ( fieldType == short.class ) {
-                        attributes.add( new ShortAttributeHandler( field ) );
+                        attributes.add( new ShortAttributeHandler( field, name, accessor ) );
                     }
                 } else {
 
                     if ( fieldType == String.class || fieldType == Character.class || fieldType == Boolean.class
                             || Number.class.isAssignableFrom( fieldType ) ) {
-                        attributes.add( new ToStringAttributeHandler( field ) );
+                        attributes.add( new ToStringAttributeHandler( field, name, accessor ) );
                     } else if ( fieldType.isEnum() ) {
-                        attributes.add( new EnumAttributeHandler( field ) );
+                        attributes.add( new EnumAttributeHandler( field, name, accessor ) );
                     } else {
                         throw new IllegalArgumentException( "Not yet supported as attribute: " + fieldType );
                     }
@@ -177,7 +446,7 @@ public class XMLReflectionFormat<T> extends de.javakaffee.web.msm.serializer.jav
 //                } else {
 //                    elements.add( new DefaultFieldHandler( field ) );
 //                }
-                elements.add( new DefaultFieldHandler( field ) );
+                elements.add( new DefaultFieldHandler( field, name, accessor ) );
 
             }
         }
@@ -198,11 +467,7 @@ public class XMLReflectionFormat<T> extends de.javakaffee.web.msm.serializer.jav
      */
     @Override
     public T newInstance( final Class<T> clazz, final XMLBinding.InputElement xml ) throws XMLStreamException {
-        try {
-            return _constructor.newInstance( INITARGS );
-        } catch ( final Exception e ) {
-            throw new XMLStreamException( e );
-        }
+        return _instantiator.newInstance( -1 );
     }
 
     /**
@@ -210,33 +475,118 @@ public class XMLReflectionFormat<T> extends de.javakaffee.web.msm.serializer.jav
      */
     @Override
     public void read( final XMLBinding.InputElement input, final T obj ) throws XMLStreamException {
-        readAttributes( input, obj );
-        readElements( input, obj );
+        final Layout layout = getLayout( input );
+        if ( layout == null ) {
+            readAttributes( input, obj );
+            readElements( input, obj );
+        } else {
+            readPositionalAttributes( input, obj, layout );
+            readPositionalElements( input, obj, layout );
+        }
+    }
+
+    /**
+     * Returns the layout the object was written with, if it was written positionally.
+     * The layout is contained in the first element of a class in a document
+     * (after the class and id attributes) and remembered for the rest of the document.
+     */
+    private Layout getLayout( final XMLBinding.InputElement input ) {
+        /* the key of a compactly written map entry precedes the class attribute
+         */
+        final int index = input.getAttributeCount() > 0 && XMLBinding.KEY.equals( input.getAttributeName( 0 ) ) ? 3 : 2;
+        if ( input.getAttributeCount() > index && LAYOUT.equals( input.getAttributeName( index ) ) ) {
+            final Layout layout = createLayout( input.getAttributeValue( index ) );
+            input.setDocumentAttribute( _class, layout );
+            return layout;
+        }
+        return (Layout) input.getDocumentAttribute( _class );
+    }
+
+    private Layout createLayout( final String layout ) {
+        final int fingerprintEnd = layout.indexOf( ':' );
+        if ( fingerprintEnd == _fingerprint.length() && layout.startsWith( _fingerprint ) ) {
+            return Layout.SAME;
+        }
+        final int attributesEnd = layout.indexOf( ';', fingerprintEnd + 1 );
+        final String[] attributes = splitNames( layout.substring( fingerprintEnd + 1, attributesEnd ) );
+        final String[] elements = splitNames( layout.substring( attributesEnd + 1 ) );
+        final int[] attributeIndexes = new int[attributes.length];
+        for ( int i = 0; i < attributes.length; i++ ) {
+            attributeIndexes[i] = _attributeNames.indexOf( attributes[i] );
+        }
+        final int[] elementIndexes = new int[elements.length];
+        for ( int i = 0; i < elements.length; i++ ) {
+            elementIndexes[i] = _elementNames.indexOf( elements[i] );
+        }
+        LOG.fine( "The layout of the written " + _class + " (" + layout
+                + ") differs from the local layout (" + _layout + "), fields are mapped by name." );
+        return new Layout( attributeIndexes, elementIndexes );
+    }
+
+    private void readPositionalAttributes( final XMLBinding.InputElement input, final T obj, final Layout layout ) {
+        for ( int i = 0; i < input.getAttributeCount(); i++ ) {
+            final String name = input.getAttributeName( i );
+            final int index = layout.attributeIndex( positionOf( name ) );
+            if ( index >= 0 && index < _attributes.length ) {
+                setFieldFromAttribute( obj, _attributes[index], name, input );
+            } else if ( !name.equals( "class" ) && !name.equals( AaltoTranscoder.REF_ID ) && !name.equals( LAYOUT ) && !name.equals( XMLBinding.KEY ) ) {
+                LOG.warning( "Did not find field for attribute " + name + ", attribute value is " + input.getAttributeValue( i ) );
+            }
+        }
+    }
+
+    private void readPositionalElements( final XMLBinding.InputElement input, final T obj, final Layout layout ) throws XMLStreamException {
+        while ( input.hasNext() ) {
+            final String name = input.getNextElementName();
+            final int index = layout.elementIndex( positionOf( name ) );
+            final Object value = input.getNext();
+            if ( index < 0 || index >= _elements.length ) {
+                LOG.warning( "Did not find field for element " + name + ", element value is " + value );
+                continue;
+            }
+            final FieldHandler handler = _elements[index];
+            try {
+                handler._accessor.set( obj, value );
+            } catch ( final Exception e ) {
+                LOG.log( Level.SEVERE, "Could not set field value for field " + handler._field, e );
+            }
+        }
     }
 
     private void readAttributes( final XMLBinding.InputElement input, final T obj ) throws XMLStreamException {
         for ( int i = 0; i < input.getAttributeCount(); i++ ) {
             final String name = input.getAttributeName( i );
-            if ( !name.equals( "class" ) && !name.equals( AaltoTranscoder.REF_ID ) ) {
-                final Field field = _attributesMap.get( name.toString() );
-                if ( field != null ) {
-                    setFieldFromAttribute( obj, field, input );
-                } else {
-                    LOG.warning( "Did not find field " + name + ", attribute value is " + input.getAttributeValue( i ) );
-                }
+            final int index = _attributeNames.indexOf( name );
+            if ( index >= 0 ) {
+                setFieldFromAttribute( obj, _attributes[index], name, input );
+            } else if ( !name.equals( "class" ) && !name.equals( AaltoTranscoder.REF_ID ) && !name.equals( XMLBinding.KEY ) ) {
+                LOG.warning( "Did not find field " + name + ", attribute value is " + input.getAttributeValue( i ) );
             }
         }
     }
 
     private void readElements( final XMLBinding.InputElement input, final T obj ) throws XMLStreamException {
+        /* the elements are written in the order of the fields, so first
+         * the field following the previous one is checked
+         */
+        int expected = 0;
         while ( input.hasNext() ) {
-            final Element element = input.getNextElement();
-            final Field field = _elementsMap.get( element.name );
+            final String name = input.getNextElementName();
+            final int index = expected < _elements.length && _elements[expected]._name == name
+                ? expected
+                : _elementNames.indexOf( name );
+            final Object value = input.getNext();
+            if ( index < 0 ) {
+                LOG.warning( "Did not find field " + name + ", element value is " + value );
+                continue;
+            }
+            final FieldHandler handler = _elements[index];
             try {
-                field.set( obj, element.object );
+                handler._accessor.set( obj, value );
             } catch ( final Exception e ) {
-                LOG.log( Level.SEVERE, "Could not set field value for field " + field, e );
+                LOG.log( Level.SEVERE, "Could not set field value for field " + handler._field, e );
             }
+            expected = index + 1;
         }
     }
 
@@ -245,202 +595,241 @@ public class XMLReflectionFormat<T> extends de.javakaffee.web.msm.serializer.jav
      */
     @Override
     public void write( final T obj, final OutputElement output ) throws XMLStreamException {
-        writeAttributes( obj, output );
-        writeElements( obj, output );
+        final boolean positional = output.isPositionalLayout();
+        if ( positional && output.getDocumentAttribute( _class ) == null ) {
+            output.setDocumentAttribute( _class, Boolean.TRUE );
+            output.setAttribute( LAYOUT, _layout );
+        }
+        writeAttributes( obj, output, positional );
+        writeElements( obj, output, positional );
     }
 
-    private void writeAttributes( final T obj, final OutputElement output ) {
-        for ( final AttributeHandler handler : _attributes ) {
+    private void writeAttributes( final T obj, final OutputElement output, final boolean positional ) {
+        for ( int i = 0; i < _attributes.length; i++ ) {
+            final AttributeHandler handler = _attributes[i];
             try {
-                handler.writeAttribute( obj, output );
+                handler.writeAttribute( obj, output, positional ? positionName( i ) : handler._name );
             } catch ( final Exception e ) {
                 LOG.log( Level.SEVERE, "Could not set attribute from field value.", e );
             }
         }
     }
 
-    private void writeElements( final T obj, final OutputElement output ) {
-        for ( final FieldHandler fieldHandler : _elements ) {
-            fieldHandler.writeElement( obj, output );
+    private void writeElements( final T obj, final OutputElement output, final boolean positional ) {
+        for ( int i = 0; i < _elements.length; i++ ) {
+            final FieldHandler handler = _elements[i];
+            handler.writeElement( obj, output, positional ? positionName( i ) : handler._name );
         }
     }
 
     static abstract class AttributeHandler {
         protected final Field _field;
+        protected final XMLFieldAccessor _accessor;
+        /* the (interned) attribute name
+         */
+        protected final String _name;
 
-        public AttributeHandler( final Field field ) {
+        public AttributeHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
             _field = field;
+            _accessor = accessor;
+            _name = name.intern();
         }
 
-        abstract void writeAttribute( final Object obj, final XMLBinding.OutputElement output ) throws IllegalArgumentException,
+        abstract void writeAttribute( final Object obj, final XMLBinding.OutputElement output, final String name ) throws IllegalArgumentException,
             XMLStreamException, IllegalAccessException;
     }
 
     static final class BooleanAttributeHandler extends AttributeHandler {
-        public BooleanAttributeHandler( final Field field ) {
-            super( field );
+        public BooleanAttributeHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
+            super( field, name, accessor );
         }
 
         @Override
-        void writeAttribute( final Object obj, final XMLBinding.OutputElement output ) throws IllegalArgumentException,
+        void writeAttribute( final Object obj, final XMLBinding.OutputElement output, final String name ) throws IllegalArgumentException,
             XMLStreamException, IllegalAccessException {
-            output.setAttribute( _field.getName(), _field.getBoolean( obj ) );
+            final boolean value = _accessor.getBoolean( obj );
+            if ( value || !output.isOmitDefaultValues() ) {
+                output.setAttribute( name, value );
+            }
         }
     }
 
     static final class IntAttributeHandler extends AttributeHandler {
-        public IntAttributeHandler( final Field field ) {
-            super( field );
+        public IntAttributeHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
+            super( field, name, accessor );
         }
 
         @Override
-        void writeAttribute( final Object obj, final XMLBinding.OutputElement output ) throws IllegalArgumentException,
+        void writeAttribute( final Object obj, final XMLBinding.OutputElement output, final String name ) throws IllegalArgumentException,
             XMLStreamException, IllegalAccessException {
-            output.setAttribute( _field.getName(), _field.getInt( obj ) );
+            final int value = _accessor.getInt( obj );
+            if ( value != 0 || !output.isOmitDefaultValues() ) {
+                output.setAttribute( name, value );
+            }
         }
     }
 
     static final class LongAttributeHandler extends AttributeHandler {
-        public LongAttributeHandler( final Field field ) {
-            super( field );
+        public LongAttributeHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
+            super( field, name, accessor );
         }
 
         @Override
-        void writeAttribute( final Object obj, final XMLBinding.OutputElement output ) throws IllegalArgumentException,
+        void writeAttribute( final Object obj, final XMLBinding.OutputElement output, final String name ) throws IllegalArgumentException,
             XMLStreamException, IllegalAccessException {
-            output.setAttribute( _field.getName(), _field.getLong( obj ) );
+            final long value = _accessor.getLong( obj );
+            if ( value != 0 || !output.isOmitDefaultValues() ) {
+                output.setAttribute( name, value );
+            }
         }
     }
 
     static final class FloatAttributeHandler extends AttributeHandler {
-        public FloatAttributeHandler( final Field field ) {
-            super( field );
+        public FloatAttributeHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
+            super( field, name, accessor );
         }
 
         @Override
-        void writeAttribute( final Object obj, final XMLBinding.OutputElement output ) throws IllegalArgumentException,
+        void writeAttribute( final Object obj, final XMLBinding.OutputElement output, final String name ) throws IllegalArgumentException,
             XMLStreamException, IllegalAccessException {
-            output.setAttribute( _field.getName(), _field.getFloat( obj ) );
+            /* -0.0 is not the default value and therefore written
+             */
+            final float value = _accessor.getFloat( obj );
+            if ( Float.floatToRawIntBits( value ) != 0 || !output.isOmitDefaultValues() ) {
+                output.setAttribute( name, value );
+            }
         }
     }
 
     static final class DoubleAttributeHandler extends AttributeHandler {
-        public DoubleAttributeHandler( final Field field ) {
-            super( field );
+        public DoubleAttributeHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
+            super( field, name, accessor );
         }
 
         @Override
-        void writeAttribute( final Object obj, final XMLBinding.OutputElement output ) throws IllegalArgumentException,
+        void writeAttribute( final Object obj, final XMLBinding.OutputElement output, final String name ) throws IllegalArgumentException,
             XMLStreamException, IllegalAccessException {
-            output.setAttribute( _field.getName(), _field.getDouble( obj ) );
+            final double value = _accessor.getDouble( obj );
+            if ( Double.doubleToRawLongBits( value ) != 0 || !output.isOmitDefaultValues() ) {
+                output.setAttribute( name, value );
+            }
         }
     }
 
     static final class ByteAttributeHandler extends AttributeHandler {
-        public ByteAttributeHandler( final Field field ) {
-            super( field );
+        public ByteAttributeHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
+            super( field, name, accessor );
         }
 
         @Override
-        void writeAttribute( final Object obj, final XMLBinding.OutputElement output ) throws IllegalArgumentException,
+        void writeAttribute( final Object obj, final XMLBinding.OutputElement output, final String name ) throws IllegalArgumentException,
             XMLStreamException, IllegalAccessException {
-            output.setAttribute( _field.getName(), _field.getByte( obj ) );
+            final byte value = _accessor.getByte( obj );
+            if ( value != 0 || !output.isOmitDefaultValues() ) {
+                output.setAttribute( name, value );
+            }
         }
     }
 
     static final class CharAttributeHandler extends AttributeHandler {
-        public CharAttributeHandler( final Field field ) {
-            super( field );
+        public CharAttributeHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
+            super( field, name, accessor );
         }
 
         @Override
-        void writeAttribute( final Object obj, final XMLBinding.OutputElement output ) throws IllegalArgumentException,
+        void writeAttribute( final Object obj, final XMLBinding.OutputElement output, final String name ) throws IllegalArgumentException,
             XMLStreamException, IllegalAccessException {
-            output.setAttribute( _field.getName(), _field.getChar( obj ) );
+            final char value = _accessor.getChar( obj );
+            if ( value != 0 || !output.isOmitDefaultValues() ) {
+                output.setAttribute( name, value );
+            }
         }
     }
 
     static final class ShortAttributeHandler extends AttributeHandler {
-        public ShortAttributeHandler( final Field field ) {
-            super( field );
+        public ShortAttributeHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
+            super( field, name, accessor );
         }
 
         @Override
-        void writeAttribute( final Object obj, final XMLBinding.OutputElement output ) throws IllegalArgumentException,
+        void writeAttribute( final Object obj, final XMLBinding.OutputElement output, final String name ) throws IllegalArgumentException,
             XMLStreamException, IllegalAccessException {
-            output.setAttribute( _field.getName(), _field.getShort( obj ) );
+            final short value = _accessor.getShort( obj );
+            if ( value != 0 || !output.isOmitDefaultValues() ) {
+                output.setAttribute( name, value );
+            }
         }
     }
 
     static abstract class ObjectAttributeHandler extends AttributeHandler {
-        public ObjectAttributeHandler( final Field field ) {
-            super( field );
+        public ObjectAttributeHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
+            super( field, name, accessor );
         }
 
         @Override
-        void writeAttribute( final Object obj, final XMLBinding.OutputElement output ) throws IllegalArgumentException,
+        void writeAttribute( final Object obj, final XMLBinding.OutputElement output, final String name ) throws IllegalArgumentException,
             XMLStreamException, IllegalAccessException {
-            final Object object = _field.get( obj );
+            final Object object = _accessor.get( obj );
             if ( object != null ) {
-                add( object, output );
+                add( object, output, name );
             }
         }
 
-        abstract void add( Object object, OutputElement output ) throws XMLStreamException;
+        abstract void add( Object object, OutputElement output, String name ) throws XMLStreamException;
     }
 
     static final class ToStringAttributeHandler extends ObjectAttributeHandler {
-        public ToStringAttributeHandler( final Field field ) {
-            super( field );
+        public ToStringAttributeHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
+            super( field, name, accessor );
         }
 
         @Override
-        void add( final Object object, final OutputElement output ) throws XMLStreamException {
-            output.setAttribute( _field.getName(), object.toString() );
+        void add( final Object object, final OutputElement output, final String name ) throws XMLStreamException {
+            output.setAttribute( name, object.toString() );
         }
     }
 
     static final class EnumAttributeHandler extends ObjectAttributeHandler {
-        public EnumAttributeHandler( final Field field ) {
-            super( field );
+        public EnumAttributeHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
+            super( field, name, accessor );
         }
 
         @Override
-        void add( final Object object, final OutputElement output ) throws XMLStreamException {
-            output.setAttribute( _field.getName(), ( (Enum<?>) object ).name() );
+        void add( final Object object, final OutputElement output, final String name ) throws XMLStreamException {
+            output.setAttribute( name, ( (Enum<?>) object ).name() );
         }
     }
 
-    private void setFieldFromAttribute( final T obj, final Field field, final XMLBinding.InputElement input ) {
+    private void setFieldFromAttribute( final T obj, final AttributeHandler handler, final String fieldName, final XMLBinding.InputElement input ) {
         try {
 
-            final String fieldName = field.getName();
-            final Class<?> fieldType = field.getType();
+            final XMLFieldAccessor accessor = handler._accessor;
+            final Class<?> fieldType = handler._field.getType();
             if ( fieldType.isPrimitive() ) {
 
                 if ( fieldType == boolean.class ) {
-                    field.setBoolean( obj, input.getAttribute( fieldName, false ) );
+                    accessor.setBoolean( obj, input.getAttribute( fieldName, false ) );
                 } else if ( fieldType == int.class ) {
-                    field.setInt( obj, input.getAttribute( fieldName, 0 ) );
+                    accessor.setInt( obj, input.getAttribute( fieldName, 0 ) );
                 } else if ( fieldType == long.class ) {
-                    field.setLong( obj, input.getAttribute( fieldName, (long) 0 ) );
+                    accessor.setLong( obj, input.getAttribute( fieldName, (long) 0 ) );
                 } else if ( fieldType == float.class ) {
-                    field.setFloat( obj, input.getAttribute( fieldName, (float) 0 ) );
+                    accessor.setFloat( obj, input.getAttribute( fieldName, (float) 0 ) );
                 } else if ( fieldType == double.class ) {
-                    field.setDouble( obj, input.getAttribute( fieldName, (double) 0 ) );
+                    accessor.setDouble( obj, input.getAttribute( fieldName, (double) 0 ) );
                 } else if ( fieldType == byte.class ) {
-                    field.setByte( obj, input.getAttribute( fieldName, (byte) 0 ) );
+                    accessor.setByte( obj, input.getAttribute( fieldName, (byte) 0 ) );
                 } else if ( fieldType == char.class ) {
-                    field.setChar( obj, input.getAttribute( fieldName, (char) 0 ) );
+                    accessor.setChar( obj, input.getAttribute( fieldName, (char) 0 ) );
                 } else if ( fieldType == short.class ) {
-                    field.setShort( obj, input.getAttribute( fieldName, (short) 0 ) );
+                    accessor.setShort( obj, input.getAttribute( fieldName, (short) 0 ) );
                 }
             } else if ( fieldType.isEnum() ) {
                 final String value = input.getAttribute( fieldName, (String) null );
                 if ( value != null ) {
                     @SuppressWarnings( "unchecked" )
                     final Enum enumValue = Enum.valueOf( fieldType.asSubclass( Enum.class ), value );
-                    field.set( obj, enumValue );
+                    accessor.set( obj, enumValue );
                 }
             } else {
 
@@ -448,26 +837,26 @@ public class XMLReflectionFormat<T> extends de.javakaffee.web.msm.serializer.jav
 
                 if ( object != null ) {
                     if ( fieldType == String.class ) {
-                        field.set( obj, object );
+                        accessor.set( obj, object );
                     } else if ( fieldType.isAssignableFrom( Boolean.class ) ) {
-                        field.set( obj, Boolean.parseBoolean( object ) );
+                        accessor.set( obj, Boolean.parseBoolean( object ) );
                     } else if ( fieldType.isAssignableFrom( Integer.class ) ) {
-                        field.set( obj, Integer.valueOf( object ) );
+                        accessor.set( obj, Integer.valueOf( object ) );
                     } else if ( fieldType.isAssignableFrom( Long.class ) ) {
-                        field.set( obj, Long.valueOf( object ) );
+                        accessor.set( obj, Long.valueOf( object ) );
                     } else if ( fieldType.isAssignableFrom( Short.class ) ) {
-                        field.set( obj, Short.valueOf( object ) );
+                        accessor.set( obj, Short.valueOf( object ) );
                     } else if ( fieldType.isAssignableFrom( Double.class ) ) {
-                        field.set( obj, Double.valueOf( object ) );
+                        accessor.set( obj, Double.valueOf( object ) );
                     } else if ( fieldType.isAssignableFrom( Float.class ) ) {
-                        field.set( obj, Float.valueOf( object ) );
+                        accessor.set( obj, Float.valueOf( object ) );
                     } else if ( fieldType.isAssignableFrom( Byte.class ) ) {
-                        field.set( obj, Byte.valueOf( object ) );
+                        accessor.set( obj, Byte.valueOf( object ) );
                     } else if ( fieldType.isAssignableFrom( Character.class ) ) {
-                        field.set( obj, Character.valueOf( object.charAt( 0 ) ) );
+                        accessor.set( obj, Character.valueOf( object.charAt( 0 ) ) );
                     } else if ( Number.class.isAssignableFrom( fieldType ) ) {
                         final XMLNumberFormat<?> format = getNumberFormat( fieldType );
-                        field.set( obj, format.newInstanceFromAttribute( input, fieldName ) );
+                        accessor.set( obj, format.newInstanceFromAttribute( input, fieldName ) );
                     } else {
                         throw new IllegalArgumentException( "Not yet supported as attribute: " + fieldType );
                     }
@@ -632,40 +1021,107 @@ public class XMLReflectionFormat<T> extends de.javakaffee.web.msm.serializer.jav
 
     }
 
+    /**
+     * Maps the names of the attributes or elements of a class to their index.
+     * The names are interned (aalto interns the names it reads as well), so that
+     * a lookup usually is a single probe with an identity check, there's no
+     * String created or compared char by char per element.
+     */
+    static final class NameTable {
+
+        private final String[] _names;
+        private final int[] _indexes;
+        private final int _mask;
+
+        NameTable( final String[] names ) {
+            /* keep the load factor at max 0.5 so that probe sequences stay short
+             */
+            int size = 2;
+            while ( size < names.length * 2 ) {
+                size <<= 1;
+            }
+            _names = new String[size];
+            _indexes = new int[size];
+            _mask = size - 1;
+            for ( int i = 0; i < names.length; i++ ) {
+                int slot = hash( names[i] ) & _mask;
+                while ( _names[slot] != null ) {
+                    slot = ( slot + 1 ) & _mask;
+                }
+                _names[slot] = names[i].intern();
+                _indexes[slot] = i;
+            }
+        }
+
+        /**
+         * Returns the index of the given name or -1 if the name is unknown.
+         */
+        int indexOf( final String name ) {
+            final int hash = hash( name );
+            int slot = hash & _mask;
+            String candidate;
+            while ( ( candidate = _names[slot] ) != null ) {
+                /* fall back to equals for names that are not interned
+                 */
+                if ( candidate == name || candidate.hashCode() == name.hashCode() && candidate.equals( name ) ) {
+                    return _indexes[slot];
+                }
+                slot = ( slot + 1 ) & _mask;
+            }
+            return -1;
+        }
+
+        private static int hash( final String name ) {
+            final int h = name.hashCode();
+            return h ^ ( h >>> 16 );
+        }
+
+    }
+
     // ============== Field handler ======================================
 
     static abstract class FieldHandler {
 
         protected final Field _field;
+        protected final XMLFieldAccessor _accessor;
+        /* the (interned) element name, '$' is escaped as "_d_"
+         */
+        protected final String _name;
 
-        public FieldHandler( final Field field ) {
+        public FieldHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
             _field = field;
+            _accessor = accessor;
+            _name = XMLBinding.replace( name, '$', "_d_" ).intern();
         }
 
-        void writeElement( final Object obj, final XMLBinding.OutputElement output ) {
+        void writeElement( final Object obj, final XMLBinding.OutputElement output, final String name ) {
             try {
-                final Object object = _field.get( obj );
+                final Object object = _accessor.get( obj );
                 if ( object != null ) {
-                    add( object, output );
+                    add( object, output, name );
                 }
             } catch ( final Exception e ) {
                 LOG.log( Level.SEVERE, "Could not write element for field.", e );
             }
         }
 
-        abstract void add( Object object, XMLBinding.OutputElement output ) throws XMLStreamException;
+        abstract void add( Object object, XMLBinding.OutputElement output, String name ) throws XMLStreamException;
 
     }
 
     static final class DefaultFieldHandler extends FieldHandler {
 
-        public DefaultFieldHandler( final Field field ) {
-            super( field );
+        public DefaultFieldHandler( final Field field, final String name, final XMLFieldAccessor accessor ) {
+            super( field, name, accessor );
         }
 
         @Override
-        void add( final Object object, final XMLBinding.OutputElement output ) throws XMLStreamException {
-            output.add( object, _field.getName() );
+        void add( final Object object, final XMLBinding.OutputElement output, final String name ) throws XMLStreamException {
+            /* the name is already escaped
+             */
+            output.writeStartElement( name );
+            output.add( object );
+            output.writeEndElement();
         }
 
     }
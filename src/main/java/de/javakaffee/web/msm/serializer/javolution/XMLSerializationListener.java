@@ -0,0 +1,69 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+/**
+ * Is notified about the progress of a serialization, e.g. to trace single slow
+ * serializations (see {@link XMLSlowSerializationLogger}). Listeners are registered via
+ * {@link XMLBinding#addSerializationListener(XMLSerializationListener)}; if there's none
+ * registered nothing is measured at all.
+ * <p>
+ * The methods are invoked by the thread that serializes the object, a listener
+ * that is registered for a binding used by several threads must keep the state of
+ * a serialization per thread. The <code>bytesWritten</code> are the number of bytes written
+ * so far in the current document, or <code>-1</code> if they're not known (they're only
+ * known for the raw utf-8 writer and the binary format).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface XMLSerializationListener {
+
+    /**
+     * Invoked before the given root object (e.g. the session) is written.
+     */
+    void startDocument( Object root );
+
+    /**
+     * Invoked after the given root object was written.
+     */
+    void endDocument( Object root, long bytesWritten );
+
+    /**
+     * Invoked before the given object is written. References to objects
+     * that were already written are not reported.
+     * 
+     * @param depth the depth of the element of the object, the root object has depth <code>1</code>.
+     */
+    void enterObject( Object object, int depth, long bytesWritten );
+
+    /**
+     * Invoked after the given object and the objects it references were written.
+     */
+    void exitObject( Object object, int depth, long bytesWritten );
+
+    /**
+     * Invoked before an entry of a map referenced by the root object (i.e. a session attribute) is written.
+     */
+    void startAttribute( Object key, long bytesWritten );
+
+    /**
+     * Invoked after an entry of a map referenced by the root object was written.
+     */
+    void endAttribute( Object key, long bytesWritten );
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects serialization statistics per class and per session attribute: the number of
+ * serialized objects, the time (total and percentiles), the bytes and the number of
+ * (referenced) objects written. Counters are striped (see {@link XMLStripedCounter}),
+ * and only every n-th document of a thread is measured (see {@link #setSampleRate(double)}) so
+ * that the overhead stays low.
+ * <p>
+ * The bytes are only known when the raw utf-8 writer or the binary format is used
+ * (see {@link XMLBinding#setRawUTF8Writer(boolean)}), the aalto stream writer does not
+ * tell how many bytes it has written.
+ * </p>
+ * <p>
+ * The number of tracked classes and attributes is limited (by default {@link #MAX_TRACKED_KEYS}), as each
+ * of them holds several striped counters. Classes and attributes beyond that limit are
+ * recorded in an "other" bucket.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public final class XMLSerializationMetrics implements XMLSerializationMetricsMBean {
+
+    /**
+     * The default max number of tracked classes and of tracked attributes.
+     */
+    static final int MAX_TRACKED_KEYS = 256;
+
+    static final String OTHER = "(other)";
+
+    private final int _maxTrackedKeys;
+    private final ConcurrentMap<Class<?>, Statistics> _classes = new ConcurrentHashMap<Class<?>, Statistics>();
+    private final ConcurrentMap<String, Statistics> _attributes = new ConcurrentHashMap<String, Statistics>();
+    /* replaced on reset */
+    private volatile Statistics _otherClasses = new Statistics();
+    private volatile Statistics _otherAttributes = new Statistics();
+    /* the documents are counted per thread, so that threads don't contend on a shared counter
+     */
+    private final ThreadLocal<long[]> _documents = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+    private final XMLStripedCounter _sampledDocuments = new XMLStripedCounter();
+    private volatile double _sampleRate;
+    private volatile long _sampleInterval;
+
+    /**
+     * @param sampleRate the share of documents that are measured, see {@link #setSampleRate(double)}.
+     */
+    XMLSerializationMetrics( final double sampleRate ) {
+        this( sampleRate, MAX_TRACKED_KEYS );
+    }
+
+    /**
+     * @param sampleRate the share of documents that are measured, see {@link #setSampleRate(double)}.
+     * @param maxTrackedKeys the max number of tracked classes and of tracked attributes, further ones
+     *  are recorded as {@link #OTHER}.
+     */
+    XMLSerializationMetrics( final double sampleRate, final int maxTrackedKeys ) {
+        setSampleRate( sampleRate );
+        _maxTrackedKeys = maxTrackedKeys;
+    }
+
+    /**
+     * Determines if the next document (of the current thread) shall be measured.
+     */
+    boolean sample() {
+        final long interval = _sampleInterval;
+        if ( interval == 0 || interval > 1 && ++_documents.get()[0] % interval != 0 ) {
+            return false;
+        }
+        _sampledDocuments.increment();
+        return true;
+    }
+
+    void recordClass( final Class<?> clazz, final long timeNanos, final long bytes, final long objects ) {
+        getStatistics( _classes, clazz, _otherClasses ).record( timeNanos, bytes, objects );
+    }
+
+    void recordAttribute( final String name, final long timeNanos, final long bytes, final long objects ) {
+        getStatistics( _attributes, name, _otherAttributes ).record( timeNanos, bytes, objects );
+    }
+
+    /* the size check is racy, so that a few more keys than allowed might be tracked
+     */
+    private <K> Statistics getStatistics( final ConcurrentMap<K, Statistics> map, final K key, final Statistics other ) {
+        Statistics statistics = map.get( key );
+        if ( statistics == null ) {
+            if ( map.size() >= _maxTrackedKeys ) {
+                return other;
+            }
+            final Statistics created = new Statistics();
+            statistics = map.putIfAbsent( key, created );
+            if ( statistics == null ) {
+                statistics = created;
+            }
+        }
+        return statistics;
+    }
+
+    Statistics getStatistics( final Class<?> clazz ) {
+        return _classes.get( clazz );
+    }
+
+    Statistics getStatistics( final String attribute ) {
+        return _attributes.get( attribute );
+    }
+
+    /**
+     * The statistics of the classes that are not tracked, as the max number of tracked classes was reached.
+     */
+    Statistics getOtherClassStatistics() {
+        return _otherClasses;
+    }
+
+    /**
+     * The statistics of the attributes that are not tracked, as the max number of tracked attributes was reached.
+     */
+    Statistics getOtherAttributeStatistics() {
+        return _otherAttributes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getSampleRate() {
+        return _sampleRate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setSampleRate( final double sampleRate ) {
+        if ( sampleRate < 0 || sampleRate > 1 ) {
+            throw new IllegalArgumentException( "The sample rate must be between 0 and 1: " + sampleRate );
+        }
+        _sampleRate = sampleRate;
+        _sampleInterval = sampleRate > 0 ? Math.round( 1 / sampleRate ) : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSampledDocuments() {
+        return _sampledDocuments.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getClassStatistics() {
+        final List<String> result = new ArrayList<String>( _classes.size() );
+        for ( final Map.Entry<Class<?>, Statistics> entry : _classes.entrySet() ) {
+            result.add( entry.getKey().getName() + ": " + entry.getValue() );
+        }
+        return toArray( result, _otherClasses );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getAttributeStatistics() {
+        final List<String> result = new ArrayList<String>( _attributes.size() );
+        for ( final Map.Entry<String, Statistics> entry : _attributes.entrySet() ) {
+            result.add( entry.getKey() + ": " + entry.getValue() );
+        }
+        return toArray( result, _otherAttributes );
+    }
+
+    private static String[] toArray( final List<String> result, final Statistics other ) {
+        Collections.sort( result );
+        if ( other.getCount() > 0 ) {
+            result.add( OTHER + ": " + other );
+        }
+        return result.toArray( new String[result.size()] );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() {
+        _classes.clear();
+        _attributes.clear();
+        _otherClasses = new Statistics();
+        _otherAttributes = new Statistics();
+        _sampledDocuments.reset();
+    }
+
+    /**
+     * The statistics of a class or an attribute.
+     */
+    static final class Statistics {
+
+        /* bucket i counts the times up to 2^i nanos
+         */
+        private final AtomicLongArray _histogram = new AtomicLongArray( 64 );
+        private final XMLStripedCounter _count = new XMLStripedCounter();
+        private final XMLStripedCounter _timeNanos = new XMLStripedCounter();
+        private final XMLStripedCounter _bytes = new XMLStripedCounter();
+        private final XMLStripedCounter _objects = new XMLStripedCounter();
+
+        void record( final long timeNanos, final long bytes, final long objects ) {
+            _count.increment();
+            _timeNanos.add( timeNanos );
+            if ( bytes > 0 ) {
+                _bytes.add( bytes );
+            }
+            _objects.add( objects );
+            _histogram.incrementAndGet( Math.min( 63, 64 - Long.numberOfLeadingZeros( Math.max( 0, timeNanos ) ) ) );
+        }
+
+        long getCount() {
+            return _count.sum();
+        }
+
+        long getTimeNanos() {
+            return _timeNanos.sum();
+        }
+
+        long getBytes() {
+            return _bytes.sum();
+        }
+
+        long getObjects() {
+            return _objects.sum();
+        }
+
+        /**
+         * Returns the time (upper bound, a power of 2) that the given share of the recordings did not exceed.
+         *
+         * @param percentile the percentile, e.g. <code>0.99</code>.
+         */
+        long getPercentileNanos( final double percentile ) {
+            long total = 0;
+            for ( int i = 0; i < 64; i++ ) {
+                total += _histogram.get( i );
+            }
+            final long threshold = (long) Math.ceil( total * percentile );
+            long count = 0;
+            for ( int i = 0; i < 64; i++ ) {
+                count += _histogram.get( i );
+                if ( count >= threshold && count > 0 ) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + ", timeMicros=" + getTimeNanos() / 1000 + ", p50Micros=" + getPercentileNanos( 0.5 ) / 1000
+                    + ", p99Micros=" + getPercentileNanos( 0.99 ) / 1000 + ", bytes=" + getBytes() + ", objects=" + getObjects();
+        }
+
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+/**
+ * The JMX interface of the {@link XMLSerializationMetrics}, registered for each
+ * manager that has the metrics enabled (see {@link AaltoTranscoder#setMetrics(double)}).
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface XMLSerializationMetricsMBean {
+
+    /**
+     * The share of serialized objects (sessions) that are measured, between <code>0</code> and <code>1</code>.
+     */
+    double getSampleRate();
+
+    void setSampleRate( double sampleRate );
+
+    /**
+     * The number of measured serializations.
+     */
+    long getSampledDocuments();
+
+    /**
+     * The statistics per class of the serialized objects (count, time, bytes, objects),
+     * the time includes the time spent for the referenced objects. Classes beyond the max number
+     * of tracked classes are summarized as "(other)".
+     */
+    String[] getClassStatistics();
+
+    /**
+     * The statistics per session attribute (count, time, bytes, objects). Attributes beyond the max
+     * number of tracked attributes are summarized as "(other)".
+     */
+    String[] getAttributeStatistics();
+
+    /**
+     * Clears all statistics.
+     */
+    void reset();
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLStreamException;
+
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.InputElement;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.OutputElement;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLFormat;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLReader;
+
+/**
+ * Stores large session attributes separately under the hash of their serialized
+ * content, so that attributes that are the same in many sessions (e.g. a catalog
+ * snapshot) are stored only once. The session only contains a {@link Reference}
+ * with the key of the blob.
+ * <p>
+ * This applies only to the values of the maps referenced by the root object (i.e. the
+ * attributes of a session) that are explicitly marked as shareable: either the attribute
+ * name is one of the configured names or the class of the value is annotated with
+ * {@link XMLSharedAttribute}. An attribute is serialized on its own, so objects
+ * referenced both by a shared attribute and by another attribute are not the
+ * same instance anymore after deserialization. Blobs decoded when sessions are read are
+ * cached and the same instance is returned for all sessions referencing the blob, so shared
+ * attributes must not be modified. The written instances are never cached.
+ * </p>
+ * <p>
+ * If a blob is not found in the store (e.g. because it was evicted), the attribute is read
+ * as <code>null</code> and a warning is logged, the session itself can still be read.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLSharedAttributes {
+
+    static final String KEY_PREFIX = "msm-blob-";
+
+    /**
+     * The time after which a blob is stored again, in case it was evicted from the store.
+     */
+    static final long STORE_REFRESH_MILLIS = 10 * 60 * 1000;
+
+    private static final Logger LOG = Logger.getLogger( XMLSharedAttributes.class.getName() );
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final XMLBlobStore _store;
+    private final Set<String> _attributeNames;
+    private final int _minSize;
+    private final Map<String, Object> _decoded;
+    private final Map<String, Long> _stored;
+    private final AtomicLong _missing = new AtomicLong();
+
+    /**
+     * @param store the store for the shared blobs.
+     * @param attributeNames the names of the attributes that may be shared, in addition to the
+     *  values of classes annotated with {@link XMLSharedAttribute}.
+     * @param minSize the min size of a serialized attribute in bytes to be stored as shared blob.
+     * @param cacheSize the max number of decoded blobs that are cached.
+     */
+    XMLSharedAttributes( final XMLBlobStore store, final Collection<String> attributeNames, final int minSize, final int cacheSize ) {
+        _store = store;
+        _attributeNames = attributeNames != null
+            ? Collections.unmodifiableSet( new HashSet<String>( attributeNames ) )
+            : Collections.<String>emptySet();
+        _minSize = minSize;
+        _decoded = lru( cacheSize );
+        _stored = lru( cacheSize );
+    }
+
+    private static <V> Map<String, V> lru( final int maxSize ) {
+        return new LinkedHashMap<String, V>( 16, 0.75f, true ) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry( final Map.Entry<String, V> eldest ) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Stores the given attribute value as shared blob, if it may be shared and is large enough.
+     *
+     * @return the key of the blob, or <code>null</code> if the value is not shared.
+     */
+    String share( final XMLBinding binding, final Object name, final Object value ) throws XMLStreamException {
+        if ( value == null || !isShareable( name, value ) || isSmall( value ) ) {
+            return null;
+        }
+        final ByteBuffer buffer = binding.write( value, ByteBuffer.allocate( _minSize ), false );
+        if ( buffer.remaining() < _minSize ) {
+            return null;
+        }
+        final byte[] blob = new byte[buffer.remaining()];
+        buffer.get( blob );
+        final String key = KEY_PREFIX + hash( blob );
+
+        final long now = System.currentTimeMillis();
+        final boolean store;
+        synchronized ( _stored ) {
+            final Long lastStored = _stored.get( key );
+            store = lastStored == null || now - lastStored.longValue() > STORE_REFRESH_MILLIS;
+            if ( store ) {
+                _stored.put( key, now );
+            }
+        }
+        if ( store ) {
+            _store.set( key, blob );
+        }
+        /* the written value is not cached as decoded blob: it's the instance of this session,
+         * which must not become the instance of other sessions read on this node
+         */
+        return key;
+    }
+
+    /**
+     * Determines if the given attribute was explicitly marked as shareable, by its name or its class.
+     */
+    private boolean isShareable( final Object name, final Object value ) {
+        return name instanceof String && _attributeNames.contains( name )
+            || value.getClass().isAnnotationPresent( XMLSharedAttribute.class );
+    }
+
+    /**
+     * Determines values that are obviously smaller than the min size without serializing them.
+     */
+    private boolean isSmall( final Object value ) {
+        return value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum<?>
+            || value instanceof String && ( (String) value ).length() * 6 < _minSize;
+    }
+
+    /**
+     * Returns the decoded attribute stored with the given key, from the cache or from the store.
+     *
+     * @return the attribute, or <code>null</code> if it's not found in the store.
+     */
+    Object resolve( final XMLBinding binding, final String key ) throws XMLStreamException {
+        synchronized ( _decoded ) {
+            final Object result = _decoded.get( key );
+            if ( result != null ) {
+                return result;
+            }
+        }
+        final byte[] blob = _store.get( key );
+        if ( blob == null ) {
+            _missing.incrementAndGet();
+            LOG.warning( "The shared attribute " + key + " was not found in the store, it's read as null." );
+            return null;
+        }
+        final XMLReader reader = binding.newXMLReader( blob, 0, blob.length );
+        try {
+            final Object result = reader.read();
+            synchronized ( _decoded ) {
+                _decoded.put( key, result );
+            }
+            return result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The number of shared attributes that were not found in the store when they were read.
+     */
+    long getMissing() {
+        return _missing.get();
+    }
+
+    private static String hash( final byte[] blob ) {
+        try {
+            final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( blob );
+            final char[] result = new char[digest.length * 2];
+            for ( int i = 0; i < digest.length; i++ ) {
+                result[i * 2] = HEX[( digest[i] >> 4 ) & 0xf];
+                result[i * 2 + 1] = HEX[digest[i] & 0xf];
+            }
+            return new String( result );
+        } catch ( final NoSuchAlgorithmException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    /**
+     * The placeholder written instead of a shared attribute, it's never instantiated
+     * as its format returns the shared attribute.
+     */
+    static final class Reference {
+
+        static final String KEY = "key";
+
+        private Reference() {
+        }
+
+    }
+
+    /**
+     * The format that reads a {@link Reference}, it returns the shared attribute.
+     */
+    static final XMLFormat<Object> REFERENCE_FORMAT = new XMLFormat<Object>() {
+
+        @Override
+        protected Object newInstance( final Class<Object> clazz, final InputElement input ) throws XMLStreamException {
+            final XMLBinding binding = input.getBinding();
+            final XMLSharedAttributes sharedAttributes = binding.getSharedAttributes();
+            if ( sharedAttributes == null ) {
+                throw new XMLStreamException( "Found a shared attribute, but shared attributes are not enabled." );
+            }
+            return sharedAttributes.resolve( binding, input.getAttribute( Reference.KEY ) );
+        }
+
+        @Override
+        public void read( final InputElement input, final Object obj ) throws XMLStreamException {
+            // nothing to do
+        }
+
+        @Override
+        public void write( final Object obj, final OutputElement output ) throws XMLStreamException {
+            throw new UnsupportedOperationException( "References are written by the OutputElement." );
+        }
+
+    };
+
+}
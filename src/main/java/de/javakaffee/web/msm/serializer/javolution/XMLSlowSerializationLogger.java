@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * An {@link XMLSerializationListener} that logs serializations that take longer than
+ * a threshold, with the time and size of each session attribute (sorted by time), so
+ * that it's visible which attributes make a session slow. Objects that are no sessions are
+ * logged with the time and size of the entries of the maps they reference.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class XMLSlowSerializationLogger implements XMLSerializationListener {
+
+    static final Logger _log = Logger.getLogger( XMLSlowSerializationLogger.class.getName() );
+
+    private final long _thresholdNanos;
+    private final ThreadLocal<Trace> _traces = new ThreadLocal<Trace>() {
+        @Override
+        protected Trace initialValue() {
+            return new Trace();
+        }
+    };
+
+    /**
+     * @param thresholdMillis the min duration of a serialization that is logged, in milliseconds.
+     */
+    public XMLSlowSerializationLogger( final long thresholdMillis ) {
+        _thresholdNanos = TimeUnit.MILLISECONDS.toNanos( thresholdMillis );
+    }
+
+    public void startDocument( final Object root ) {
+        final Trace trace = _traces.get();
+        trace.attributes.clear();
+        trace.start = System.nanoTime();
+    }
+
+    public void endDocument( final Object root, final long bytesWritten ) {
+        final Trace trace = _traces.get();
+        final long duration = System.nanoTime() - trace.start;
+        if ( duration >= _thresholdNanos ) {
+            _log.warning( format( root, duration, bytesWritten, trace.attributes ) );
+        }
+        trace.attributes.clear();
+    }
+
+    public void enterObject( final Object object, final int depth, final long bytesWritten ) {
+        // only attributes are traced
+    }
+
+    public void exitObject( final Object object, final int depth, final long bytesWritten ) {
+        // only attributes are traced
+    }
+
+    public void startAttribute( final Object key, final long bytesWritten ) {
+        final Trace trace = _traces.get();
+        trace.attributeStart = System.nanoTime();
+        trace.attributeBytes = bytesWritten;
+    }
+
+    public void endAttribute( final Object key, final long bytesWritten ) {
+        final Trace trace = _traces.get();
+        trace.attributes.add( new Attribute( String.valueOf( key ), System.nanoTime() - trace.attributeStart,
+                bytesWritten >= 0 ? bytesWritten - trace.attributeBytes : -1 ) );
+    }
+
+    static String format( final Object root, final long duration, final long bytes, final List<Attribute> attributes ) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append( "Serialization of " ).append( root != null ? root.getClass().getName() : null );
+        sb.append( " took " ).append( TimeUnit.NANOSECONDS.toMillis( duration ) ).append( " ms" );
+        if ( bytes >= 0 ) {
+            sb.append( " (" ).append( bytes ).append( " bytes)" );
+        }
+        final List<Attribute> sorted = new ArrayList<Attribute>( attributes );
+        Collections.sort( sorted, new Comparator<Attribute>() {
+            public int compare( final Attribute o1, final Attribute o2 ) {
+                return o1.nanos < o2.nanos ? 1 : o1.nanos > o2.nanos ? -1 : 0;
+            }
+        } );
+        for ( final Attribute attribute : sorted ) {
+            sb.append( "\n  " ).append( attribute.name ).append( ": " );
+            sb.append( TimeUnit.NANOSECONDS.toMicros( attribute.nanos ) ).append( " us" );
+            if ( attribute.bytes >= 0 ) {
+                sb.append( ", " ).append( attribute.bytes ).append( " bytes" );
+            }
+        }
+        return sb.toString();
+    }
+
+    static final class Attribute {
+        final String name;
+        final long nanos;
+        final long bytes;
+        Attribute( final String name, final long nanos, final long bytes ) {
+            this.name = name;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class Trace {
+        long start;
+        long attributeStart;
+        long attributeBytes;
+        final List<Attribute> attributes = new ArrayList<Attribute>();
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that is incremented by many threads with little contention: each thread
+ * adds to one of several cells (chosen by the thread id), the cells are summed up when
+ * the value is read. The cells are spread, so that they don't share a cache line.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLStripedCounter {
+
+    private static final int STRIPES = stripes();
+    /* 8 longs = 64 bytes, the usual cache line size
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray _cells = new AtomicLongArray( STRIPES * PADDING );
+
+    private static int stripes() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        int result = 1;
+        while ( result < processors * 2 ) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    void add( final long value ) {
+        _cells.addAndGet( (int) ( Thread.currentThread().getId() & ( STRIPES - 1 ) ) * PADDING, value );
+    }
+
+    void increment() {
+        add( 1 );
+    }
+
+    long sum() {
+        long result = 0;
+        for ( int i = 0; i < STRIPES; i++ ) {
+            result += _cells.get( i * PADDING );
+        }
+        return result;
+    }
+
+    void reset() {
+        for ( int i = 0; i < STRIPES; i++ ) {
+            _cells.set( i * PADDING, 0 );
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLStreamException;
+
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.FormatTier;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.InputElement;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.OutputElement;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLFormat;
+
+/**
+ * An {@link XMLFormat} that starts with the {@link XMLReflectionFormat} of a class and
+ * counts the invocations and the time spent in it. When the number of invocations reaches
+ * the threshold, an optimized {@link XMLReflectionFormat} (accessing fields via
+ * {@link XMLFieldAccessor#optimized(java.lang.reflect.Field) optimized accessors}) is
+ * created by the given executor and replaces the reflective one. So classes that are
+ * serialized rarely are cheap to set up and the frequently serialized ones get fast.
+ * Invocations and time are only measured until the optimization is started, so that
+ * the optimized format is invoked without any overhead.
+ * <p>
+ * Both formats produce the same xml, so the format can be replaced while a document
+ * is written or read.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLTieredFormat<T> extends XMLFormat<T> {
+
+    private static final Logger LOG = Logger.getLogger( XMLTieredFormat.class.getName() );
+
+    private final Class<T> _class;
+    private final long _threshold;
+    private final Executor _executor;
+    private final XMLStripedCounter _invocations = new XMLStripedCounter();
+    private final XMLStripedCounter _nanos = new XMLStripedCounter();
+    private final AtomicBoolean _optimizing = new AtomicBoolean();
+    private volatile XMLFormat<T> _format;
+    private volatile FormatTier _tier = FormatTier.REFLECTION;
+
+    XMLTieredFormat( final Class<T> clazz, final XMLFormat<T> reflectionFormat, final long threshold, final Executor executor ) {
+        _class = clazz;
+        _format = reflectionFormat;
+        _threshold = threshold;
+        _executor = executor;
+    }
+
+    FormatTier getTier() {
+        return _tier;
+    }
+
+    /**
+     * The number of invocations until the optimization was started.
+     */
+    long getInvocations() {
+        return _invocations.sum();
+    }
+
+    /**
+     * The time spent in this format until the optimization was started in nanoseconds,
+     * including the time spent for the objects referenced by the handled objects.
+     */
+    long getTimeNanos() {
+        return _nanos.sum();
+    }
+
+    @Override
+    XMLUtf8Output.Names getNames() {
+        return _format.getNames();
+    }
+
+    @Override
+    protected T newInstance( final Class<T> clazz, final InputElement input ) throws XMLStreamException {
+        return _format.newInstance( clazz, input );
+    }
+
+    @Override
+    public void write( final T obj, final OutputElement output ) throws XMLStreamException {
+        if ( _tier != FormatTier.REFLECTION ) {
+            _format.write( obj, output );
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            _format.write( obj, output );
+        } finally {
+            invoked( start );
+        }
+    }
+
+    @Override
+    public void read( final InputElement input, final T obj ) throws XMLStreamException {
+        if ( _tier != FormatTier.REFLECTION ) {
+            _format.read( input, obj );
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            _format.read( input, obj );
+        } finally {
+            invoked( start );
+        }
+    }
+
+    private void invoked( final long start ) {
+        _nanos.add( System.nanoTime() - start );
+        _invocations.increment();
+        if ( _invocations.sum() >= _threshold && _tier == FormatTier.REFLECTION
+                && _optimizing.compareAndSet( false, true ) ) {
+            _tier = FormatTier.OPTIMIZING;
+            try {
+                _executor.execute( new Runnable() {
+                    public void run() {
+                        optimize();
+                    }
+                } );
+            } catch ( final RuntimeException e ) {
+                LOG.log( Level.WARNING, "Could not schedule the optimization of the format for " + _class.getName(), e );
+                _tier = FormatTier.REFLECTION;
+            }
+        }
+    }
+
+    void optimize() {
+        try {
+            _format = new XMLReflectionFormat<T>( _class, true );
+            _tier = FormatTier.OPTIMIZED;
+            LOG.fine( "Optimized the format for " + _class.getName() + " after " + _invocations.sum() + " invocations." );
+        } catch ( final RuntimeException e ) {
+            LOG.log( Level.WARNING, "Could not create the optimized format for " + _class.getName() + ", staying with reflection.", e );
+            _tier = FormatTier.REFLECTION;
+        }
+    }
+
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * An {@link XMLOutput} that writes utf-8 encoded xml straight into a byte buffer
+ * instead of going through the generic StAX writer. Element and attribute names
+ * are encoded only once: the names of the fields of a class are encoded by its
+ * {@link XMLReflectionFormat} (see {@link Names}), the few names used by the built-in
+ * formats are encoded statically. Other names are encoded when they're written.
+ * Attribute values are written with a fast path for ascii chars and numbers are
+ * written without creating strings.
+ * <p>
+ * The output is the same as the one produced by the aalto stream writer (as
+ * configured by the {@link XMLBinding}), so it's read by the same reader.
+ * Names are not validated.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLUtf8Output extends XMLOutput {
+
+    private static final Map<String, byte[]> VOCABULARY = new HashMap<String, byte[]>();
+
+    private static final byte[] XML_DECLARATION = encode( "<?xml version='1.0' encoding='UTF-8'?>" );
+    private static final byte[][] ASCII_ESCAPES = new byte[0x80][];
+    private static final byte[] INVALID = new byte[0];
+
+    static {
+        for ( int i = 0; i < 0x20; i++ ) {
+            ASCII_ESCAPES[i] = INVALID;
+        }
+        ASCII_ESCAPES['\t'] = encode( "&#x9;" );
+        ASCII_ESCAPES['\n'] = encode( "&#xa;" );
+        ASCII_ESCAPES['\r'] = encode( "&#xd;" );
+        ASCII_ESCAPES['<'] = encode( "&lt;" );
+        ASCII_ESCAPES['&'] = encode( "&amp;" );
+        ASCII_ESCAPES['"'] = encode( "&quot;" );
+        ASCII_ESCAPES['\''] = encode( "&apos;" );
+
+        /* the names used by the built-in formats, this map is not modified afterwards
+         */
+        for ( final String name : new String[] { "root", "i", "k", "v", "class", "__id", "ref", "value", "type",
+                "length", "componentType", "name", "size", "e", XMLBinding.KEY, XMLReflectionFormat.LAYOUT,
+                "timeInMillis", "lenient", "firstDayOfWeek", "minimalDaysInFirstWeek", "tz" } ) {
+            VOCABULARY.put( name, encode( name ) );
+        }
+    }
+
+    private final OutputStream _out;
+    private final byte[] _buffer;
+    private int _pos;
+    private long _flushed;
+    private Names _names;
+
+    private byte[][] _openElements = new byte[16][];
+    private int _depth;
+    private boolean _startTagOpen;
+
+    XMLUtf8Output( final OutputStream out ) {
+        this( out, 8192 );
+    }
+
+    XMLUtf8Output( final OutputStream out, final int bufferSize ) {
+        _out = out;
+        _buffer = new byte[bufferSize];
+    }
+
+    @Override
+    Names setNames( final Names names ) {
+        final Names result = _names;
+        _names = names;
+        return result;
+    }
+
+    /**
+     * Returns the utf-8 bytes of the given name, from the names of the current format,
+     * the built-in names or encoded right now.
+     */
+    private byte[] encodeName( final String name ) {
+        if ( _names != null ) {
+            final byte[] result = _names.get( name );
+            if ( result != null ) {
+                return result;
+            }
+        }
+        final byte[] result = VOCABULARY.get( name );
+        return result != null ? result : encode( name );
+    }
+
+    private static byte[] encode( final String s ) {
+        try {
+            return s.getBytes( "UTF-8" );
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    @Override
+    void writeStartDocument() throws XMLStreamException {
+        writeBytes( XML_DECLARATION );
+    }
+
+    @Override
+    void writeEndDocument() throws XMLStreamException {
+        while ( _depth > 0 ) {
+            writeEndElement();
+        }
+    }
+
+    @Override
+    void writeStartElement( final String localName ) throws XMLStreamException {
+        closeStartTag();
+        final byte[] name = encodeName( localName );
+        if ( _depth == _openElements.length ) {
+            final byte[][] openElements = new byte[_depth * 2][];
+            System.arraycopy( _openElements, 0, openElements, 0, _depth );
+            _openElements = openElements;
+        }
+        _openElements[_depth++] = name;
+        writeByte( (byte) '<' );
+        writeBytes( name );
+        _startTagOpen = true;
+    }
+
+    @Override
+    void writeEndElement() throws XMLStreamException {
+        if ( _depth == 0 ) {
+            throw new XMLStreamException( "No open element to close." );
+        }
+        final byte[] name = _openElements[--_depth];
+        _openElements[_depth] = null;
+        if ( _startTagOpen ) {
+            _startTagOpen = false;
+            ensureCapacity( 2 );
+            _buffer[_pos++] = '/';
+            _buffer[_pos++] = '>';
+        } else {
+            ensureCapacity( 2 );
+            _buffer[_pos++] = '<';
+            _buffer[_pos++] = '/';
+            writeBytes( name );
+            writeByte( (byte) '>' );
+        }
+    }
+
+    @Override
+    void writeAttribute( final String localName, final String value ) throws XMLStreamException {
+        startAttribute( localName );
+        writeAttributeValue( value );
+        writeByte( (byte) '"' );
+    }
+
+    @Override
+    void writeAttribute( final String localName, final int value ) throws XMLStreamException {
+        writeAttribute( localName, (long) value );
+    }
+
+    @Override
+    void writeAttribute( final String localName, final long value ) throws XMLStreamException {
+        startAttribute( localName );
+        writeLong( value );
+        writeByte( (byte) '"' );
+    }
+
+    private void startAttribute( final String localName ) throws XMLStreamException {
+        if ( !_startTagOpen ) {
+            throw new XMLStreamException( "Attribute " + localName + " cannot be written without an open start element." );
+        }
+        writeByte( (byte) ' ' );
+        writeBytes( encodeName( localName ) );
+        ensureCapacity( 2 );
+        _buffer[_pos++] = '=';
+        _buffer[_pos++] = '"';
+    }
+
+    private void closeStartTag() throws XMLStreamException {
+        if ( _startTagOpen ) {
+            _startTagOpen = false;
+            writeByte( (byte) '>' );
+        }
+    }
+
+    private void writeAttributeValue( final String value ) throws XMLStreamException {
+        final int length = value.length();
+        for ( int i = 0; i < length; i++ ) {
+            /* the longest encoded form is a 6 byte escape
+             */
+            ensureCapacity( 6 );
+            final char c = value.charAt( i );
+            if ( c < 0x80 ) {
+                final byte[] escape = ASCII_ESCAPES[c];
+                if ( escape == null ) {
+                    _buffer[_pos++] = (byte) c;
+                } else if ( escape == INVALID ) {
+                    throw new XMLStreamException( "Invalid white space character (0x" + Integer.toHexString( c ) + ") in text to output" );
+                } else {
+                    System.arraycopy( escape, 0, _buffer, _pos, escape.length );
+                    _pos += escape.length;
+                }
+            } else if ( c < 0x800 ) {
+                _buffer[_pos++] = (byte) ( 0xc0 | ( c >> 6 ) );
+                _buffer[_pos++] = (byte) ( 0x80 | ( c & 0x3f ) );
+            } else if ( Character.isHighSurrogate( c ) && i + 1 < length && Character.isLowSurrogate( value.charAt( i + 1 ) ) ) {
+                final int cp = Character.toCodePoint( c, value.charAt( ++i ) );
+                _buffer[_pos++] = (byte) ( 0xf0 | ( cp >> 18 ) );
+                _buffer[_pos++] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+                _buffer[_pos++] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3f ) );
+                _buffer[_pos++] = (byte) ( 0x80 | ( cp & 0x3f ) );
+            } else if ( Character.isHighSurrogate( c ) || Character.isLowSurrogate( c ) ) {
+                throw new XMLStreamException( "Unpaired surrogate character (0x" + Integer.toHexString( c ) + ") in text to output" );
+            } else {
+                _buffer[_pos++] = (byte) ( 0xe0 | ( c >> 12 ) );
+                _buffer[_pos++] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+                _buffer[_pos++] = (byte) ( 0x80 | ( c & 0x3f ) );
+            }
+        }
+    }
+
+    private void writeLong( final long value ) throws XMLStreamException {
+        if ( value == Long.MIN_VALUE ) {
+            writeAttributeValue( String.valueOf( value ) );
+            return;
+        }
+        ensureCapacity( 20 );
+        long v = value;
+        if ( v < 0 ) {
+            _buffer[_pos++] = '-';
+            v = -v;
+        }
+        final int start = _pos;
+        do {
+            _buffer[_pos++] = (byte) ( '0' + v % 10 );
+            v /= 10;
+        } while ( v != 0 );
+        for ( int i = start, j = _pos - 1; i < j; i++, j-- ) {
+            final byte b = _buffer[i];
+            _buffer[i] = _buffer[j];
+            _buffer[j] = b;
+        }
+    }
+
+    private void writeByte( final byte b ) throws XMLStreamException {
+        ensureCapacity( 1 );
+        _buffer[_pos++] = b;
+    }
+
+    private void writeBytes( final byte[] bytes ) throws XMLStreamException {
+        if ( bytes.length > _buffer.length ) {
+            flushBuffer();
+            try {
+                _out.write( bytes );
+                _flushed += bytes.length;
+            } catch ( final IOException e ) {
+                throw new XMLStreamException( e );
+            }
+            return;
+        }
+        ensureCapacity( bytes.length );
+        System.arraycopy( bytes, 0, _buffer, _pos, bytes.length );
+        _pos += bytes.length;
+    }
+
+    private void ensureCapacity( final int length ) throws XMLStreamException {
+        if ( _pos + length > _buffer.length ) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws XMLStreamException {
+        if ( _pos > 0 ) {
+            try {
+                _out.write( _buffer, 0, _pos );
+            } catch ( final IOException e ) {
+                throw new XMLStreamException( e );
+            }
+            _flushed += _pos;
+            _pos = 0;
+        }
+    }
+
+    @Override
+    long getBytesWritten() {
+        return _flushed + _pos;
+    }
+
+    @Override
+    void flush() throws XMLStreamException {
+        flushBuffer();
+        try {
+            _out.flush();
+        } catch ( final IOException e ) {
+            throw new XMLStreamException( e );
+        }
+    }
+
+    /**
+     * Flushes the buffered output, the underlying stream is not closed
+     * (same as for the aalto stream writer).
+     */
+    @Override
+    void close() throws XMLStreamException {
+        flushBuffer();
+    }
+
+    /**
+     * The utf-8 encoded element and attribute names of a format, created once by the format
+     * (e.g. per class by the {@link XMLReflectionFormat}).
+     */
+    static final class Names {
+
+        private final XMLReflectionFormat.NameTable _table;
+        private final byte[][] _encoded;
+
+        Names( final String ... names ) {
+            _table = new XMLReflectionFormat.NameTable( names );
+            _encoded = new byte[names.length][];
+            for ( int i = 0; i < names.length; i++ ) {
+                _encoded[i] = encode( names[i] );
+            }
+        }
+
+        /**
+         * Returns the encoded name, or <code>null</code> if it's not one of these names.
+         */
+        byte[] get( final String name ) {
+            final int index = _table.indexOf( name );
+            return index >= 0 ? _encoded[index] : null;
+        }
+
+    }
+
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serializes objects (sessions) asynchronously with a fixed number of daemon threads
+ * and a bounded queue.
+ * <ul>
+ * <li>If an object is submitted for an id that is still queued, the queued object is
+ * replaced, so that only the latest state is serialized. Both submissions get the same result.</li>
+ * <li>If the queue is full, the object is either serialized by the submitting thread
+ * (inline fallback) or the submitting thread blocks until there's space in the queue (backpressure).</li>
+ * <li>Objects submitted after (or while) the executor is shut down are serialized by the submitting thread,
+ * so that each returned future completes.</li>
+ * </ul>
+ * The queue depth, the time objects wait in the queue and the number of coalesced
+ * and inline serializations are recorded.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class XMLWriteBehindExecutor {
+
+    private static final Logger LOG = Logger.getLogger( XMLWriteBehindExecutor.class.getName() );
+    private static final long PUT_TIMEOUT_MILLIS = 100;
+    private static final long JOIN_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Serializes an object.
+     */
+    interface Encoder {
+        byte[] encode( Object object );
+    }
+
+    private final Encoder _encoder;
+    private final boolean _inlineWhenFull;
+    private final BlockingQueue<Pending> _queue;
+    private final ConcurrentMap<String, Pending> _pending = new ConcurrentHashMap<String, Pending>();
+    private final Thread[] _workers;
+    private volatile boolean _shutdown;
+
+    private final AtomicLong _submitted = new AtomicLong();
+    private final AtomicLong _coalesced = new AtomicLong();
+    private final AtomicLong _inline = new AtomicLong();
+    private final AtomicLong _executed = new AtomicLong();
+    private final AtomicLong _waitNanos = new AtomicLong();
+    private final AtomicLong _maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param encoder the encoder used to serialize the objects
+     * @param threads the number of threads that serialize objects
+     * @param queueCapacity the max number of queued objects
+     * @param inlineWhenFull <code>true</code> if objects shall be serialized by the submitting thread
+     *  when the queue is full, <code>false</code> if the submitting thread shall wait instead.
+     */
+    XMLWriteBehindExecutor( final Encoder encoder, final int threads, final int queueCapacity, final boolean inlineWhenFull ) {
+        _encoder = encoder;
+        _inlineWhenFull = inlineWhenFull;
+        _queue = new ArrayBlockingQueue<Pending>( queueCapacity );
+        _workers = new Thread[threads];
+        final Runnable worker = new Runnable() {
+            public void run() {
+                work();
+            }
+        };
+        for ( int i = 0; i < threads; i++ ) {
+            _workers[i] = new Thread( worker, "xml-write-behind-" + ( i + 1 ) );
+            _workers[i].setDaemon( true );
+            _workers[i].start();
+        }
+    }
+
+    /**
+     * Submits the given object for serialization. If an object with the given id is
+     * still queued, it's replaced by the given one.
+     *
+     * @return the future providing the serialized object.
+     * @throws InterruptedException if the thread was interrupted while waiting for space in the queue.
+     */
+    Future<byte[]> submit( final String id, final Object object ) throws InterruptedException {
+        _submitted.incrementAndGet();
+        while ( true ) {
+            if ( _shutdown ) {
+                return runInline( new Pending( id, object ) );
+            }
+            final Pending existing = _pending.get( id );
+            if ( existing != null ) {
+                if ( existing.replace( object ) ) {
+                    _coalesced.incrementAndGet();
+                    return existing.task;
+                }
+                /* it's already serialized, but not yet removed
+                 */
+                _pending.remove( id, existing );
+                continue;
+            }
+            final Pending pending = new Pending( id, object );
+            if ( _pending.putIfAbsent( id, pending ) != null ) {
+                continue;
+            }
+            if ( _queue.offer( pending ) ) {
+                return enqueued( pending );
+            }
+            if ( _inlineWhenFull ) {
+                _pending.remove( id, pending );
+                return runInline( pending );
+            }
+            /* wait for space in the queue, but not after the workers are stopped
+             */
+            while ( !_queue.offer( pending, PUT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ) {
+                if ( _shutdown ) {
+                    _pending.remove( id, pending );
+                    return runInline( pending );
+                }
+            }
+            return enqueued( pending );
+        }
+    }
+
+    /**
+     * Checks if the executor was shut down while the given object was queued. Then the queue may
+     * have been drained already, so the object is serialized right away unless it was taken already
+     * (by a worker or by {@link #shutdown()}).
+     */
+    private Future<byte[]> enqueued( final Pending pending ) {
+        if ( _shutdown && _queue.remove( pending ) ) {
+            _pending.remove( pending.id, pending );
+            return runInline( pending );
+        }
+        return pending.task;
+    }
+
+    private Future<byte[]> runInline( final Pending pending ) {
+        _inline.incrementAndGet();
+        pending.run();
+        return pending.task;
+    }
+
+    private void work() {
+        while ( !_shutdown ) {
+            try {
+                final Pending pending = _queue.poll( 1, TimeUnit.SECONDS );
+                if ( pending != null ) {
+                    _pending.remove( pending.id, pending );
+                    recordWait( System.nanoTime() - pending.submitted );
+                    _executed.incrementAndGet();
+                    pending.run();
+                }
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch ( final RuntimeException e ) {
+                LOG.log( Level.WARNING, "Caught exception while serializing.", e );
+            }
+        }
+    }
+
+    private void recordWait( final long nanos ) {
+        _waitNanos.addAndGet( nanos );
+        long max;
+        while ( nanos > ( max = _maxWaitNanos.get() ) && !_maxWaitNanos.compareAndSet( max, nanos ) ) {
+            // retry
+        }
+    }
+
+    /**
+     * Stops the worker threads, queued objects are still serialized (by the calling thread).
+     * Objects submitted afterwards are serialized by the submitting thread.
+     * Returns when the workers have finished the objects they're serializing, so that
+     * all futures of objects submitted before are done.
+     */
+    void shutdown() {
+        _shutdown = true;
+        Pending pending;
+        while ( ( pending = _queue.poll() ) != null ) {
+            _pending.remove( pending.id, pending );
+            pending.run();
+        }
+        for ( final Thread worker : _workers ) {
+            worker.interrupt();
+        }
+        for ( final Thread worker : _workers ) {
+            try {
+                worker.join( JOIN_TIMEOUT_MILLIS );
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    int getQueueDepth() {
+        return _queue.size();
+    }
+
+    long getSubmitted() {
+        return _submitted.get();
+    }
+
+    long getCoalesced() {
+        return _coalesced.get();
+    }
+
+    long getInline() {
+        return _inline.get();
+    }
+
+    /**
+     * The number of objects serialized by the worker threads.
+     */
+    long getExecuted() {
+        return _executed.get();
+    }
+
+    /**
+     * The time objects waited in the queue in total, in nanoseconds.
+     */
+    long getWaitNanos() {
+        return _waitNanos.get();
+    }
+
+    long getMaxWaitNanos() {
+        return _maxWaitNanos.get();
+    }
+
+    /**
+     * An object waiting to be serialized.
+     */
+    private final class Pending implements Callable<byte[]> {
+
+        final String id;
+        final long submitted = System.nanoTime();
+        final FutureTask<byte[]> task = new FutureTask<byte[]>( this );
+        private Object _object;
+        private boolean _started;
+
+        Pending( final String id, final Object object ) {
+            this.id = id;
+            _object = object;
+        }
+
+        /**
+         * Replaces the object if the serialization is not yet started.
+         */
+        synchronized boolean replace( final Object object ) {
+            if ( _started ) {
+                return false;
+            }
+            _object = object;
+            return true;
+        }
+
+        private synchronized Object start() {
+            _started = true;
+            final Object result = _object;
+            _object = null;
+            return result;
+        }
+
+        void run() {
+            task.run();
+        }
+
+        public byte[] call() {
+            return _encoder.encode( start() );
+        }
+
+    }
+
+}
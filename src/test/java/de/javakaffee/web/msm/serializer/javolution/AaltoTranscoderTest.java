@@ -22,24 +22,38 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.xml.stream.XMLStreamException;
 
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.core.StandardContext;
 import org.apache.catalina.loader.WebappLoader;
 import org.apache.catalina.session.StandardSession;
@@ -158,6 +172,391 @@ public class AaltoTranscoderTest extends MockObjectTestCase {
         assertDeepEquals( _transcoder.deserialize( _transcoder.serialize( session ) ), session );
     }
 
+    @Test
+    public void testSerializeReleasesGrownBufferToPool() throws Exception {
+        final MemcachedBackupSession session = _manager.createEmptySession();
+        session.setValid( true );
+        session.setAttribute( "large", new String( new char[20000] ).replace( '\0', 'x' ) );
+
+        final byte[] serialized = _transcoder.serialize( session );
+        Assert.assertTrue( serialized.length > 20000 );
+        assertDeepEquals( _transcoder.deserialize( serialized ), session );
+
+        /* the pool may also contain small buffers released by other tests
+         */
+        final List<ByteBuffer> pooled = new ArrayList<ByteBuffer>();
+        try {
+            int maxCapacity = 0;
+            for ( int i = 0; i < 16; i++ ) {
+                pooled.add( AaltoTranscoder.BUFFER_POOL.acquire() );
+                maxCapacity = Math.max( maxCapacity, pooled.get( i ).capacity() );
+            }
+            Assert.assertTrue( maxCapacity >= serialized.length,
+                    "The grown buffer should be pooled, but got capacity " + maxCapacity );
+        } finally {
+            for ( final ByteBuffer buffer : pooled ) {
+                AaltoTranscoder.BUFFER_POOL.release( buffer );
+            }
+        }
+        Assert.assertEquals( _transcoder.serialize( session ), serialized );
+    }
+
+    @Test
+    public void testBufferPoolDropsBuffersAboveMaxCapacity() {
+        final ByteBufferPool pool = new ByteBufferPool( 16, 4, 64, false );
+        final ByteBuffer small = ByteBuffer.allocate( 64 );
+        pool.release( ByteBuffer.allocate( 65 ) );
+        pool.release( small );
+        Assert.assertSame( pool.acquire(), small );
+        Assert.assertEquals( pool.acquire().capacity(), 16 );
+    }
+
+    @Test
+    public void testManagerStopShutsDownAsyncSerialization() throws Exception {
+        final MemcachedBackupSessionManager manager = new MemcachedBackupSessionManager();
+        final AaltoTranscoder transcoder = new AaltoTranscoder( manager );
+        final int threadsBefore = countWriteBehindThreads();
+        transcoder.setAsyncSerialization( 2, 100, false );
+        Assert.assertEquals( countWriteBehindThreads(), threadsBefore + 2 );
+
+        final List<MemcachedBackupSession> sessions = new ArrayList<MemcachedBackupSession>();
+        final List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        for ( int i = 0; i < 50; i++ ) {
+            final MemcachedBackupSession session = _manager.createEmptySession();
+            session.setValid( true );
+            session.setAttribute( "person", createPerson( "foo " + i, Gender.FEMALE, "foo@example.com" ) );
+            sessions.add( session );
+            futures.add( transcoder.serializeAsync( "session-" + i, session ) );
+        }
+        fireLifecycleEvent( manager, Lifecycle.STOP_EVENT );
+
+        Assert.assertNull( transcoder.getAsyncStatistics() );
+        Assert.assertEquals( countWriteBehindThreads(), threadsBefore );
+        for ( int i = 0; i < futures.size(); i++ ) {
+            Assert.assertTrue( futures.get( i ).isDone(), "Session " + i + " was not serialized at stop" );
+            assertDeepEquals( _transcoder.deserialize( futures.get( i ).get() ), sessions.get( i ) );
+        }
+    }
+
+    private static void fireLifecycleEvent( final MemcachedBackupSessionManager manager, final String type ) {
+        for ( final LifecycleListener listener : manager.findLifecycleListeners() ) {
+            listener.lifecycleEvent( new LifecycleEvent( manager, type ) );
+        }
+    }
+
+    private static int countWriteBehindThreads() {
+        int result = 0;
+        for ( final Thread thread : Thread.getAllStackTraces().keySet() ) {
+            if ( thread.isAlive() && thread.getName().startsWith( "xml-write-behind-" ) ) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testSerializeAsync() throws Exception {
+        final AaltoTranscoder transcoder = new AaltoTranscoder( _manager );
+        final MemcachedBackupSession session = newSession( "person", createPerson( "foo bar", Gender.MALE, "foo@example.com" ) );
+
+        /* without asynchronous serialization the session is serialized right away
+         */
+        final Future<byte[]> sync = transcoder.serializeAsync( "session-1", session );
+        Assert.assertTrue( sync.isDone() );
+        Assert.assertNull( transcoder.getAsyncStatistics() );
+
+        transcoder.setAsyncSerialization( 1, 10, false );
+        try {
+            final Future<byte[]> async = transcoder.serializeAsync( "session-1", session );
+            Assert.assertEquals( async.get( 5, TimeUnit.SECONDS ), sync.get() );
+            assertDeepEquals( transcoder.deserialize( async.get() ), session );
+            final AaltoTranscoder.AsyncStatistics statistics = transcoder.getAsyncStatistics();
+            Assert.assertEquals( statistics.getSubmitted(), 1 );
+            Assert.assertEquals( statistics.getExecuted(), 1 );
+            Assert.assertEquals( statistics.getQueueDepth(), 0 );
+        } finally {
+            transcoder.setAsyncSerialization( 0, 0, false );
+        }
+        Assert.assertNull( transcoder.getAsyncStatistics() );
+    }
+
+    @Test
+    public void testWriteBehindExecutorCoalescesAndFallsBackInline() throws Exception {
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final XMLWriteBehindExecutor executor = new XMLWriteBehindExecutor( new BlockingEncoder( started, release ), 1, 1, true );
+        try {
+            final Future<byte[]> blocking = executor.submit( "x", "blocking" );
+            Assert.assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+
+            final Future<byte[]> first = executor.submit( "a", "a1" );
+            final Future<byte[]> second = executor.submit( "a", "a2" );
+            Assert.assertSame( second, first );
+            Assert.assertEquals( executor.getQueueDepth(), 1 );
+
+            final Future<byte[]> inline = executor.submit( "b", "b1" );
+            Assert.assertTrue( inline.isDone() );
+            Assert.assertEquals( new String( inline.get() ), "b1" );
+
+            release.countDown();
+            Assert.assertEquals( new String( blocking.get( 5, TimeUnit.SECONDS ) ), "blocking" );
+            Assert.assertEquals( new String( first.get( 5, TimeUnit.SECONDS ) ), "a2" );
+
+            Assert.assertEquals( executor.getSubmitted(), 4 );
+            Assert.assertEquals( executor.getCoalesced(), 1 );
+            Assert.assertEquals( executor.getInline(), 1 );
+            Assert.assertEquals( executor.getExecuted(), 2 );
+            Assert.assertTrue( executor.getMaxWaitNanos() > 0 );
+            Assert.assertEquals( executor.getQueueDepth(), 0 );
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWriteBehindExecutorCompletesSubmissionsRacingShutdown() throws Exception {
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final XMLWriteBehindExecutor executor = new XMLWriteBehindExecutor( new BlockingEncoder( started, release ), 1, 1, false );
+        try {
+            executor.submit( "x", "blocking" );
+            Assert.assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+            final Future<byte[]> queued = executor.submit( "a", "a1" );
+
+            /* the queue is full, so this submission waits for space
+             */
+            final List<Future<byte[]>> blocked = new ArrayList<Future<byte[]>>();
+            final Thread submitter = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        blocked.add( executor.submit( "b", "b1" ) );
+                    } catch ( final InterruptedException e ) {
+                        throw new RuntimeException( e );
+                    }
+                }
+            };
+            submitter.start();
+            Thread.sleep( 50 );
+
+            executor.shutdown();
+            Assert.assertEquals( new String( queued.get( 5, TimeUnit.SECONDS ) ), "a1" );
+            submitter.join( 5000 );
+            Assert.assertEquals( new String( blocked.get( 0 ).get( 5, TimeUnit.SECONDS ) ), "b1" );
+
+            final Future<byte[]> late = executor.submit( "c", "c1" );
+            Assert.assertTrue( late.isDone() );
+            Assert.assertEquals( new String( late.get() ), "c1" );
+        } finally {
+            release.countDown();
+        }
+    }
+
+    /**
+     * Encodes the string value of objects, blocks on the object "blocking" until released.
+     */
+    private static final class BlockingEncoder implements XMLWriteBehindExecutor.Encoder {
+
+        private final CountDownLatch _started;
+        private final CountDownLatch _release;
+
+        BlockingEncoder( final CountDownLatch started, final CountDownLatch release ) {
+            _started = started;
+            _release = release;
+        }
+
+        public byte[] encode( final Object object ) {
+            if ( "blocking".equals( object ) ) {
+                _started.countDown();
+                try {
+                    _release.await();
+                } catch ( final InterruptedException e ) {
+                    throw new RuntimeException( e );
+                }
+            }
+            return object.toString().getBytes();
+        }
+
+    }
+
+    @Test
+    public void testSerializeAllAndDeserializeAll() throws Exception {
+        final AaltoTranscoder transcoder = new AaltoTranscoder( _manager );
+        transcoder.setBatchThreads( 4 );
+        final Map<String, Object> sessions = new LinkedHashMap<String, Object>();
+        for ( int i = 0; i < 100; i++ ) {
+            sessions.put( "session-" + i, newSession( "person", createPerson( "person " + i, Gender.FEMALE, i, "p" + i + "@example.org" ) ) );
+        }
+        sessions.put( "failing", null );
+
+        final AaltoTranscoder.BatchResult<byte[]> serialized = transcoder.serializeAll( sessions );
+        Assert.assertEquals( serialized.getResults().size(), 100 );
+        Assert.assertEquals( serialized.getFailures().keySet(), Collections.singleton( "failing" ) );
+        Assert.assertTrue( serialized.getBytes() > 0 );
+        Assert.assertTrue( serialized.getThreads() > 1 );
+        Assert.assertTrue( serialized.getSessionsPerSecond() > 0 );
+        Assert.assertEquals( serialized.getResults().get( "session-42" ), transcoder.serialize( sessions.get( "session-42" ) ) );
+
+        final AaltoTranscoder.BatchResult<Object> deserialized = transcoder.deserializeAll( serialized.getResults() );
+        Assert.assertEquals( deserialized.getBytes(), serialized.getBytes() );
+        Assert.assertTrue( deserialized.getFailures().isEmpty() );
+        for ( int i = 0; i < 100; i++ ) {
+            assertDeepEquals( deserialized.getResults().get( "session-" + i ), sessions.get( "session-" + i ) );
+        }
+    }
+
+    @Test
+    public void testPayloadHeaderAndCompression() throws Exception {
+        final AaltoTranscoder transcoder = new AaltoTranscoder( _manager );
+        final MemcachedBackupSession session = newSession( "person", createPerson( "foo bar", Gender.MALE, 42,
+                "foo.bar@example.org", "foo.bar@example.com" ) );
+        final byte[] plain = transcoder.serialize( session );
+        Assert.assertNull( XMLPayloadHeader.read( plain, 0, plain.length ) );
+
+        transcoder.setPayloadHeader( true );
+        final byte[] withHeader = transcoder.serialize( session );
+        final XMLPayloadHeader header = XMLPayloadHeader.read( withHeader, 0, withHeader.length );
+        Assert.assertNotNull( header );
+        Assert.assertFalse( header.isEnabled( XMLPayloadHeader.COMPRESSED ) );
+        Assert.assertEquals( withHeader.length, plain.length + XMLPayloadHeader.LENGTH );
+        assertDeepEquals( transcoder.deserialize( withHeader ), session );
+        /* a transcoder that does not write the header still reads it
+         */
+        assertDeepEquals( _transcoder.deserialize( withHeader ), session );
+
+        Assert.assertNull( transcoder.getCompressionStatistics() );
+        transcoder.setCompression( true );
+        final byte[] compressed = transcoder.serialize( session );
+        final XMLPayloadHeader compressedHeader = XMLPayloadHeader.read( compressed, 0, compressed.length );
+        Assert.assertTrue( compressedHeader.isEnabled( XMLPayloadHeader.COMPRESSED ) );
+        Assert.assertTrue( compressedHeader.isEnabled( XMLPayloadHeader.DICTIONARY ) );
+        Assert.assertTrue( compressed.length < plain.length / 2, compressed.length + " >= " + plain.length + " / 2" );
+        assertDeepEquals( transcoder.deserialize( compressed ), session );
+
+        final AaltoTranscoder.CompressionStatistics statistics = transcoder.getCompressionStatistics();
+        Assert.assertEquals( statistics.getCalls(), 1 );
+        Assert.assertEquals( statistics.getBytesIn(), plain.length );
+        Assert.assertEquals( statistics.getBytesOut(), compressed.length - XMLPayloadHeader.LENGTH );
+        Assert.assertTrue( statistics.getRatio() < 0.5 );
+    }
+
+    @Test
+    public void testNearCache() throws Exception {
+        final AaltoTranscoder transcoder = new AaltoTranscoder( _manager );
+        Assert.assertNull( transcoder.getNearCacheStatistics() );
+        transcoder.setNearCache( Long.MAX_VALUE );
+        final MemcachedBackupSession session = newSession( "person", createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" ) );
+        final byte[] serialized = transcoder.serialize( session );
+
+        final Object first = transcoder.deserialize( serialized );
+        final Object second = transcoder.deserialize( serialized.clone() );
+        assertDeepEquals( first, session );
+        assertDeepEquals( second, session );
+        Assert.assertNotSame( second, first );
+        AaltoTranscoder.NearCacheStatistics statistics = transcoder.getNearCacheStatistics();
+        Assert.assertEquals( statistics.getMisses(), 1 );
+        Assert.assertEquals( statistics.getHits(), 1 );
+        Assert.assertEquals( statistics.getHitRatio(), 0.5 );
+        Assert.assertEquals( statistics.getCount(), 1 );
+        /* an entry is weighed by the payload and the recorded events, which are larger than the payload
+         */
+        final long size = statistics.getSize();
+        Assert.assertTrue( size > serialized.length * 2, size + " <= 2 * " + serialized.length );
+
+        /* sessions that are deserialized later evict the least recently used ones
+         */
+        transcoder.setNearCache( size * 2 + size / 2 );
+        transcoder.deserialize( serialized );
+        for ( int i = 0; i < 3; i++ ) {
+            final MemcachedBackupSession other = newSession( "person", createPerson( "foo bar", Gender.MALE, i, "foo.bar@example.org" ) );
+            assertDeepEquals( transcoder.deserialize( transcoder.serialize( other ) ), other );
+        }
+        statistics = transcoder.getNearCacheStatistics();
+        Assert.assertEquals( statistics.getCount(), 2 );
+        Assert.assertEquals( statistics.getEvictions(), 2 );
+        Assert.assertTrue( statistics.getSize() <= size * 2 + size / 2 );
+
+        transcoder.setNearCache( 0 );
+        Assert.assertNull( transcoder.getNearCacheStatistics() );
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final AaltoTranscoder transcoder = new AaltoTranscoder( _manager );
+        transcoder.setRawUTF8Writer( true );
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName pattern = new ObjectName( "de.javakaffee.web.msm:type=XMLSerializationMetrics,*" );
+        final Set<ObjectName> mbeansBefore = server.queryNames( pattern, null );
+
+        transcoder.setMetrics( 1 );
+        final XMLSerializationMetrics metrics = transcoder.getMetrics();
+        final Set<ObjectName> names = new HashSet<ObjectName>( server.queryNames( pattern, null ) );
+        names.removeAll( mbeansBefore );
+        Assert.assertEquals( names.size(), 1 );
+
+        final MemcachedBackupSession session = newSession( "person", createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" ) );
+        session.setAttribute( "user", "foo" );
+        final byte[] serialized = transcoder.serialize( session );
+
+        Assert.assertEquals( metrics.getSampledDocuments(), 1 );
+        final XMLSerializationMetrics.Statistics sessionStatistics = metrics.getStatistics( MemcachedBackupSession.class );
+        Assert.assertEquals( sessionStatistics.getCount(), 1 );
+        Assert.assertTrue( sessionStatistics.getBytes() > 0 && sessionStatistics.getBytes() <= serialized.length,
+                "Unexpected bytes: " + sessionStatistics.getBytes() );
+        final XMLSerializationMetrics.Statistics person = metrics.getStatistics( "person" );
+        Assert.assertEquals( person.getCount(), 1 );
+        Assert.assertTrue( person.getBytes() > metrics.getStatistics( "user" ).getBytes() );
+        /* the objects of an attribute include its key
+         */
+        Assert.assertEquals( person.getObjects(), metrics.getStatistics( Person.class ).getObjects() + 1 );
+        Assert.assertTrue( person.getPercentileNanos( 0.99 ) >= 0 );
+        Assert.assertEquals( ( (String[]) server.getAttribute( names.iterator().next(), "AttributeStatistics" ) ).length, 2 );
+
+        /* only every second session is measured
+         */
+        metrics.reset();
+        metrics.setSampleRate( 0.5 );
+        for ( int i = 0; i < 4; i++ ) {
+            transcoder.serialize( session );
+        }
+        Assert.assertEquals( metrics.getSampledDocuments(), 2 );
+        Assert.assertEquals( metrics.getStatistics( "user" ).getCount(), 2 );
+
+        transcoder.setMetrics( 0 );
+        Assert.assertNull( transcoder.getMetrics() );
+        Assert.assertEquals( server.queryNames( pattern, null ), mbeansBefore );
+    }
+
+    @Test
+    public void testMetricsFoldUntrackedKeysIntoOther() throws Exception {
+        final XMLSerializationMetrics metrics = new XMLSerializationMetrics( 1, 2 );
+        for ( int i = 0; i < 5; i++ ) {
+            metrics.recordAttribute( "attribute" + i, 1000, 10, 1 );
+        }
+        metrics.recordClass( String.class, 1000, 10, 1 );
+        Assert.assertEquals( metrics.getStatistics( "attribute1" ).getCount(), 1 );
+        Assert.assertNull( metrics.getStatistics( "attribute2" ) );
+        Assert.assertEquals( metrics.getOtherAttributeStatistics().getCount(), 3 );
+        Assert.assertEquals( metrics.getOtherAttributeStatistics().getBytes(), 30 );
+        final String[] statistics = metrics.getAttributeStatistics();
+        Assert.assertEquals( statistics.length, 3 );
+        Assert.assertTrue( statistics[2].startsWith( XMLSerializationMetrics.OTHER + ": count=3" ), statistics[2] );
+        Assert.assertEquals( metrics.getClassStatistics().length, 1 );
+        Assert.assertEquals( metrics.getOtherClassStatistics().getCount(), 0 );
+
+        metrics.reset();
+        Assert.assertEquals( metrics.getOtherAttributeStatistics().getCount(), 0 );
+        Assert.assertEquals( metrics.getAttributeStatistics().length, 0 );
+    }
+
+    private MemcachedBackupSession newSession( final String attribute, final Object value ) {
+        final MemcachedBackupSession session = _manager.createEmptySession();
+        session.setValid( true );
+        session.setAttribute( attribute, value );
+        return session;
+    }
+
     @Test( enabled = false )
     public void testTypesInContainerClass() throws Exception {
 
@@ -760,4 +760,33 @@ public class TestClasses {
         }
     }
 
+    @XMLFieldOrder( { "_lastName", "_firstName" } )
+    static class AnnotatedPerson {
+        @XMLField( name = "f" )
+        String _firstName;
+        @XMLField( name = "l" )
+        String _lastName;
+        @XMLField( name = "a", mapping = XMLField.Mapping.ELEMENT )
+        int _age;
+        @XMLField( name = "c", mapping = XMLField.Mapping.ATTRIBUTE )
+        AtomicLong _counter;
+        @XMLExclude
+        String _cachedFullName;
+    }
+
+    static class AnnotatedPersonWithReservedName {
+        @XMLField( name = "class" )
+        String _className;
+    }
+
+    static class Primitives {
+        boolean booleanValue;
+        byte byteValue;
+        short shortValue;
+        int intValue;
+        long longValue;
+        float floatValue;
+        double doubleValue;
+    }
+
 }
@@ -0,0 +1,1313 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.zip.Deflater;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.xml.stream.XMLStreamException;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.serializer.javolution.TestClasses.Person.Gender;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.AsyncXMLReader;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.InputElement;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.OutputElement;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLFormat;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLReader;
+import de.javakaffee.web.msm.serializer.javolution.XMLBinding.XMLWriter;
+
+/**
+ * Test for {@link XMLBinding} and the payload format, the features of the {@link AaltoTranscoder}
+ * are tested by the {@link AaltoTranscoderTest}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class XMLBindingTest {
+
+    @DataProvider( name = "objectsProvider" )
+    protected Object[][] createObjectsData() {
+        final TestClasses.Person p1 = TestClasses.createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org", "foo.bar@example.com" );
+        final TestClasses.Person p2 = TestClasses.createPerson( "<bär & \"baz\" 'qux' €>", Gender.FEMALE, 23, "bar.baz@example.org" );
+        p1.addFriend( p2 );
+        p2.addFriend( p1 );
+        return new Object[][] {
+                { p1 },
+                { new TestClasses.MyContainer() },
+                { TestClasses.createContainer( "some content" ) }
+        };
+    }
+
+    @Test( dataProvider = "objectsProvider" )
+    public void testAsyncReaderWithChunks( final Object object ) throws Exception {
+        final byte[] serialized = serialize( object );
+        final Random random = new Random( 42 );
+        for ( final int chunkSize : new int[] { 1, 2, 3, 7, 64, serialized.length, -1 } ) {
+            final AsyncXMLReader reader = new XMLBinding().newAsyncXMLReader();
+            int pos = 0;
+            while ( pos < serialized.length ) {
+                Assert.assertTrue( reader.needMoreInput() );
+                final int length = Math.min( chunkSize > 0 ? chunkSize : 1 + random.nextInt( 50 ), serialized.length - pos );
+                reader.feedInput( serialized, pos, length );
+                pos += length;
+            }
+            reader.endOfInput();
+            Assert.assertFalse( reader.needMoreInput() );
+            final Object deserialized = reader.read();
+            reader.close();
+            Assert.assertEquals( new String( serialize( deserialized ), "UTF-8" ), new String( serialized, "UTF-8" ) );
+        }
+    }
+
+    @Test( dataProvider = "objectsProvider" )
+    public void testAsyncReaderReadsLikeStreamReader( final Object object ) throws Exception {
+        final byte[] serialized = serialize( object );
+        final AsyncXMLReader reader = new XMLBinding().newAsyncXMLReader();
+        reader.feedInput( serialized, 0, serialized.length );
+        reader.endOfInput();
+        Assert.assertEquals( serialize( reader.read() ), serialize( deserialize( serialized ) ) );
+    }
+
+    @Test
+    public void testAsyncReaderReadsBinaryFormat() throws Exception {
+        final Object object = TestClasses.createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" );
+        final XMLBinding binding = new XMLBinding();
+        binding.setBinaryFormat( true );
+        final byte[] serialized = serialize( object, binding );
+        final AsyncXMLReader reader = new XMLBinding().newAsyncXMLReader();
+        for ( int pos = 0; pos < serialized.length; pos += 5 ) {
+            reader.feedInput( serialized, pos, Math.min( 5, serialized.length - pos ) );
+        }
+        reader.endOfInput();
+        Assert.assertEquals( reader.read(), object );
+    }
+
+    @Test( expectedExceptions = XMLStreamException.class )
+    public void testAsyncReaderFailsBeforeEndOfInput() throws Exception {
+        final byte[] serialized = serialize( TestClasses.createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" ) );
+        final AsyncXMLReader reader = new XMLBinding().newAsyncXMLReader();
+        reader.feedInput( serialized, 0, serialized.length );
+        reader.read();
+    }
+
+    @Test( expectedExceptions = XMLStreamException.class )
+    public void testAsyncReaderFailsOnIncompleteInput() throws Exception {
+        final byte[] serialized = serialize( TestClasses.createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" ) );
+        final AsyncXMLReader reader = new XMLBinding().newAsyncXMLReader();
+        reader.feedInput( serialized, 0, serialized.length / 2 );
+        reader.endOfInput();
+        reader.read();
+    }
+
+    @Test( dataProvider = "objectsProvider" )
+    public void testReadFromByteRange( final Object object ) throws Exception {
+        final byte[] serialized = serialize( object );
+        final byte[] padded = new byte[serialized.length + 20];
+        Arrays.fill( padded, (byte) 'x' );
+        System.arraycopy( serialized, 0, padded, 10, serialized.length );
+        final XMLReader reader = new XMLBinding().newXMLReader( padded, 10, serialized.length );
+        Assert.assertEquals( serialize( reader.read() ), serialized );
+        reader.close();
+    }
+
+    @Test( dataProvider = "objectsProvider" )
+    public void testReadFromByteBuffer( final Object object ) throws Exception {
+        final byte[] serialized = serialize( object );
+        for ( final ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate( serialized.length + 3 ),
+                ByteBuffer.allocateDirect( serialized.length + 3 ) } ) {
+            buffer.put( new byte[] { 1, 2, 3 } ).put( serialized ).flip();
+            buffer.position( 3 );
+            final XMLReader reader = new XMLBinding().newXMLReader( buffer );
+            Assert.assertEquals( serialize( reader.read() ), serialized );
+            reader.close();
+            Assert.assertEquals( buffer.position(), 3 );
+        }
+    }
+
+    @Test( dataProvider = "objectsProvider" )
+    public void testWriteToByteBuffer( final Object object ) throws Exception {
+        final byte[] serialized = serialize( object );
+        for ( final boolean direct : new boolean[] { false, true } ) {
+            final ByteBufferPool pool = new ByteBufferPool( 16, 1, direct );
+            final ByteBuffer buffer = new XMLBinding().write( object, pool.acquire() );
+            Assert.assertEquals( buffer.isDirect(), direct );
+            final byte[] written = new byte[buffer.remaining()];
+            buffer.get( written );
+            Assert.assertEquals( written, serialized );
+            pool.release( buffer );
+
+            /* the grown buffer is pooled and reused
+             */
+            final ByteBuffer reused = pool.acquire();
+            Assert.assertTrue( reused.capacity() >= serialized.length );
+            Assert.assertEquals( new XMLBinding().write( object, reused ).capacity(), reused.capacity() );
+        }
+    }
+
+    @Test( dataProvider = "objectsProvider" )
+    public void testRawUTF8WriterWritesSameAsStreamWriter( final Object object ) throws Exception {
+        final byte[] serialized = serialize( object );
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final XMLWriter writer = new XMLBinding().newRawUTF8XMLWriter( bos );
+        writer.write( object );
+        writer.flush();
+        writer.close();
+        Assert.assertEquals( new String( bos.toByteArray(), "UTF-8" ), new String( serialized, "UTF-8" ) );
+        Assert.assertEquals( serialize( deserialize( bos.toByteArray() ) ), serialized );
+    }
+
+    @Test( dataProvider = "objectsProvider" )
+    public void testBinaryFormat( final Object object ) throws Exception {
+        final byte[] serialized = serialize( object );
+        final XMLBinding binding = new XMLBinding();
+        binding.setBinaryFormat( true );
+        final byte[] binary = serialize( object, binding );
+        Assert.assertEquals( binary[0], XMLBinaryOutput.MARKER );
+        Assert.assertTrue( binary.length < serialized.length, "binary: " + binary.length + ", xml: " + serialized.length );
+
+        /* any reader reads both formats
+         */
+        Assert.assertEquals( serialize( deserialize( binary ) ), serialized );
+        Assert.assertEquals( serialize( new XMLBinding().newXMLReader( new ByteArrayInputStream( binary ) ).read() ), serialized );
+        Assert.assertEquals( serialize( deserialize( serialized, binding ) ), serialized );
+    }
+
+    @Test
+    public void testBinaryFormatKeepsValues() throws Exception {
+        final String value = "<a> & \"b\" \u0000 ä€\ud83d\ude00 " + Long.MIN_VALUE;
+        final Object[] values = new Object[] { value, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, -1L, (short) -42,
+                (byte) 7, 'x', 0.1f, -0.0f, Float.NaN, 0.1d, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, true };
+        final XMLBinding binding = new XMLBinding();
+        binding.setBinaryFormat( true );
+        final Object[] items = (Object[]) ( (TestClasses.Holder<?>) deserialize(
+                serialize( new TestClasses.Holder<Object>( values ), binding ) ) ).item;
+        Assert.assertEquals( items, values );
+    }
+
+    @Test
+    public void testPayloadHeader() throws Exception {
+        final Object object = TestClasses.createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" );
+        final byte[] serialized = serialize( object );
+        for ( final boolean binary : new boolean[] { false, true } ) {
+            final XMLBinding binding = new XMLBinding();
+            binding.setBinaryFormat( binary );
+            final ByteBuffer buffer = XMLPayloadHeader.write( binding, object, ByteBuffer.allocate( 16 ) );
+            final byte[] payload = new byte[buffer.remaining()];
+            buffer.get( payload );
+
+            final XMLPayloadHeader header = XMLPayloadHeader.read( payload, 0, payload.length );
+            Assert.assertEquals( header.getVersion(), XMLPayloadHeader.VERSION );
+            Assert.assertEquals( header.isEnabled( XMLPayloadHeader.BINARY ), binary );
+            Assert.assertEquals( header.getOffset(), XMLPayloadHeader.LENGTH );
+            Assert.assertEquals( serialize( XMLPayloadHeader.newXMLReader( binding, payload, 0, payload.length ).read() ), serialized );
+
+            /* corrupted payloads are rejected
+             */
+            payload[payload.length - 2]++;
+            try {
+                XMLPayloadHeader.newXMLReader( binding, payload, 0, payload.length );
+                Assert.fail( "Expected XMLStreamException" );
+            } catch ( final XMLStreamException e ) {
+                // expected
+            }
+        }
+
+        /* payloads without header are still read
+         */
+        Assert.assertNull( XMLPayloadHeader.read( serialized, 0, serialized.length ) );
+        Assert.assertEquals( serialize( XMLPayloadHeader.newXMLReader( new XMLBinding(), serialized, 0, serialized.length ).read() ), serialized );
+    }
+
+    @Test( expectedExceptions = XMLStreamException.class )
+    public void testPayloadHeaderWithNewerVersionIsRejected() throws Exception {
+        final ByteBuffer buffer = XMLPayloadHeader.write( new XMLBinding(), "foo", ByteBuffer.allocate( 64 ) );
+        buffer.put( 1, (byte) ( XMLPayloadHeader.VERSION + 1 ) );
+        XMLPayloadHeader.read( buffer.array(), 0, buffer.limit() );
+    }
+
+    @Test
+    public void testCompressionWithPresetDictionary() throws Exception {
+        final Object object = TestClasses.createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" );
+        final byte[] serialized = serialize( object );
+        final XMLBinding binding = new XMLBinding();
+        final XMLCompressor compressor = XMLCompressor.withDefaultDictionary();
+
+        final byte[] compressed = toBytes( XMLPayloadHeader.write( binding, compressor, object, ByteBuffer.allocate( 64 ) ) );
+        final XMLPayloadHeader header = XMLPayloadHeader.read( compressed, 0, compressed.length );
+        Assert.assertTrue( header.isEnabled( XMLPayloadHeader.COMPRESSED ) );
+        Assert.assertTrue( header.isEnabled( XMLPayloadHeader.DICTIONARY ) );
+        Assert.assertEquals( serialize( XMLPayloadHeader.newXMLReader( binding, compressed, 0, compressed.length ).read() ), serialized );
+
+        /* the dictionary improves the compression of small payloads
+         */
+        final byte[] withoutDictionary = toBytes( XMLPayloadHeader.write( binding, new XMLCompressor( null, Deflater.BEST_SPEED ),
+                object, ByteBuffer.allocate( 64 ) ) );
+        Assert.assertTrue( compressed.length < withoutDictionary.length, compressed.length + " >= " + withoutDictionary.length );
+        Assert.assertEquals( compressor.getCalls(), 1 );
+        Assert.assertEquals( compressor.getBytesIn(), serialized.length );
+        Assert.assertEquals( compressor.getBytesOut(), compressed.length - XMLPayloadHeader.LENGTH );
+
+        /* data compressed with another dictionary is rejected
+         */
+        final byte[] trained = XMLCompressor.train( Arrays.asList( serialized, serialize( TestClasses.createPerson( "bar baz",
+                Gender.FEMALE, 23, "bar.baz@example.org" ) ) ), XMLCompressor.MAX_DICTIONARY_SIZE );
+        Assert.assertTrue( new String( trained, "UTF-8" ).contains( "class=\"java.lang.String\"" ) );
+        try {
+            XMLPayloadHeader.newXMLReader( binding, new XMLCompressor( trained, Deflater.BEST_SPEED ), compressed, 0, compressed.length );
+            Assert.fail( "Expected XMLStreamException" );
+        } catch ( final XMLStreamException e ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPayloadHeaderWithDirectBuffer() throws Exception {
+        final Object object = TestClasses.createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" );
+        final byte[] serialized = serialize( object );
+        final XMLBinding binding = new XMLBinding();
+        final XMLCompressor compressor = XMLCompressor.withDefaultDictionary();
+
+        /* a direct buffer without room for the header is replaced by a direct buffer
+         */
+        final ByteBuffer buffer = XMLPayloadHeader.write( binding, compressor, object, ByteBuffer.allocateDirect( 4 ) );
+        Assert.assertTrue( buffer.isDirect() );
+        final byte[] compressed = toBytes( buffer );
+        final XMLPayloadHeader header = XMLPayloadHeader.read( compressed, 0, compressed.length );
+        Assert.assertTrue( header.isEnabled( XMLPayloadHeader.COMPRESSED ) );
+        Assert.assertEquals( compressor.getCalls(), 1 );
+        Assert.assertEquals( serialize( XMLPayloadHeader.newXMLReader( binding, compressor, compressed, 0, compressed.length ).read() ), serialized );
+        Assert.assertEquals( compressed, toBytes( XMLPayloadHeader.write( binding, compressor, object, ByteBuffer.allocate( 64 ) ) ) );
+    }
+
+    private static byte[] toBytes( final ByteBuffer buffer ) {
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.get( result );
+        return result;
+    }
+
+    @Test
+    public void testRawUTF8WriterEscapesAttributeValues() throws Exception {
+        final String value = "<a> & \"b\" 'c' \t\n\r ä€\ud83d\ude00 ]]> " + Long.MIN_VALUE;
+        final TestClasses.Holder<Object> holder = new TestClasses.Holder<Object>( new Object[] { value, Integer.MIN_VALUE,
+                Long.MAX_VALUE, -1L, (short) -42, (byte) 7, 'x', 0.5d } );
+        final XMLBinding binding = new XMLBinding();
+        binding.setRawUTF8Writer( true );
+        final ByteBuffer buffer = binding.write( holder, ByteBuffer.allocate( 8 ) );
+        final byte[] written = new byte[buffer.remaining()];
+        buffer.get( written );
+        Assert.assertEquals( new String( written, "UTF-8" ), new String( serialize( holder ), "UTF-8" ) );
+        final Object[] items = (Object[]) ( (TestClasses.Holder<?>) deserialize( written ) ).item;
+        Assert.assertEquals( items[0], value );
+        Assert.assertEquals( items[1], Integer.MIN_VALUE );
+        Assert.assertEquals( items[2], Long.MAX_VALUE );
+    }
+
+    @Test
+    public void testReadElementsInAnyOrderAndSkipUnknownFields() throws Exception {
+        final String personClass = TestClasses.Person.class.getName();
+        final String xml = "<?xml version='1.0' encoding='UTF-8'?>"
+            + "<root class=\"" + personClass + "\" __id=\"0\" _age=\"3\" _unknown=\"x\" _name=\"foo\" _gender=\"MALE\">"
+            + "<_friends class=\"java.util.ArrayList\" __id=\"1\"/>"
+            + "<_unknown class=\"java.lang.String\" __id=\"2\" v=\"bar\"/>"
+            + "<_props class=\"java.util.HashMap\" __id=\"3\">"
+            + "<k class=\"java.lang.String\" __id=\"4\" v=\"email0\"/>"
+            + "<v class=\"" + TestClasses.Email.class.getName() + "\" __id=\"5\" _name=\"foo\" _email=\"a@b\"/>"
+            + "</_props></root>";
+        final byte[] bytes = xml.getBytes( "UTF-8" );
+        final TestClasses.Person expected = TestClasses.createPerson( "foo", Gender.MALE, 3, "a@b" );
+
+        Assert.assertEquals( deserialize( bytes ), expected );
+
+        final AsyncXMLReader reader = new XMLBinding().newAsyncXMLReader();
+        reader.feedInput( bytes, 0, bytes.length );
+        reader.endOfInput();
+        Assert.assertEquals( reader.read(), expected );
+    }
+
+    @Test
+    public void testOmitDefaultValues() throws Exception {
+        final XMLBinding compactBinding = new XMLBinding();
+        compactBinding.setOmitDefaultValues( true );
+
+        /* objects without default values are written as before
+         */
+        final TestClasses.Person person = TestClasses.createPerson( "foo bar", Gender.MALE, 0, "foo.bar@example.org" );
+        Assert.assertEquals( serialize( person, compactBinding ), serialize( person ) );
+
+        final TestClasses.MyContainer container = new TestClasses.MyContainer();
+        container.setInt( 0 );
+        container.setLong( 0 );
+        final TestClasses.Primitives defaults = new TestClasses.Primitives();
+        final TestClasses.Primitives negativeZeros = new TestClasses.Primitives();
+        negativeZeros.floatValue = -0f;
+        negativeZeros.doubleValue = -0d;
+        for ( final Object object : new Object[] { container, defaults, negativeZeros } ) {
+            final byte[] full = serialize( object );
+            final byte[] compact = serialize( object, compactBinding );
+            Assert.assertTrue( compact.length < full.length, "Compact payload (" + compact.length
+                    + " bytes) must be smaller than the full payload (" + full.length + " bytes) for " + object.getClass() );
+            Assert.assertEquals( serialize( deserialize( compact ) ), full );
+        }
+
+        final TestClasses.Primitives read = (TestClasses.Primitives) deserialize( serialize( negativeZeros, compactBinding ) );
+        Assert.assertEquals( Float.floatToRawIntBits( read.floatValue ), Float.floatToRawIntBits( -0f ) );
+        Assert.assertEquals( Double.doubleToRawLongBits( read.doubleValue ), Double.doubleToRawLongBits( -0d ) );
+    }
+
+    @Test
+    public void testAnnotatedFieldMapping() throws Exception {
+        final TestClasses.AnnotatedPerson person = new TestClasses.AnnotatedPerson();
+        person._firstName = "foo";
+        person._lastName = "bar";
+        person._age = 42;
+        person._counter = new AtomicLong( 23 );
+        person._cachedFullName = "foo bar";
+
+        final String xml = new String( serialize( person ), "UTF-8" );
+        Assert.assertTrue( xml.contains( " l=\"bar\" f=\"foo\" c=\"23\">" ), xml );
+        Assert.assertTrue( xml.contains( "<a class=\"java.lang.Integer\"" ), xml );
+        Assert.assertFalse( xml.contains( "_" + "firstName" ) || xml.contains( "foo bar" ), xml );
+
+        final TestClasses.AnnotatedPerson read = (TestClasses.AnnotatedPerson) deserialize( xml.getBytes( "UTF-8" ) );
+        Assert.assertEquals( read._firstName, "foo" );
+        Assert.assertEquals( read._lastName, "bar" );
+        Assert.assertEquals( read._age, 42 );
+        Assert.assertEquals( read._counter.get(), 23 );
+        Assert.assertNull( read._cachedFullName );
+    }
+
+    @Test( expectedExceptions = IllegalArgumentException.class )
+    public void testAnnotatedFieldMappingRejectsReservedName() {
+        new XMLReflectionFormat<TestClasses.AnnotatedPersonWithReservedName>( TestClasses.AnnotatedPersonWithReservedName.class );
+    }
+
+    @Test( dataProvider = "objectsProvider" )
+    public void testPositionalLayout( final Object object ) throws Exception {
+        final XMLBinding binding = new XMLBinding();
+        binding.setPositionalLayout( true );
+        final byte[] serialized = serialize( object );
+        final byte[] positional = serialize( object, binding );
+        Assert.assertEquals( serialize( deserialize( positional ) ), serialized );
+
+        final AsyncXMLReader reader = new XMLBinding().newAsyncXMLReader();
+        reader.feedInput( positional, 0, positional.length );
+        reader.endOfInput();
+        Assert.assertEquals( serialize( reader.read() ), serialized );
+    }
+
+    @Test
+    public void testPositionalLayoutIsWrittenOncePerClass() throws Exception {
+        final TestClasses.Person p1 = TestClasses.createPerson( "foo", Gender.MALE, 42, "foo@example.org", "foo@example.com" );
+        p1.addFriend( TestClasses.createPerson( "bar", Gender.FEMALE, 23, "bar@example.org" ) );
+        final XMLBinding binding = new XMLBinding();
+        binding.setPositionalLayout( true );
+        final String xml = new String( serialize( p1, binding ), "UTF-8" );
+        final String personLayout = XMLReflectionFormat.LAYOUT + "=\""
+                + new XMLReflectionFormat<TestClasses.Person>( TestClasses.Person.class ).getLayoutFingerprint() + ":";
+        Assert.assertEquals( xml.split( personLayout, -1 ).length - 1, 1, xml );
+        Assert.assertEquals( xml.split( XMLReflectionFormat.LAYOUT, -1 ).length - 1, 2, xml );
+    }
+
+    @Test
+    public void testPositionalLayoutIsSmallerForManyObjects() throws Exception {
+        final List<TestClasses.Person> persons = new ArrayList<TestClasses.Person>();
+        for ( int i = 0; i < 20; i++ ) {
+            persons.add( TestClasses.createPerson( "foo" + i, Gender.MALE, i, "foo" + i + "@example.org" ) );
+        }
+        final XMLBinding binding = new XMLBinding();
+        binding.setPositionalLayout( true );
+        final byte[] serialized = serialize( persons );
+        final byte[] positional = serialize( persons, binding );
+        Assert.assertTrue( positional.length < serialized.length, "Positional payload (" + positional.length
+                + " bytes) must be smaller than the default payload (" + serialized.length + " bytes)" );
+        Assert.assertEquals( serialize( deserialize( positional ) ), serialized );
+    }
+
+    @Test
+    public void testPositionalLayoutFallsBackToNamesOnDifferentLayout() throws Exception {
+        final String xml = "<?xml version='1.0' encoding='UTF-8'?>"
+            + "<root class=\"" + TestClasses.Person.class.getName() + "\" __id=\"0\""
+            + " __layout=\"0:_gender,_name,_age,_nickname;_friends,_props\" _0=\"MALE\" _1=\"foo\" _2=\"3\" _3=\"x\">"
+            + "<_0 class=\"java.util.ArrayList\" __id=\"1\"/>"
+            + "<_1 class=\"java.util.HashMap\" __id=\"2\">"
+            + "<k class=\"java.lang.String\" __id=\"3\" v=\"email0\"/>"
+            + "<v class=\"" + TestClasses.Email.class.getName() + "\" __id=\"4\" __layout=\"1:_email,_name;\" _0=\"a@b\" _1=\"foo\"/>"
+            + "</_1></root>";
+        Assert.assertEquals( deserialize( xml.getBytes( "UTF-8" ) ), TestClasses.createPerson( "foo", Gender.MALE, 3, "a@b" ) );
+    }
+
+    @Test
+    public void testRegisteredFormatIsPreferred() throws Exception {
+        final TestClasses.Person person = TestClasses.createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" );
+        final XMLBinding binding = new XMLBinding();
+        binding.registerFormat( TestClasses.Email.class, new EmailFormat() );
+
+        final String xml = new String( serialize( person, binding ), "UTF-8" );
+        Assert.assertTrue( xml.contains( " n=\"foo bar\" e=\"foo.bar@example.org\"" ), xml );
+        Assert.assertEquals( deserialize( xml.getBytes( "UTF-8" ), binding ), person );
+
+        /* the exact registration does not match subclasses
+         */
+        Assert.assertTrue( new String( serialize( new WorkEmail( "foo", "foo@example.org" ), binding ), "UTF-8" ).contains( "_email=" ) );
+    }
+
+    @Test
+    public void testRegisteredFormatForSubtypes() throws Exception {
+        final XMLBinding binding = new XMLBinding();
+        binding.registerFormat( TestClasses.Email.class, new EmailFormat(), true );
+        final byte[] serialized = serialize( new TestClasses.Holder<Object>( new WorkEmail( "foo", "foo@example.org" ) ), binding );
+        final String xml = new String( serialized, "UTF-8" );
+        Assert.assertTrue( xml.contains( "class=\"" + WorkEmail.class.getName() + "\" __id=\"1\" n=\"foo\"" ), xml );
+        final Object item = ( (TestClasses.Holder<?>) deserialize( serialized, binding ) ).item;
+        Assert.assertEquals( item.getClass(), WorkEmail.class );
+        Assert.assertEquals( ( (WorkEmail) item ).getEmail(), "foo@example.org" );
+    }
+
+    @Test
+    public void testFormatProvider() throws Exception {
+        final TestClasses.Person person = TestClasses.createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" );
+        final XMLBinding binding = new XMLBinding();
+        binding.addFormatProvider( new EmailFormatProvider() );
+        final byte[] serialized = serialize( person, binding );
+        Assert.assertTrue( new String( serialized, "UTF-8" ).contains( " n=\"foo bar\"" ) );
+        Assert.assertEquals( deserialize( serialized, binding ), person );
+    }
+
+    @Test
+    public void testFormatProviderIsLoadedViaServiceLoader() throws Exception {
+        boolean found = false;
+        for ( final XMLFormatProvider provider : AaltoTranscoderFactory.loadFormatProviders() ) {
+            found |= provider instanceof EmailFormatProvider;
+        }
+        Assert.assertTrue( found );
+    }
+
+    @Test
+    public void testGeneratedFormatRejectsReservedAndDuplicateNames() throws Exception {
+        for ( final String reserved : new String[] { "class", "ref", "__id", XMLReflectionFormat.LAYOUT, XMLBinding.KEY } ) {
+            assertProcessorError( "@XMLField( name = \"" + reserved + "\" ) String _name;", "'" + reserved + "'" );
+        }
+        assertProcessorError( "@XMLField( name = \"n\" ) String _name; @XMLField( name = \"n\" ) int _count;", "'n'" );
+        assertProcessorError( "@XMLField( name = \"n\" ) java.util.List<String> _a; java.util.List<String> n;", "'n'" );
+    }
+
+    private void assertProcessorError( final String fields, final String expected ) throws Exception {
+        final File dir = File.createTempFile( "generated", "" );
+        dir.delete();
+        final File pkg = new File( dir, "generated" );
+        pkg.mkdirs();
+        final Writer source = new OutputStreamWriter( new FileOutputStream( new File( pkg, "Invalid.java" ) ), "UTF-8" );
+        source.write( "package generated;\n"
+                + "import de.javakaffee.web.msm.serializer.javolution.*;\n"
+                + "@XMLGenerateFormat public class Invalid { " + fields + " }\n" );
+        source.close();
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        final StandardJavaFileManager fileManager = compiler.getStandardFileManager( null, null, null );
+        final CompilationTask task = compiler.getTask( null, fileManager, diagnostics,
+                Arrays.asList( "-d", dir.getPath(), "-s", dir.getPath(), "-cp", System.getProperty( "java.class.path" ) ), null,
+                fileManager.getJavaFileObjects( new File( pkg, "Invalid.java" ) ) );
+        task.setProcessors( Arrays.asList( new XMLFormatProcessor() ) );
+        Assert.assertFalse( task.call(), "Compilation should fail for " + fields );
+        Assert.assertFalse( new File( pkg, "Invalid_XMLFormat.java" ).exists() );
+        boolean found = false;
+        for ( final Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics() ) {
+            found |= diagnostic.getKind() == Diagnostic.Kind.ERROR && diagnostic.getMessage( null ).contains( expected );
+        }
+        Assert.assertTrue( found, "Expected an error for " + expected + ": " + diagnostics.getDiagnostics() );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void testGeneratedFormat() throws Exception {
+        final File dir = File.createTempFile( "generated", "" );
+        dir.delete();
+        final File pkg = new File( dir, "generated" );
+        pkg.mkdirs();
+        final Writer source = new OutputStreamWriter( new FileOutputStream( new File( pkg, "Sample.java" ) ), "UTF-8" );
+        source.write( "package generated;\n"
+                + "import de.javakaffee.web.msm.serializer.javolution.*;\n"
+                + "@XMLGenerateFormat @XMLFieldOrder( \"_count\" )\n"
+                + "public class Sample {\n"
+                + "    private String _name;\n"
+                + "    int _count;\n"
+                + "    @XMLField( name = \"v\" ) double _value;\n"
+                + "    Boolean _flag;\n"
+                + "    Thread.State _state;\n"
+                + "    java.util.List<String> _tags;\n"
+                + "    Sample _child;\n"
+                + "    @XMLExclude String _excluded;\n"
+                + "    transient int _transient;\n"
+                + "    public String getName() { return _name; }\n"
+                + "    public void setName( String name ) { _name = name; }\n"
+                + "    @XMLGenerateFormat public static class Nested { char _c = 'x'; }\n"
+                + "}\n" );
+        source.close();
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        final StandardJavaFileManager fileManager = compiler.getStandardFileManager( null, null, null );
+        final CompilationTask task = compiler.getTask( null, fileManager, null,
+                Arrays.asList( "-d", dir.getPath(), "-s", dir.getPath(), "-cp", System.getProperty( "java.class.path" ) ), null,
+                fileManager.getJavaFileObjects( new File( pkg, "Sample.java" ) ) );
+        task.setProcessors( Arrays.asList( new XMLFormatProcessor() ) );
+        Assert.assertTrue( task.call() );
+        Assert.assertTrue( new File( pkg, "Sample_Nested_XMLFormat.java" ).exists() );
+
+        final ClassLoader classLoader = new URLClassLoader( new URL[] { dir.toURI().toURL() }, getClass().getClassLoader() );
+        final Class<Object> clazz = (Class<Object>) Class.forName( "generated.Sample", true, classLoader );
+        final Object sample = clazz.newInstance();
+        clazz.getMethod( "setName", String.class ).invoke( sample, "foo & bar" );
+        setField( sample, "_count", 42 );
+        setField( sample, "_value", -1.5d );
+        setField( sample, "_flag", Boolean.TRUE );
+        setField( sample, "_state", Thread.State.BLOCKED );
+        setField( sample, "_tags", new ArrayList<String>( Arrays.asList( "a", "b" ) ) );
+        setField( sample, "_child", clazz.newInstance() );
+
+        final XMLBinding binding = new XMLBinding();
+        Assert.assertEquals( binding.getFormat( clazz ).getClass().getName(), "generated.Sample_XMLFormat" );
+
+        /* the generated format must produce the same xml as the reflection based format
+         */
+        final XMLBinding reflectionBinding = new XMLBinding();
+        reflectionBinding.registerFormat( clazz, new XMLReflectionFormat<Object>( clazz ) );
+        final byte[] serialized = serialize( sample, binding );
+        Assert.assertEquals( new String( serialized, "UTF-8" ), new String( serialize( sample, reflectionBinding ), "UTF-8" ) );
+
+        /* the sample class cannot be loaded by the binding, therefore it's wrapped
+         * by a holder that uses the generated format to read and write its item
+         */
+        setField( sample, "_child", null );
+        final XMLFormat<Object> generatedFormat = binding.getFormat( clazz );
+        binding.registerFormat( GeneratedHolder.class, new XMLFormat<GeneratedHolder>() {
+
+            @Override
+            protected GeneratedHolder newInstance( final Class<GeneratedHolder> c, final InputElement input ) throws XMLStreamException {
+                try {
+                    return new GeneratedHolder( clazz.newInstance() );
+                } catch ( final Exception e ) {
+                    throw new XMLStreamException( e );
+                }
+            }
+
+            @Override
+            public void write( final GeneratedHolder holder, final OutputElement output ) throws XMLStreamException {
+                generatedFormat.write( holder.item, output );
+            }
+
+            @Override
+            public void read( final InputElement input, final GeneratedHolder holder ) throws XMLStreamException {
+                generatedFormat.read( input, holder.item );
+            }
+
+        } );
+        final Object deserialized = ( (GeneratedHolder) deserialize( serialize( new GeneratedHolder( sample ), binding ), binding ) ).item;
+        Assert.assertEquals( getField( deserialized, "_name" ), "foo & bar" );
+        Assert.assertEquals( getField( deserialized, "_count" ), 42 );
+        Assert.assertEquals( getField( deserialized, "_value" ), -1.5d );
+        Assert.assertEquals( getField( deserialized, "_flag" ), Boolean.TRUE );
+        Assert.assertEquals( getField( deserialized, "_state" ), Thread.State.BLOCKED );
+        Assert.assertEquals( getField( deserialized, "_tags" ), Arrays.asList( "a", "b" ) );
+        Assert.assertNull( getField( deserialized, "_child" ) );
+    }
+
+    static class GeneratedHolder {
+        final Object item;
+        GeneratedHolder( final Object item ) {
+            this.item = item;
+        }
+    }
+
+    private static void setField( final Object obj, final String name, final Object value ) throws Exception {
+        final Field field = obj.getClass().getDeclaredField( name );
+        field.setAccessible( true );
+        field.set( obj, value );
+    }
+
+    private static Object getField( final Object obj, final String name ) throws Exception {
+        final Field field = obj.getClass().getDeclaredField( name );
+        field.setAccessible( true );
+        return field.get( obj );
+    }
+
+    @Test
+    public void testOptimizedFieldAccess() throws Exception {
+        final TestClasses.AnnotatedPerson person = new TestClasses.AnnotatedPerson();
+        person._firstName = "foo";
+        person._age = 42;
+        person._counter = new AtomicLong( 23 );
+        final TestClasses.Primitives primitives = new TestClasses.Primitives();
+        primitives.booleanValue = true;
+        primitives.byteValue = -1;
+        primitives.shortValue = 2;
+        primitives.intValue = -3;
+        primitives.longValue = Long.MAX_VALUE;
+        primitives.floatValue = 1.5f;
+        primitives.doubleValue = -0.25d;
+
+        for ( final Object object : new Object[] { person, primitives, createObjectsData()[0][0] } ) {
+            final byte[] expected = serialize( object );
+            final XMLBinding binding = new XMLBinding();
+            registerOptimizedFormats( binding, object.getClass() );
+            Assert.assertEquals( new String( serialize( object, binding ), "UTF-8" ), new String( expected, "UTF-8" ) );
+            Assert.assertEquals( new String( serialize( deserialize( expected, binding ), binding ), "UTF-8" ), new String( expected, "UTF-8" ) );
+        }
+    }
+
+    static class VolatileFields {
+        volatile int count;
+        volatile String name;
+    }
+
+    @Test
+    public void testOptimizedAccessorHandlesVolatileFields() throws Exception {
+        final VolatileFields object = new VolatileFields();
+        final XMLFieldAccessor count = XMLFieldAccessor.optimized( VolatileFields.class.getDeclaredField( "count" ) );
+        final XMLFieldAccessor name = XMLFieldAccessor.optimized( VolatileFields.class.getDeclaredField( "name" ) );
+        count.setInt( object, 42 );
+        name.set( object, "foo" );
+        Assert.assertEquals( object.count, 42 );
+        Assert.assertEquals( object.name, "foo" );
+        object.count = 23;
+        Assert.assertEquals( count.getInt( object ), 23 );
+        Assert.assertEquals( name.get( object ), "foo" );
+
+        final XMLBinding binding = new XMLBinding();
+        registerOptimizedFormats( binding, VolatileFields.class );
+        final VolatileFields read = (VolatileFields) deserialize( serialize( object, binding ), binding );
+        Assert.assertEquals( read.count, 23 );
+        Assert.assertEquals( read.name, "foo" );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static void registerOptimizedFormats( final XMLBinding binding, final Class<?> clazz ) {
+        binding.registerFormat( (Class<Object>) clazz, new XMLReflectionFormat<Object>( (Class<Object>) clazz, true ) );
+        if ( clazz == TestClasses.Person.class ) {
+            registerOptimizedFormats( binding, TestClasses.Email.class );
+        }
+    }
+
+    @Test
+    public void testFormatIsOptimizedAfterThreshold() throws Exception {
+        final XMLBinding binding = new XMLBinding();
+        binding.setOptimizationThreshold( 10 );
+        final List<TestClasses.Person> persons = new ArrayList<TestClasses.Person>();
+        for ( int i = 0; i < 5; i++ ) {
+            persons.add( TestClasses.createPerson( "foo " + i, Gender.MALE, i, "foo" + i + "@example.org" ) );
+        }
+        final byte[] expected = serialize( persons );
+
+        Assert.assertEquals( new String( serialize( persons, binding ), "UTF-8" ), new String( expected, "UTF-8" ) );
+        Assert.assertEquals( binding.getFormatStatistics().get( TestClasses.Person.class ).getTier(), XMLBinding.FormatTier.REFLECTION );
+        Assert.assertEquals( binding.getFormatStatistics().get( TestClasses.Person.class ).getInvocations(), 5 );
+
+        Assert.assertEquals( deserialize( serialize( persons, binding ), binding ), persons );
+        for ( int i = 0; i < 100 && binding.getFormatStatistics().get( TestClasses.Person.class ).getTier() != XMLBinding.FormatTier.OPTIMIZED; i++ ) {
+            Thread.sleep( 10 );
+        }
+        Assert.assertEquals( binding.getFormatStatistics().get( TestClasses.Person.class ).getTier(), XMLBinding.FormatTier.OPTIMIZED );
+        Assert.assertEquals( new String( serialize( persons, binding ), "UTF-8" ), new String( expected, "UTF-8" ) );
+        Assert.assertEquals( deserialize( expected, binding ), persons );
+    }
+
+    @Test
+    public void testClassManifest() throws Exception {
+        final File file = File.createTempFile( "classes", ".txt" );
+        file.delete();
+        final XMLClassManifest manifest = new XMLClassManifest( file, 60000 );
+        final XMLBinding binding = new XMLBinding();
+        binding.setClassManifest( manifest );
+        serialize( TestClasses.createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" ), binding );
+        manifest.save();
+
+        final List<String> classNames = XMLClassManifest.load( file );
+        Assert.assertEquals( new HashSet<String>( classNames ),
+                new HashSet<String>( Arrays.asList( TestClasses.Person.class.getName(), TestClasses.Email.class.getName() ) ) );
+
+        final Writer writer = new OutputStreamWriter( new FileOutputStream( file, true ), "UTF-8" );
+        writer.write( "com.example.DoesNotExist\n" );
+        writer.close();
+        final XMLClassManifest loaded = new XMLClassManifest( file, 60000 );
+        Assert.assertEquals( loaded.getClassNames().size(), 3 );
+        Assert.assertEquals( loaded.warmUp( new XMLBinding(), 2 ).get().intValue(), 2 );
+        file.delete();
+    }
+
+    @Test
+    public void testInstantiationStrategies() throws Exception {
+        final TestClasses.Person person = TestClasses.createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" );
+        final List<Object> list = new ArrayList<Object>( Arrays.asList( person, new HashMap<String, Integer>(), new LinkedList<String>() ) );
+        Assert.assertEquals( deserialize( serialize( list ) ), list );
+
+        final Map<Class<?>, XMLBinding.InstantiationStrategy> strategies = XMLBinding.getInstantiationStrategies();
+        Assert.assertEquals( strategies.get( ArrayList.class ), XMLBinding.InstantiationStrategy.COLLECTION_FACTORY );
+        Assert.assertEquals( strategies.get( HashMap.class ), XMLBinding.InstantiationStrategy.COLLECTION_FACTORY );
+        Assert.assertEquals( strategies.get( LinkedList.class ), XMLBinding.InstantiationStrategy.CONSTRUCTOR );
+        Assert.assertEquals( strategies.get( TestClasses.Person.class ), XMLBinding.InstantiationStrategy.SERIALIZATION_CONSTRUCTOR );
+
+        /* the serialization constructor used by the reflection format doesn't replace the constructor
+         */
+        Assert.assertEquals( XMLInstantiator.forSerialization( LinkedList.class ).getStrategy(), XMLBinding.InstantiationStrategy.SERIALIZATION_CONSTRUCTOR );
+        Assert.assertEquals( XMLInstantiator.forClass( LinkedList.class ).getStrategy(), XMLBinding.InstantiationStrategy.CONSTRUCTOR );
+        Assert.assertEquals( XMLInstantiator.forClass( ArrayList.class ).getStrategy(), XMLBinding.InstantiationStrategy.COLLECTION_FACTORY );
+        Assert.assertEquals( XMLInstantiator.forSerialization( ArrayList.class ).getStrategy(), XMLBinding.InstantiationStrategy.SERIALIZATION_CONSTRUCTOR );
+        Assert.assertEquals( XMLInstantiator.forClass( ArrayList.class ).getStrategy(), XMLBinding.InstantiationStrategy.COLLECTION_FACTORY );
+    }
+
+    @Test
+    public void testCollectionsAreReadPresized() throws Exception {
+        final Map<String, List<Integer>> map = new LinkedHashMap<String, List<Integer>>();
+        map.put( "a", new ArrayList<Integer>( Arrays.asList( 1, 2, 3 ) ) );
+        map.put( "b", new ArrayList<Integer>() );
+        final String xml = new String( serialize( map ), "UTF-8" );
+        Assert.assertTrue( xml.contains( "class=\"java.util.LinkedHashMap\" __id=\"0\" size=\"2\"" ), xml );
+        Assert.assertTrue( xml.contains( "class=\"java.util.ArrayList\" __id=\"2\" size=\"3\"" ), xml );
+        Assert.assertEquals( deserialize( xml.getBytes( "UTF-8" ) ), map );
+
+        /* collections and maps written without size are still read
+         */
+        final String withoutSize = xml.replaceAll( " size=\"\\d+\"", "" );
+        Assert.assertFalse( withoutSize.contains( "size" ) );
+        Assert.assertEquals( deserialize( withoutSize.getBytes( "UTF-8" ) ), map );
+    }
+
+    @DataProvider( name = "positionalProvider" )
+    protected Object[][] createPositionalData() {
+        return new Object[][] { { false }, { true } };
+    }
+
+    @Test( dataProvider = "positionalProvider" )
+    public void testCompactStringMaps( final boolean positional ) throws Exception {
+        final TestClasses.Person person = TestClasses.createPerson( "foo bar", Gender.MALE, 42, "foo.bar@example.org" );
+        final Map<String, Object> map = new HashMap<String, Object>();
+        map.put( new String( "person" ), person );
+        map.put( new String( "same" ), person );
+        map.put( new String( "number" ), 23 );
+        final XMLBinding binding = new XMLBinding();
+        binding.setCompactStringMaps( true );
+        binding.setPositionalLayout( positional );
+
+        final byte[] serialized = serialize( map, binding );
+        final String xml = new String( serialized, "UTF-8" );
+        Assert.assertTrue( xml.contains( "<e __key=\"number\" class=\"java.lang.Integer\"" ), xml );
+        Assert.assertFalse( xml.contains( "<k " ), xml );
+        Assert.assertTrue( serialized.length < serialize( map ).length );
+
+        @SuppressWarnings( "unchecked" )
+        final Map<String, Object> read = (Map<String, Object>) deserialize( serialized, binding );
+        Assert.assertEquals( read, map );
+        Assert.assertSame( read.get( "same" ), read.get( "person" ) );
+        for ( final String key : read.keySet() ) {
+            Assert.assertSame( key, key.intern() );
+        }
+
+        /* maps with other keys are written as before
+         */
+        final Map<Object, Object> mixed = new HashMap<Object, Object>();
+        mixed.put( "foo", "bar" );
+        mixed.put( 1, "baz" );
+        Assert.assertTrue( new String( serialize( mixed, binding ), "UTF-8" ).contains( "<k " ) );
+        Assert.assertEquals( deserialize( serialize( mixed, binding ), binding ), mixed );
+    }
+
+    @Test
+    public void testCopyCollectionsWhileModified() throws Exception {
+        final Map<String, Integer> map = new HashMap<String, Integer>();
+        final List<Integer> list = new ArrayList<Integer>();
+        map.put( "null", null );
+        list.add( null );
+        Assert.assertEquals( deserialize( serialize( list ) ), list );
+        final TestClasses.Holder<Object> holder = new TestClasses.Holder<Object>( new ArrayList<Object>( Arrays.asList( map, list ) ) );
+        final XMLBinding binding = new XMLBinding();
+        binding.setCopyCollectionsForSerialization( true );
+
+        final AtomicBoolean running = new AtomicBoolean( true );
+        final Thread modifier = new Thread() {
+            @Override
+            public void run() {
+                for ( int i = 0; running.get(); i++ ) {
+                    map.put( String.valueOf( i % 100 ), i );
+                    list.add( i );
+                    if ( list.size() > 100 ) {
+                        map.clear();
+                        list.clear();
+                        map.put( "null", null );
+                    }
+                }
+            }
+        };
+        modifier.start();
+        try {
+            for ( int i = 0; i < 200; i++ ) {
+                final Object read = deserialize( serialize( holder, binding ) );
+                Assert.assertTrue( read instanceof TestClasses.Holder<?> );
+            }
+        } finally {
+            running.set( false );
+            modifier.join();
+        }
+    }
+
+    @Test
+    public void testCollectionSnapshotRetriesOnConcurrentModification() throws Exception {
+        Assert.assertEquals( XMLCollectionSnapshot.getStrategy( HashMap.class ), XMLCollectionSnapshot.Strategy.RETRY );
+        Assert.assertEquals( XMLCollectionSnapshot.getStrategy( Hashtable.class ), XMLCollectionSnapshot.Strategy.LOCKED );
+        Assert.assertEquals( XMLCollectionSnapshot.getStrategy( Collections.synchronizedMap( new HashMap<String, String>() ).getClass() ),
+                XMLCollectionSnapshot.Strategy.LOCKED );
+        Assert.assertEquals( XMLCollectionSnapshot.getStrategy( ConcurrentHashMap.class ), XMLCollectionSnapshot.Strategy.CONCURRENT );
+
+        Assert.assertEquals( XMLCollectionSnapshot.snapshot( new FailingList( XMLCollectionSnapshot.MAX_ATTEMPTS - 1, "a", "b" ) ),
+                new Object[] { "a", "b" } );
+        try {
+            XMLCollectionSnapshot.snapshot( new FailingList( XMLCollectionSnapshot.MAX_ATTEMPTS, "a" ) );
+            Assert.fail( "Expected ConcurrentModificationException" );
+        } catch ( final ConcurrentModificationException e ) {
+            // expected
+        }
+    }
+
+    @Test( expectedExceptions = ConcurrentModificationException.class )
+    public void testListShrunkWhileWrittenFailsWithConcurrentModification() throws Exception {
+        serialize( new ShrinkingList( "a", "b", "c" ) );
+    }
+
+    @Test
+    public void testCollectionsAndMapsAreReadViaConcreteTypes() throws Exception {
+        final Map<String, Object> map = new HashMap<String, Object>();
+        map.put( "list", new ArrayList<String>( Arrays.asList( "a", "b" ) ) );
+        map.put( "set", new HashSet<String>( Arrays.asList( "c", "d" ) ) );
+        map.put( "empty", new HashMap<String, String>() );
+        final Map<Object, Object> nonStringKeys = new LinkedHashMap<Object, Object>();
+        nonStringKeys.put( 1, null );
+        nonStringKeys.put( 2, "two" );
+        map.put( "nonStringKeys", nonStringKeys );
+        for ( final boolean compact : new boolean[] { false, true } ) {
+            final XMLBinding binding = new XMLBinding();
+            binding.setCompactStringMaps( compact );
+            Assert.assertEquals( deserialize( serialize( map, binding ), binding ), map );
+        }
+    }
+
+    @Test
+    public void testCompactMapEntryWithoutKeyFailsWithStreamException() throws Exception {
+        final Map<String, String> map = new HashMap<String, String>();
+        map.put( "a", "1" );
+        map.put( "b", "2" );
+        final XMLBinding binding = new XMLBinding();
+        binding.setCompactStringMaps( true );
+        final String xml = new String( serialize( map, binding ), "UTF-8" );
+        Assert.assertTrue( xml.contains( XMLBinding.KEY + "=\"b\"" ), xml );
+        try {
+            deserialize( xml.replace( XMLBinding.KEY + "=\"b\"", "" ).getBytes( "UTF-8" ), binding );
+            Assert.fail( "The entry without key should not be read" );
+        } catch ( final XMLStreamException e ) {
+            Assert.assertTrue( e.getMessage().contains( XMLBinding.KEY ), e.getMessage() );
+        }
+    }
+
+    @Test
+    public void testSharedAttributes() throws Exception {
+        final List<String> catalog = new ArrayList<String>();
+        for ( int i = 0; i < 200; i++ ) {
+            catalog.add( "product " + i );
+        }
+        final InMemoryBlobStore store = new InMemoryBlobStore();
+        final XMLBinding binding = new XMLBinding();
+        binding.setSharedAttributes( store, Arrays.asList( "catalog" ), 1024, 10 );
+
+        final byte[][] sessions = new byte[2][];
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        for ( int i = 0; i < sessions.length; i++ ) {
+            attributes.put( "catalog", new ArrayList<String>( catalog ) );
+            attributes.put( "user", "user " + i );
+            sessions[i] = serialize( new TestClasses.Holder<Map<String, Object>>( attributes ), binding );
+            Assert.assertTrue( sessions[i].length < 1024, "The session contains the catalog: " + sessions[i].length );
+        }
+        Assert.assertEquals( store.blobs.size(), 1 );
+        Assert.assertEquals( store.sets, 1 );
+
+        /* the written instance is not returned for sessions read on the same node
+         */
+        final Map<?, ?> read = (Map<?, ?>) ( (TestClasses.Holder<?>) deserialize( sessions[1], binding ) ).item;
+        Assert.assertEquals( read.get( "catalog" ), catalog );
+        Assert.assertNotSame( read.get( "catalog" ), attributes.get( "catalog" ) );
+
+        /* another node reads the shared attribute from the store once
+         */
+        final XMLBinding other = new XMLBinding();
+        other.setSharedAttributes( store, null, 1024, 10 );
+        final Map<?, ?> first = (Map<?, ?>) ( (TestClasses.Holder<?>) deserialize( sessions[0], other ) ).item;
+        final Map<?, ?> second = (Map<?, ?>) ( (TestClasses.Holder<?>) deserialize( sessions[1], other ) ).item;
+        Assert.assertEquals( first.get( "catalog" ), catalog );
+        Assert.assertEquals( first.get( "user" ), "user 0" );
+        Assert.assertEquals( second.get( "user" ), "user 1" );
+        Assert.assertSame( second.get( "catalog" ), first.get( "catalog" ) );
+        Assert.assertEquals( store.gets, 2 );
+
+        /* a session whose shared attribute was evicted is still read, without the attribute
+         */
+        store.blobs.clear();
+        final XMLBinding third = new XMLBinding();
+        third.setSharedAttributes( store, null, 1024, 10 );
+        final Map<?, ?> evicted = (Map<?, ?>) ( (TestClasses.Holder<?>) deserialize( sessions[0], third ) ).item;
+        Assert.assertNull( evicted.get( "catalog" ) );
+        Assert.assertEquals( evicted.get( "user" ), "user 0" );
+        Assert.assertEquals( third.getSharedAttributes().getMissing(), 1 );
+    }
+
+    @Test
+    public void testOnlyMarkedAttributesAreShared() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 200; i++ ) {
+            sb.append( "product " ).append( i );
+        }
+        final InMemoryBlobStore store = new InMemoryBlobStore();
+        final XMLBinding binding = new XMLBinding();
+        binding.setSharedAttributes( store, Arrays.asList( "catalog" ), 1024, 10 );
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put( "cart", new ArrayList<String>( Arrays.asList( sb.toString() ) ) );
+        serialize( new TestClasses.Holder<Map<String, Object>>( attributes ), binding );
+        Assert.assertTrue( store.blobs.isEmpty() );
+
+        attributes.put( "snapshot", new SharedSnapshot( sb.toString() ) );
+        final byte[] serialized = serialize( new TestClasses.Holder<Map<String, Object>>( attributes ), binding );
+        Assert.assertEquals( store.blobs.size(), 1 );
+        final Map<?, ?> read = (Map<?, ?>) ( (TestClasses.Holder<?>) deserialize( serialized, binding ) ).item;
+        Assert.assertEquals( ( (SharedSnapshot) read.get( "snapshot" ) ).content, sb.toString() );
+        Assert.assertEquals( read.get( "cart" ), attributes.get( "cart" ) );
+    }
+
+    @XMLSharedAttribute
+    static class SharedSnapshot {
+        final String content;
+        SharedSnapshot( final String content ) {
+            this.content = content;
+        }
+    }
+
+    static class InMemoryBlobStore implements XMLBlobStore {
+        final Map<String, byte[]> blobs = new ConcurrentHashMap<String, byte[]>();
+        int gets;
+        int sets;
+        public byte[] get( final String key ) {
+            gets++;
+            return blobs.get( key );
+        }
+        public void set( final String key, final byte[] blob ) {
+            sets++;
+            blobs.put( key, blob );
+        }
+    }
+
+    @Test
+    public void testSerializationListener() throws Exception {
+        final XMLBinding binding = new XMLBinding();
+        binding.setRawUTF8Writer( true );
+        final RecordingListener listener = new RecordingListener();
+        binding.addSerializationListener( listener );
+        final XMLSlowSerializationLogger slowLogger = new XMLSlowSerializationLogger( 0 );
+        binding.addSerializationListener( slowLogger );
+
+        final List<String> messages = new ArrayList<String>();
+        final Handler handler = new Handler() {
+            @Override
+            public void publish( final LogRecord record ) {
+                messages.add( record.getMessage() );
+            }
+            @Override
+            public void flush() {
+            }
+            @Override
+            public void close() {
+            }
+        };
+        XMLSlowSerializationLogger._log.addHandler( handler );
+        try {
+            final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+            attributes.put( "user", "foo" );
+            final TestClasses.Holder<Map<String, Object>> holder = new TestClasses.Holder<Map<String, Object>>( attributes );
+            final byte[] serialized = serialize( holder, binding );
+
+            Assert.assertEquals( listener.events, Arrays.asList( "startDocument Holder",
+                    "enter Holder 1", "enter LinkedHashMap 2",
+                    "startAttribute user", "enter String 3", "enter String 3", "endAttribute user",
+                    "exit LinkedHashMap 2", "exit Holder 1",
+                    "endDocument Holder " + serialized.length ) );
+            Assert.assertEquals( messages.size(), 1 );
+            Assert.assertTrue( messages.get( 0 ).contains( TestClasses.Holder.class.getName() ), messages.get( 0 ) );
+            Assert.assertTrue( messages.get( 0 ).contains( "\n  user: " ), messages.get( 0 ) );
+
+            /* removed listeners are not notified any more
+             */
+            binding.removeSerializationListener( listener );
+            binding.removeSerializationListener( slowLogger );
+            listener.events.clear();
+            serialize( holder, binding );
+            Assert.assertTrue( listener.events.isEmpty() );
+            Assert.assertEquals( messages.size(), 1 );
+        } finally {
+            XMLSlowSerializationLogger._log.removeHandler( handler );
+        }
+    }
+
+    static class RecordingListener implements XMLSerializationListener {
+        final List<String> events = new ArrayList<String>();
+        public void startDocument( final Object root ) {
+            events.add( "startDocument " + root.getClass().getSimpleName() );
+        }
+        public void endDocument( final Object root, final long bytesWritten ) {
+            events.add( "endDocument " + root.getClass().getSimpleName() + " " + bytesWritten );
+        }
+        public void enterObject( final Object object, final int depth, final long bytesWritten ) {
+            events.add( "enter " + object.getClass().getSimpleName() + " " + depth );
+        }
+        public void exitObject( final Object object, final int depth, final long bytesWritten ) {
+            if ( !( object instanceof String ) ) {
+                events.add( "exit " + object.getClass().getSimpleName() + " " + depth );
+            }
+        }
+        public void startAttribute( final Object key, final long bytesWritten ) {
+            events.add( "startAttribute " + key );
+        }
+        public void endAttribute( final Object key, final long bytesWritten ) {
+            events.add( "endAttribute " + key );
+        }
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        if ( !XMLFlightRecorder.isAvailable() ) {
+            Assert.assertNull( XMLFlightRecorder.SERIALIZATION.begin() );
+            return;
+        }
+        Assert.assertNull( XMLFlightRecorder.SERIALIZATION.begin(), "The event is not enabled without a recording" );
+
+        /* the flight recorder api is accessed via reflection as it's not available on all jvms
+         */
+        final Class<?> recordingClass = Class.forName( "jdk.jfr.Recording" );
+        final Object recording = recordingClass.newInstance();
+        for ( final XMLFlightRecorder.EventType eventType : new XMLFlightRecorder.EventType[] {
+                XMLFlightRecorder.SERIALIZATION, XMLFlightRecorder.REFLECTION_FORMAT, XMLFlightRecorder.CLASS_RESOLUTION_MISS } ) {
+            recordingClass.getMethod( "enable", String.class ).invoke( recording, eventType.getName() );
+        }
+        recordingClass.getMethod( "start" ).invoke( recording );
+        final File file = File.createTempFile( "xml-binding", ".jfr" );
+        try {
+            final Object event = XMLFlightRecorder.SERIALIZATION.begin();
+            Assert.assertNotNull( event );
+            XMLFlightRecorder.SERIALIZATION.commit( event, "session-1", 42L, 3 );
+            new XMLReflectionFormat<TestClasses.Person>( TestClasses.Person.class );
+            assertClassResolutionMiss( "<?xml version='1.0' encoding='UTF-8'?><root class=\"com.example.Missing\" __id=\"0\"/>" );
+            /* the class names of classes, enums and array components are resolved the same way
+             */
+            assertClassResolutionMiss( new String( serialize( TestClasses.Person.class ), "UTF-8" ).replace(
+                    "\"" + TestClasses.Person.class.getName() + "\"", "\"com.example.MissingClass\"" ) );
+            assertClassResolutionMiss( new String( serialize( Gender.MALE ), "UTF-8" ).replace(
+                    "type=\"" + Gender.class.getName() + "\"", "type=\"com.example.MissingEnum\"" ) );
+            assertClassResolutionMiss( new String( serialize( new TestClasses.Person[0] ), "UTF-8" ).replace(
+                    "componentType=\"" + TestClasses.Person.class.getName() + "\"", "componentType=\"com.example.MissingComponent\"" ) );
+            recordingClass.getMethod( "stop" ).invoke( recording );
+            Assert.assertNull( XMLFlightRecorder.SERIALIZATION.begin(), "The event is not enabled after the recording stopped" );
+            final Object path = File.class.getMethod( "toPath" ).invoke( file );
+            final Class<?> pathClass = Class.forName( "java.nio.file.Path" );
+            recordingClass.getMethod( "dump", pathClass ).invoke( recording, path );
+
+            final Map<String, Object> events = new HashMap<String, Object>();
+            final Set<Object> missingClasses = new HashSet<Object>();
+            for ( final Object recorded : (List<?>) Class.forName( "jdk.jfr.consumer.RecordingFile" )
+                    .getMethod( "readAllEvents", pathClass ).invoke( null, path ) ) {
+                final Object type = recorded.getClass().getMethod( "getEventType" ).invoke( recorded );
+                final String name = (String) type.getClass().getMethod( "getName" ).invoke( type );
+                events.put( name, recorded );
+                if ( name.equals( XMLFlightRecorder.CLASS_RESOLUTION_MISS.getName() ) ) {
+                    missingClasses.add( getValue( recorded, "className" ) );
+                }
+            }
+            final Object serialization = events.get( XMLFlightRecorder.SERIALIZATION.getName() );
+            Assert.assertNotNull( serialization, "Recorded events: " + events.keySet() );
+            Assert.assertEquals( getValue( serialization, "sessionId" ), "session-1" );
+            Assert.assertEquals( getValue( serialization, "bytes" ), 42L );
+            Assert.assertEquals( getValue( serialization, "objects" ), 3 );
+            Assert.assertEquals( getValue( events.get( XMLFlightRecorder.REFLECTION_FORMAT.getName() ), "className" ),
+                    TestClasses.Person.class.getName() );
+            Assert.assertEquals( missingClasses, new HashSet<Object>( Arrays.asList( "com.example.Missing",
+                    "com.example.MissingClass", "com.example.MissingEnum", "com.example.MissingComponent" ) ) );
+        } finally {
+            recordingClass.getMethod( "close" ).invoke( recording );
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testObjectCountIsReturnedByWriteAndRead() throws Exception {
+        final XMLBinding binding = new XMLBinding();
+        final List<String> list = new ArrayList<String>( Arrays.asList( "a", "b" ) );
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final XMLWriter writer = binding.newRawUTF8XMLWriter( bos );
+        Assert.assertEquals( writer.write( list ), 3 );
+        writer.flush();
+        writer.close();
+        final XMLReader reader = binding.newXMLReader( bos.toByteArray(), 0, bos.size() );
+        Assert.assertEquals( reader.<List<String>>read(), list );
+        Assert.assertEquals( reader.getObjectCount(), 3 );
+        reader.close();
+    }
+
+    private void assertClassResolutionMiss( final String xml ) throws Exception {
+        Assert.assertTrue( xml.contains( "com.example.Missing" ), xml );
+        try {
+            deserialize( xml.getBytes( "UTF-8" ) );
+            Assert.fail( "The class should not be resolved: " + xml );
+        } catch ( final XMLStreamException e ) {
+            // expected
+        }
+    }
+
+    private static Object getValue( final Object recordedEvent, final String name ) throws Exception {
+        return recordedEvent.getClass().getMethod( "getValue", String.class ).invoke( recordedEvent, name );
+    }
+
+    static class ShrinkingList extends ArrayList<String> {
+        private static final long serialVersionUID = 1L;
+        ShrinkingList( final String ... items ) {
+            super( Arrays.asList( items ) );
+        }
+        @Override
+        public String get( final int index ) {
+            if ( index == 1 ) {
+                clear();
+            }
+            return super.get( index );
+        }
+    }
+
+    static class FailingList extends ArrayList<String> {
+        private static final long serialVersionUID = 1L;
+        private int _failures;
+        FailingList( final int failures, final String ... items ) {
+            super( Arrays.asList( items ) );
+            _failures = failures;
+        }
+        @Override
+        public Object[] toArray() {
+            if ( _failures-- > 0 ) {
+                throw new ConcurrentModificationException();
+            }
+            return super.toArray();
+        }
+    }
+
+    public static class EmailFormatProvider implements XMLFormatProvider {
+        @SuppressWarnings( "unchecked" )
+        public <T> XMLFormat<T> getFormat( final Class<T> clazz ) {
+            return TestClasses.Email.class.isAssignableFrom( clazz ) ? (XMLFormat<T>) new EmailFormat() : null;
+        }
+    }
+
+    static class EmailFormat extends XMLFormat<TestClasses.Email> {
+
+        @Override
+        public void write( final TestClasses.Email email, final OutputElement output ) throws XMLStreamException {
+            output.setAttribute( "n", email.getName() );
+            output.setAttribute( "e", email.getEmail() );
+        }
+
+        @Override
+        public void read( final InputElement input, final TestClasses.Email email ) throws XMLStreamException {
+            email.setName( input.getAttribute( "n" ) );
+            email.setEmail( input.getAttribute( "e" ) );
+        }
+
+    }
+
+    public static class WorkEmail extends TestClasses.Email {
+        private static final long serialVersionUID = 1L;
+        public WorkEmail() {
+        }
+        public WorkEmail( final String name, final String email ) {
+            super( name, email );
+        }
+    }
+
+    protected byte[] serialize( final Object o ) throws XMLStreamException {
+        return serialize( o, new XMLBinding() );
+    }
+
+    protected byte[] serialize( final Object o, final XMLBinding binding ) throws XMLStreamException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final XMLWriter writer = binding.newXMLWriter( bos );
+        try {
+            writer.write( o );
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+        return bos.toByteArray();
+    }
+
+    protected Object deserialize( final byte[] in ) throws XMLStreamException {
+        return deserialize( in, new XMLBinding() );
+    }
+
+    protected Object deserialize( final byte[] in, final XMLBinding binding ) throws XMLStreamException {
+        final XMLReader reader = binding.newXMLReader( new ByteArrayInputStream( in ) );
+        try {
+            return reader.read();
+        } finally {
+            reader.close();
+        }
+    }
+
+}